@@ -0,0 +1,88 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The shared state every worker thread updates once per batch, under the contention of four workers: the metrics
+ * counters and histograms, the bitmap of the processed nodes and the checkpoint tracker.
+ *
+ * @author Philippe
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CounterBenchmark
+{
+    private static final int BATCH_SIZE = 300;
+
+    private final CrawlMetrics metrics = new CrawlMetrics("benchmark");
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final ProcessedNodeSet processedNodes = new ProcessedNodeSet();
+    private final CheckpointTracker checkpointTracker = new CheckpointTracker(null);
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final long[] batch = new long[BATCH_SIZE];
+
+    @Setup
+    public void setUp()
+    {
+        for (int i = 0; i < BATCH_SIZE; i++)
+        {
+            batch[i] = i;
+            if (i % 2 == 0)
+            {
+                // half of the batch was already processed
+                processedNodes.add(i);
+            }
+        }
+    }
+
+    @Benchmark
+    public void batchCommitted()
+    {
+        metrics.batchCommitted(BATCH_SIZE, 1500000L);
+    }
+
+    @Benchmark
+    public void threadBusy()
+    {
+        metrics.threadBusy(System.nanoTime() - 1000000L);
+    }
+
+    @Benchmark
+    public void recordLatency()
+    {
+        histogram.record(1500000L);
+    }
+
+    @Benchmark
+    public long[] filterProcessed()
+    {
+        return processedNodes.filter(batch);
+    }
+
+    @Benchmark
+    public void trackCheckpoint()
+    {
+        long seq = nextSeq.getAndIncrement();
+        NodePage page = new NodePage(seq, seq, batch);
+        checkpointTracker.pageFetched(page);
+        checkpointTracker.nodesDone(page, BATCH_SIZE);
+    }
+}
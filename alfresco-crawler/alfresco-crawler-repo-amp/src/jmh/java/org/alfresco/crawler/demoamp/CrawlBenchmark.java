@@ -0,0 +1,109 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.crawler.demoamp.ParallelCrawler.Outcome;
+import org.alfresco.crawler.demoamp.ParallelCrawler.SourceType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole crawl over the {@link FakeRepository}: paging the source, queueing and cutting the batches, dispatching them
+ * to the <tt>BatchProcessor</tt> threads and running the script action on each node. With the latencies at zero it
+ * measures the overhead of the crawler alone, with realistic latencies whether that overhead still matters.
+ *
+ * @author Philippe
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CrawlBenchmark
+{
+    @Param({ "100000" })
+    public int nodes;
+
+    @Param({ "SEARCH", "DATABASE" })
+    public SourceType sourceType;
+
+    @Param({ "100", "300" })
+    public int batchSize;
+
+    @Param({ "4" })
+    public int threads;
+
+    /** the latency of a search, in microseconds */
+    @Param({ "0", "20000" })
+    public long searchLatency;
+
+    /** the latency of the script action on one node, in microseconds */
+    @Param({ "0", "50" })
+    public long actionLatency;
+
+    /** the latency of a commit, in microseconds */
+    @Param({ "0", "2000" })
+    public long commitLatency;
+
+    private FakeRepository repository;
+    private ParallelCrawler crawler;
+
+    @Setup
+    public void setUp()
+    {
+        repository = new FakeRepository(nodes);
+        repository.setSearchLatency(searchLatency);
+        repository.setDatabaseLatency(searchLatency / 10);
+        repository.setActionLatency(actionLatency);
+        repository.setCommitLatency(commitLatency);
+
+        CheckpointStore checkpointStore = new CheckpointStore();
+        checkpointStore.setAttributeService(repository.getAttributeService());
+        checkpointStore.setTransactionService(repository.getTransactionService());
+        checkpointStore.init();
+
+        crawler = new ParallelCrawler();
+        crawler.setSearchService(repository.getSearchService());
+        crawler.setTransactionService(repository.getTransactionService());
+        crawler.setNodeLocatorService(repository.getNodeLocatorService());
+        crawler.setNodeService(repository.getNodeService());
+        crawler.setNodeDAO(repository.getNodeDAO());
+        crawler.setActionService(repository.getActionService());
+        crawler.setJobLockService(repository.getJobLockService());
+        crawler.setNamespaceService(repository.getNamespaceService());
+        crawler.setDictionaryService(repository.getDictionaryService());
+        crawler.setApplicationEventPublisher(repository.getApplicationEventPublisher());
+        crawler.setCheckpointStore(checkpointStore);
+        crawler.setSourceType(sourceType);
+        crawler.setQuery("TYPE:\"cm:content\"");
+        crawler.setKeysetPaging(true);
+        crawler.setScriptName("crawl.js");
+        crawler.setJobName("benchmark");
+        crawler.setBatchSize(batchSize);
+        crawler.setThreadNumber(threads);
+        crawler.setPublishMetrics(false);
+    }
+
+    @Benchmark
+    public long crawl()
+    {
+        long before = repository.getActionsExecuted();
+        Outcome outcome = crawler.execute(false);
+        long processed = repository.getActionsExecuted() - before;
+        if (outcome != Outcome.COMPLETED || processed != nodes)
+        {
+            throw new IllegalStateException("Crawl " + outcome + " after " + processed + " of " + nodes + " nodes");
+        }
+        return processed;
+    }
+}
@@ -0,0 +1,518 @@
+package org.alfresco.crawler.demoamp;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.nodelocator.NodeLocatorService;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.action.ActionService;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.Pair;
+import org.springframework.context.ApplicationEventPublisher;
+
+/**
+ * In-memory stand-ins for the repository services the crawler drives, over <tt>nodeCount</tt> content nodes with the
+ * database IDs <tt>1</tt> to <tt>nodeCount</tt>. The services are dynamic proxies answering the calls the crawler
+ * makes and returning a default value for the others. Searches, node preloads, script actions and commits each wait
+ * for a configurable latency, so that a benchmark can weigh the overhead of the crawler against the repository it
+ * waits on.
+ * <p>
+ * Every node matches every query, only the <tt>sys:node-dbid</tt> range of the query, its skip count and its maximum
+ * number of items are taken into account.
+ *
+ * @author Philippe
+ */
+public class FakeRepository
+{
+    public static final StoreRef STORE = new StoreRef(StoreRef.PROTOCOL_WORKSPACE, "SpacesStore");
+
+    private static final String NODE_ID_PREFIX = "node-";
+    private static final Pattern DBID_RANGE = Pattern.compile("sys:node-dbid:\\[(\\S+) TO (\\S+)\\]");
+    private static final Object UNHANDLED = new Object();
+
+    private final long nodeCount;
+    private final NodeRef rootNode = new NodeRef(STORE, "root");
+    private final NodeRef companyHome = new NodeRef(STORE, "company-home");
+    private final NodeRef scriptRef = new NodeRef(STORE, "crawl-script");
+    private final Map<List<Serializable>, Serializable> attributes = Collections
+            .synchronizedMap(new HashMap<List<Serializable>, Serializable>());
+    private final AtomicLong actionsExecuted = new AtomicLong();
+    private final AtomicLong lockTokens = new AtomicLong();
+    private volatile long searchLatency = 0;
+    private volatile long databaseLatency = 0;
+    private volatile long actionLatency = 0;
+    private volatile long commitLatency = 0;
+
+    public FakeRepository(long nodeCount)
+    {
+        this.nodeCount = nodeCount;
+    }
+
+    /**
+     * @param searchLatency
+     *            the time a search takes, in microseconds
+     */
+    public void setSearchLatency(long searchLatency)
+    {
+        this.searchLatency = searchLatency;
+    }
+
+    /**
+     * @param databaseLatency
+     *            the time it takes to load a batch of nodes into the caches, in microseconds
+     */
+    public void setDatabaseLatency(long databaseLatency)
+    {
+        this.databaseLatency = databaseLatency;
+    }
+
+    /**
+     * @param actionLatency
+     *            the time the script action takes on one node, in microseconds
+     */
+    public void setActionLatency(long actionLatency)
+    {
+        this.actionLatency = actionLatency;
+    }
+
+    /**
+     * @param commitLatency
+     *            the time a read-write transaction takes to commit, in microseconds
+     */
+    public void setCommitLatency(long commitLatency)
+    {
+        this.commitLatency = commitLatency;
+    }
+
+    public long getNodeCount()
+    {
+        return nodeCount;
+    }
+
+    /**
+     * @return the number of times the script action ran so far
+     */
+    public long getActionsExecuted()
+    {
+        return actionsExecuted.get();
+    }
+
+    public NodeRef getNodeRef(long nodeId)
+    {
+        return new NodeRef(STORE, NODE_ID_PREFIX + nodeId);
+    }
+
+    /**
+     * @return the database ID of the node, <tt>null</tt> if there is no such node
+     */
+    public Long getNodeId(NodeRef nodeRef)
+    {
+        String id = nodeRef.getId();
+        if (!id.startsWith(NODE_ID_PREFIX))
+        {
+            return null;
+        }
+        long nodeId = Long.parseLong(id.substring(NODE_ID_PREFIX.length()));
+        return exists(nodeId) ? nodeId : null;
+    }
+
+    public SearchService getSearchService()
+    {
+        return proxy(SearchService.class, new FakeService()
+            {
+                protected Object call(String method, Object[] args)
+                {
+                    if (method.equals("query"))
+                    {
+                        pause(searchLatency);
+                        return query((SearchParameters) args[0]);
+                    }
+                    if (method.equals("selectNodes"))
+                    {
+                        return Collections.singletonList(scriptRef);
+                    }
+                    return UNHANDLED;
+                }
+            });
+    }
+
+    public NodeDAO getNodeDAO()
+    {
+        return proxy(NodeDAO.class, new FakeService()
+            {
+                protected Object call(String method, Object[] args)
+                {
+                    if (method.equals("getMinNodeId"))
+                    {
+                        return nodeCount > 0 ? 1L : null;
+                    }
+                    if (method.equals("getMaxNodeId"))
+                    {
+                        return nodeCount > 0 ? nodeCount : null;
+                    }
+                    if (method.equals("cacheNodesById") || method.equals("cacheNodes"))
+                    {
+                        pause(databaseLatency);
+                        return null;
+                    }
+                    if (method.equals("getNodePair"))
+                    {
+                        Long nodeId = args[0] instanceof NodeRef ? getNodeId((NodeRef) args[0]) : (Long) args[0];
+                        return nodeId != null && exists(nodeId) ? new Pair<Long, NodeRef>(nodeId, getNodeRef(nodeId))
+                                : null;
+                    }
+                    if (method.equals("getNodeType"))
+                    {
+                        return ContentModel.TYPE_CONTENT;
+                    }
+                    if (method.equals("getNodeAspects"))
+                    {
+                        return new HashSet<Object>();
+                    }
+                    return UNHANDLED;
+                }
+            });
+    }
+
+    public NodeService getNodeService()
+    {
+        return proxy(NodeService.class, new FakeService()
+            {
+                protected Object call(String method, Object[] args)
+                {
+                    return method.equals("getRootNode") ? rootNode : UNHANDLED;
+                }
+            });
+    }
+
+    public NodeLocatorService getNodeLocatorService()
+    {
+        return proxy(NodeLocatorService.class, new FakeService()
+            {
+                protected Object call(String method, Object[] args)
+                {
+                    return method.equals("getNode") ? companyHome : UNHANDLED;
+                }
+            });
+    }
+
+    public ActionService getActionService()
+    {
+        return proxy(ActionService.class, new FakeService()
+            {
+                protected Object call(String method, Object[] args)
+                {
+                    if (method.equals("createAction"))
+                    {
+                        return proxy(Action.class, new FakeService()
+                            {
+                                protected Object call(String method, Object[] args)
+                                {
+                                    return UNHANDLED;
+                                }
+                            });
+                    }
+                    if (method.equals("executeAction"))
+                    {
+                        pause(actionLatency);
+                        actionsExecuted.incrementAndGet();
+                        return null;
+                    }
+                    return UNHANDLED;
+                }
+            });
+    }
+
+    public TransactionService getTransactionService()
+    {
+        return proxy(TransactionService.class, new FakeService()
+            {
+                protected Object call(String method, Object[] args)
+                {
+                    if (method.equals("isReadOnly"))
+                    {
+                        return false;
+                    }
+                    if (method.equals("getRetryingTransactionHelper"))
+                    {
+                        return new FakeTransactionHelper(commitLatency);
+                    }
+                    return UNHANDLED;
+                }
+            });
+    }
+
+    public JobLockService getJobLockService()
+    {
+        return proxy(JobLockService.class, new FakeService()
+            {
+                protected Object call(String method, Object[] args)
+                {
+                    if (method.equals("getLock"))
+                    {
+                        return "lock-" + lockTokens.incrementAndGet();
+                    }
+                    if (method.equals("releaseLock"))
+                    {
+                        return true;
+                    }
+                    return UNHANDLED;
+                }
+            });
+    }
+
+    /**
+     * @return an attribute service keeping the attributes in memory, shared by all the calls
+     */
+    public AttributeService getAttributeService()
+    {
+        return proxy(AttributeService.class, new FakeService()
+            {
+                protected Object call(String method, Object[] args)
+                {
+                    if (method.equals("getAttribute"))
+                    {
+                        return attributes.get(Arrays.asList((Serializable[]) args[0]));
+                    }
+                    if (method.equals("exists"))
+                    {
+                        return attributes.containsKey(Arrays.asList((Serializable[]) args[0]));
+                    }
+                    if (method.equals("setAttribute"))
+                    {
+                        attributes.put(Arrays.asList((Serializable[]) args[1]), (Serializable) args[0]);
+                        return null;
+                    }
+                    if (method.equals("removeAttribute"))
+                    {
+                        attributes.remove(Arrays.asList((Serializable[]) args[0]));
+                        return null;
+                    }
+                    if (method.equals("removeAttributes"))
+                    {
+                        for (List<Serializable> keys : getAttributeKeys((Serializable[]) args[0]))
+                        {
+                            attributes.remove(keys);
+                        }
+                        return null;
+                    }
+                    if (method.equals("getAttributes"))
+                    {
+                        AttributeQueryCallback callback = (AttributeQueryCallback) args[0];
+                        for (List<Serializable> keys : getAttributeKeys((Serializable[]) args[1]))
+                        {
+                            if (!callback.handleAttribute(null, attributes.get(keys), keys
+                                    .toArray(new Serializable[keys.size()])))
+                            {
+                                break;
+                            }
+                        }
+                        return null;
+                    }
+                    return UNHANDLED;
+                }
+            });
+    }
+
+    public NamespaceService getNamespaceService()
+    {
+        return proxy(NamespaceService.class, new NoOpService());
+    }
+
+    public DictionaryService getDictionaryService()
+    {
+        return proxy(DictionaryService.class, new NoOpService());
+    }
+
+    public ApplicationEventPublisher getApplicationEventPublisher()
+    {
+        return proxy(ApplicationEventPublisher.class, new NoOpService());
+    }
+
+    private boolean exists(long nodeId)
+    {
+        return nodeId >= 1 && nodeId <= nodeCount;
+    }
+
+    /**
+     * @return the nodes of the DBID range of the query, in DBID order
+     */
+    private ResultSet query(SearchParameters sp)
+    {
+        long from = 1;
+        long to = nodeCount;
+        Matcher range = DBID_RANGE.matcher(sp.getQuery());
+        if (range.find())
+        {
+            if (!range.group(1).equals("MIN"))
+            {
+                from = Math.max(from, Long.parseLong(range.group(1)));
+            }
+            if (!range.group(2).equals("MAX"))
+            {
+                to = Math.min(to, Long.parseLong(range.group(2)));
+            }
+        }
+        final long first = from + sp.getSkipCount();
+        long length = Math.max(0, to - first + 1);
+        if (sp.getMaxItems() >= 0)
+        {
+            length = Math.min(length, sp.getMaxItems());
+        }
+        final int resultLength = (int) length;
+        return proxy(ResultSet.class, new FakeService()
+            {
+                protected Object call(String method, Object[] args)
+                {
+                    if (method.equals("length"))
+                    {
+                        return resultLength;
+                    }
+                    if (method.equals("getNumberFound"))
+                    {
+                        return (long) resultLength;
+                    }
+                    if (method.equals("getNodeRef"))
+                    {
+                        return getNodeRef(first + (Integer) args[0]);
+                    }
+                    return UNHANDLED;
+                }
+            });
+    }
+
+    /**
+     * @return the keys of the attributes under the given keys
+     */
+    private List<List<Serializable>> getAttributeKeys(Serializable[] prefix)
+    {
+        List<Serializable> prefixKeys = Arrays.asList(prefix);
+        List<List<Serializable>> matching = new ArrayList<List<Serializable>>();
+        synchronized (attributes)
+        {
+            for (List<Serializable> keys : attributes.keySet())
+            {
+                if (keys.size() >= prefixKeys.size() && keys.subList(0, prefixKeys.size()).equals(prefixKeys))
+                {
+                    matching.add(keys);
+                }
+            }
+        }
+        return matching;
+    }
+
+    private static void pause(long micros)
+    {
+        if (micros > 0)
+        {
+            LockSupport.parkNanos(micros * 1000L);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler)
+    {
+        return (T) Proxy.newProxyInstance(FakeRepository.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    /**
+     * Dispatches the calls on the method name, the methods of <tt>Object</tt> and the calls the fake does not handle
+     * get a default answer.
+     */
+    private abstract static class FakeService implements InvocationHandler
+    {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if (method.getDeclaringClass() == Object.class)
+            {
+                if (method.getName().equals("equals"))
+                {
+                    return proxy == args[0];
+                }
+                if (method.getName().equals("hashCode"))
+                {
+                    return System.identityHashCode(proxy);
+                }
+                return "Fake" + proxy.getClass().getInterfaces()[0].getSimpleName();
+            }
+            Object result = call(method.getName(), args == null ? new Object[0] : args);
+            return result == UNHANDLED ? defaultValue(method.getReturnType()) : result;
+        }
+
+        protected abstract Object call(String method, Object[] args);
+
+        private static Object defaultValue(Class<?> type)
+        {
+            if (type == boolean.class)
+            {
+                return false;
+            }
+            if (type == int.class)
+            {
+                return 0;
+            }
+            if (type == long.class)
+            {
+                return 0L;
+            }
+            if (type == double.class)
+            {
+                return 0d;
+            }
+            if (type == float.class)
+            {
+                return 0f;
+            }
+            if (type == short.class)
+            {
+                return (short) 0;
+            }
+            if (type == byte.class)
+            {
+                return (byte) 0;
+            }
+            if (type == char.class)
+            {
+                return (char) 0;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A service that answers every call with a default value.
+     */
+    private static class NoOpService extends FakeService
+    {
+        protected Object call(String method, Object[] args)
+        {
+            return UNHANDLED;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * A transaction helper without a database: it opens the Spring transaction synchronization the Alfresco transaction
+ * listeners are bound to, runs the callback and fires the synchronizations as a commit or a rollback would. Nothing is
+ * ever retried. A callback run inside another one joins it, whether it asked for a new transaction or not, the fakes
+ * have no transactional state to isolate.
+ *
+ * @author Philippe
+ */
+public class FakeTransactionHelper extends RetryingTransactionHelper
+{
+    private final long commitLatency;
+
+    /**
+     * @param commitLatency
+     *            the time a commit takes, in microseconds
+     */
+    public FakeTransactionHelper(long commitLatency)
+    {
+        this.commitLatency = commitLatency;
+    }
+
+    @Override
+    public <R> R doInTransaction(RetryingTransactionCallback<R> callback)
+    {
+        return doInTransaction(callback, false, false);
+    }
+
+    @Override
+    public <R> R doInTransaction(RetryingTransactionCallback<R> callback, boolean readOnly)
+    {
+        return doInTransaction(callback, readOnly, false);
+    }
+
+    @Override
+    public <R> R doInTransaction(RetryingTransactionCallback<R> callback, boolean readOnly, boolean requiresNew)
+    {
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            return execute(callback);
+        }
+        TransactionSynchronizationManager.initSynchronization();
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(readOnly);
+        try
+        {
+            R result;
+            try
+            {
+                result = execute(callback);
+                for (TransactionSynchronization synchronization : TransactionSynchronizationManager
+                        .getSynchronizations())
+                {
+                    synchronization.beforeCommit(readOnly);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+                throw e;
+            }
+            if (!readOnly && commitLatency > 0)
+            {
+                LockSupport.parkNanos(commitLatency * 1000L);
+            }
+            complete(TransactionSynchronization.STATUS_COMMITTED);
+            return result;
+        }
+        finally
+        {
+            TransactionSynchronizationManager.clearSynchronization();
+            TransactionSynchronizationManager.setActualTransactionActive(false);
+            TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+            // whatever a listener left bound would leak into the next transaction of the thread
+            for (Object key : new ArrayList<Object>(TransactionSynchronizationManager.getResourceMap().keySet()))
+            {
+                TransactionSynchronizationManager.unbindResourceIfPossible(key);
+            }
+        }
+    }
+
+    private static <R> R execute(RetryingTransactionCallback<R> callback)
+    {
+        try
+        {
+            return callback.execute();
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Error e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            throw new AlfrescoRuntimeException("Exception from transactional callback: " + callback, e);
+        }
+    }
+
+    private static void complete(int status)
+    {
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        for (TransactionSynchronization synchronization : synchronizations)
+        {
+            synchronization.beforeCompletion();
+        }
+        if (status == TransactionSynchronization.STATUS_COMMITTED)
+        {
+            for (TransactionSynchronization synchronization : synchronizations)
+            {
+                synchronization.afterCommit();
+            }
+        }
+        for (TransactionSynchronization synchronization : synchronizations)
+        {
+            synchronization.afterCompletion(status);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.util.VmShutdownListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drains a {@link CrawlWorkProvider} from a single consumer that commits every batch it gets, without a
+ * <tt>BatchProcessor</tt> in between: the cost of paging an in-memory source on the fetcher threads, queueing and
+ * cutting the batches, partitioning them by affinity and settling them.
+ *
+ * @author Philippe
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class WorkProviderBenchmark
+{
+    private static final VmShutdownListener vmShutdownListener = new VmShutdownListener("WorkProviderBenchmark");
+
+    @Param({ "100000" })
+    public int nodes;
+
+    @Param({ "5000" })
+    public int pageLen;
+
+    @Param({ "100", "300" })
+    public int batchSize;
+
+    @Param({ "1", "2" })
+    public int fetcherThreads;
+
+    /** <tt>true</tt> to partition the pages by groups of ten consecutive nodes */
+    @Param({ "false", "true" })
+    public boolean affinity;
+
+    @Benchmark
+    public long drain()
+    {
+        CrawlWorkProvider workProvider = new CrawlWorkProvider(new SequenceSource(nodes, pageLen),
+                new CheckpointTracker(null), new FakeTransactionHelper(0), batchSize, 20, 8, fetcherThreads,
+                vmShutdownListener);
+        if (affinity)
+        {
+            workProvider.setAffinity(new NodeAffinity()
+                {
+                    public Object[] getAffinityKeys(long[] nodeIds)
+                    {
+                        Object[] keys = new Object[nodeIds.length];
+                        for (int i = 0; i < nodeIds.length; i++)
+                        {
+                            keys[i] = nodeIds[i] / 10;
+                        }
+                        return keys;
+                    }
+                });
+        }
+        workProvider.start();
+        long drained = 0;
+        try
+        {
+            Collection<CrawlBatch> work;
+            while (!(work = workProvider.getNextWork()).isEmpty())
+            {
+                for (CrawlBatch batch : work)
+                {
+                    batch.setCommitted();
+                    workProvider.settle(batch);
+                    drained += batch.size();
+                }
+            }
+        }
+        finally
+        {
+            workProvider.stop();
+        }
+        if (drained != nodes)
+        {
+            throw new IllegalStateException("Drained " + drained + " of " + nodes + " nodes");
+        }
+        return drained;
+    }
+
+    /**
+     * The IDs from <tt>1</tt> to <tt>nodeCount</tt>, a page at a time.
+     */
+    private static class SequenceSource implements NodeSource
+    {
+        private final long nodeCount;
+        private final int pageLen;
+        private long lastId = 0;
+        private long seq = 0;
+
+        private SequenceSource(long nodeCount, int pageLen)
+        {
+            this.nodeCount = nodeCount;
+            this.pageLen = pageLen;
+        }
+
+        public synchronized NodePage nextPage()
+        {
+            if (lastId >= nodeCount)
+            {
+                return null;
+            }
+            long[] nodeIds = new long[(int) Math.min(pageLen, nodeCount - lastId)];
+            for (int i = 0; i < nodeIds.length; i++)
+            {
+                nodeIds[i] = ++lastId;
+            }
+            return new NodePage(seq++, lastId, nodeIds);
+        }
+
+        public synchronized void restore(long position)
+        {
+            lastId = position;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+<#macro jobJSON job>
+<#escape x as jsonUtils.encodeJSONString(x)>
+{
+   "name": "${job.name}",
+   "state": "${job.state?string}",
+   <#if job.definition.query??>"query": "${job.definition.query}",</#if>
+   <#if job.definition.processor??>"processor": "${job.definition.processor}",</#if>
+   "submitted": "${xmldate(job.submitted)}",
+   <#if job.started??>"started": "${xmldate(job.started)}",</#if>
+   <#if job.ended??>"ended": "${xmldate(job.ended)}",</#if>
+   <#if job.error??>"error": "${job.error}",</#if>
+   <#if job.estimate??>
+   "estimate":
+   {
+      "candidates": ${job.estimate.candidates?c},
+      "exact": ${job.estimate.exact?string},
+      "sampled": ${job.estimate.sampled?c},
+      "sampleFailures": ${job.estimate.sampleFailures?c},
+      "nodeMs": ${job.estimate.nodeMs?c},
+      "pageMs": ${job.estimate.pageMs?c},
+      "threads": ${job.estimate.threads?c},
+      "projectedMs": ${job.estimate.projectedMs?c},
+      "projectedMsByThreads":
+      {
+         <#list [1, 2, 4, 8, 16, 32] as threads>
+         "${threads?c}": ${job.estimate.getProjectedMs(threads)?c}<#if threads_has_next>,</#if>
+         </#list>
+      }
+   },
+   </#if>
+   "processedNodes": ${job.processedNodes?c},
+   "elapsed": ${job.elapsed?c},
+   "nodesPerSecond": ${job.nodesPerSecond?c}
+}
+</#escape>
+</#macro>
@@ -0,0 +1,2 @@
+<#import "crawljob.lib.ftl" as crawlLib/>
+<@crawlLib.jobJSON job=job />
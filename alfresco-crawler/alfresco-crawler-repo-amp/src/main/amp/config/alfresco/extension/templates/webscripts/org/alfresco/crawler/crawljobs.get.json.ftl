@@ -0,0 +1,9 @@
+<#import "crawljob.lib.ftl" as crawlLib/>
+{
+   "jobs":
+   [
+      <#list jobs as job>
+      <@crawlLib.jobJSON job=job /><#if job_has_next>,</#if>
+      </#list>
+   ]
+}
@@ -0,0 +1,16 @@
+<#escape x as jsonUtils.encodeJSONString(x)>
+{
+   "name": "${name}",
+   "deadLetters":
+   [
+      <#list deadLetters as deadLetter>
+      {
+         "nodeId": ${deadLetter.nodeId?c},
+         "time": "${xmldate(deadLetter.time)}",
+         "retries": ${deadLetter.retries?c},
+         <#if deadLetter.error??>"error": "${deadLetter.error}"<#else>"error": null</#if>
+      }<#if deadLetter_has_next>,</#if>
+      </#list>
+   ]
+}
+</#escape>
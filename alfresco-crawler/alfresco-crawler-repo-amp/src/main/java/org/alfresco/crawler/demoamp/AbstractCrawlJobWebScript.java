@@ -0,0 +1,45 @@
+package org.alfresco.crawler.demoamp;
+
+import org.alfresco.util.PropertyCheck;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Base of the <tt>/crawler/jobs</tt> web scripts driving the {@link CrawlJobManager}.
+ * 
+ * @author Philippe
+ */
+public abstract class AbstractCrawlJobWebScript extends DeclarativeWebScript
+{
+    protected static final String PARAM_NAME = "name";
+
+    protected CrawlJobManager jobManager;
+
+    public void setJobManager(CrawlJobManager jobManager)
+    {
+        this.jobManager = jobManager;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "jobManager", jobManager);
+    }
+
+    /**
+     * @return the job named in the URL
+     * @throws WebScriptException
+     *             with a 404 status if there is no such job
+     */
+    protected CrawlJob getJob(WebScriptRequest req)
+    {
+        String name = req.getServiceMatch().getTemplateVars().get(PARAM_NAME);
+        CrawlJob job = jobManager.getJob(name);
+        if (job == null)
+        {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "No crawl job " + name);
+        }
+        return job;
+    }
+}
@@ -0,0 +1,248 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Adjusts the number of active workers and the batch size of a crawl while it runs, from what the batches of the last
+ * interval show.
+ * <p>
+ * When transactions get retried or commits get slow the repository is struggling and the crawl backs off: fewer
+ * workers and smaller batches. Otherwise the worker count is hill-climbed one at a time, keeping the direction as long
+ * as the throughput does not drop, and the batch size is steered towards batches taking <tt>targetBatchTime</tt>.
+ * <p>
+ * The <tt>BatchProcessor</tt> is started with <tt>maxThreads</tt> threads, the workers above {@link #getThreads()}
+ * wait in the {@link WorkerGate} of the crawl. One controller serves one crawl at a time, {@link #start(int, int)}
+ * resets it, so the bean is a prototype: each crawler gets its own.
+ * 
+ * @author Philippe
+ */
+public class AdaptiveController
+{
+    private static Log logger = LogFactory.getLog(AdaptiveController.class);
+
+    private int minThreads = 1;
+    private int maxThreads = 12;
+    private int minBatchSize = 20;
+    private int maxBatchSize = 1000;
+    private long targetBatchTime = 2000;
+    private double maxRetryRate = 0.05;
+    private long maxCommitLatency = 1000;
+    private long interval = 10000;
+
+    private volatile int threads;
+    private volatile int batchSize;
+    private int direction = 1;
+    private double lastThroughput = -1;
+
+    private final AtomicLong nodes = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong batchTime = new AtomicLong();
+    private final AtomicLong commitTime = new AtomicLong();
+
+    public void setMinThreads(int minThreads)
+    {
+        this.minThreads = minThreads;
+    }
+
+    public void setMaxThreads(int maxThreads)
+    {
+        this.maxThreads = maxThreads;
+    }
+
+    public void setMinBatchSize(int minBatchSize)
+    {
+        this.minBatchSize = minBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @param targetBatchTime
+     *            the number of milliseconds a batch should take to process
+     */
+    public void setTargetBatchTime(long targetBatchTime)
+    {
+        this.targetBatchTime = targetBatchTime;
+    }
+
+    /**
+     * @param maxRetryRate
+     *            the share of transactions retried above which the crawl backs off
+     */
+    public void setMaxRetryRate(double maxRetryRate)
+    {
+        this.maxRetryRate = maxRetryRate;
+    }
+
+    /**
+     * @param maxCommitLatency
+     *            the average commit time in milliseconds above which the crawl backs off
+     */
+    public void setMaxCommitLatency(long maxCommitLatency)
+    {
+        this.maxCommitLatency = maxCommitLatency;
+    }
+
+    /**
+     * @param interval
+     *            the number of milliseconds between two adjustments
+     */
+    public void setInterval(long interval)
+    {
+        this.interval = interval;
+    }
+
+    public void init()
+    {
+        if (minThreads < 1 || maxThreads < minThreads)
+        {
+            throw new IllegalArgumentException("Invalid thread limits " + minThreads + ".." + maxThreads);
+        }
+        if (minBatchSize < 1 || maxBatchSize < minBatchSize)
+        {
+            throw new IllegalArgumentException("Invalid batch size limits " + minBatchSize + ".." + maxBatchSize);
+        }
+    }
+
+    public int getMaxThreads()
+    {
+        return maxThreads;
+    }
+
+    public long getInterval()
+    {
+        return interval;
+    }
+
+    /**
+     * Reset the controller for a new crawl.
+     */
+    public synchronized void start(int initialThreads, int initialBatchSize)
+    {
+        threads = clamp(initialThreads, minThreads, maxThreads);
+        batchSize = clamp(initialBatchSize, minBatchSize, maxBatchSize);
+        direction = 1;
+        lastThroughput = -1;
+        takeWindow();
+    }
+
+    /**
+     * @return the number of workers the crawl should use at the moment
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * @param workTime
+     *            milliseconds spent processing the nodes
+     * @param commitLatency
+     *            milliseconds spent committing the transaction
+     */
+    public void batchCommitted(int size, long workTime, long commitLatency)
+    {
+        nodes.addAndGet(size);
+        batches.incrementAndGet();
+        batchTime.addAndGet(workTime + commitLatency);
+        commitTime.addAndGet(commitLatency);
+    }
+
+    public void batchRetried()
+    {
+        retries.incrementAndGet();
+    }
+
+    /**
+     * Adjust the worker count and batch size from the batches committed since the last call.
+     * 
+     * @param elapsed
+     *            the number of milliseconds since the last call
+     */
+    public synchronized void adjust(long elapsed)
+    {
+        long[] window = takeWindow();
+        long windowNodes = window[0];
+        long windowBatches = window[1];
+        long windowRetries = window[2];
+        if (windowBatches == 0 || elapsed <= 0)
+        {
+            // nothing committed, nothing to judge
+            return;
+        }
+        double throughput = windowNodes * 1000.0 / elapsed;
+        double retryRate = (double) windowRetries / (windowBatches + windowRetries);
+        long averageBatchTime = window[3] / windowBatches;
+        long averageCommitTime = window[4] / windowBatches;
+
+        int newThreads;
+        int newBatchSize;
+        if (retryRate > maxRetryRate || averageCommitTime > maxCommitLatency)
+        {
+            // the repository is struggling
+            newThreads = getThreads() - Math.max(1, getThreads() / 4);
+            newBatchSize = batchSize / 2;
+            direction = 1;
+            // do not take the backed off throughput as the reference to climb from
+            lastThroughput = -1;
+        }
+        else
+        {
+            if (lastThroughput >= 0 && throughput < lastThroughput * 0.95)
+            {
+                // the last move did not pay
+                direction = -direction;
+            }
+            newThreads = getThreads() + direction;
+            long targetSize = batchSize * targetBatchTime / Math.max(1L, averageBatchTime);
+            newBatchSize = (int) ((batchSize + Math.min(targetSize, Integer.MAX_VALUE)) / 2);
+            lastThroughput = throughput;
+        }
+        newThreads = clamp(newThreads, minThreads, maxThreads);
+        if (newThreads == minThreads || newThreads == maxThreads)
+        {
+            // bounce off the limits
+            direction = newThreads == minThreads ? 1 : -1;
+        }
+        newBatchSize = clamp(newBatchSize, minBatchSize, maxBatchSize);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(String.format(
+                    "%.1f nodes/s, %.1f%% retried, %d ms per batch, %d ms per commit: %d -> %d threads, batch %d -> %d",
+                    throughput, retryRate * 100, averageBatchTime, averageCommitTime, getThreads(), newThreads,
+                    batchSize, newBatchSize));
+        }
+        threads = newThreads;
+        batchSize = newBatchSize;
+    }
+
+    private long[] takeWindow()
+    {
+        return new long[] { nodes.getAndSet(0), batches.getAndSet(0), retries.getAndSet(0), batchTime.getAndSet(0),
+                commitTime.getAndSet(0) };
+    }
+
+    private static int clamp(int value, int min, int max)
+    {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AdaptiveController[threads " + minThreads + ".." + maxThreads + ", batch " + minBatchSize + ".."
+                + maxBatchSize + "]";
+    }
+}
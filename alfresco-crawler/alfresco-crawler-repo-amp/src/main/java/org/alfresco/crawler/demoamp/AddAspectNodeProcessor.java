@@ -0,0 +1,87 @@
+package org.alfresco.crawler.demoamp;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.PropertyCheck;
+
+/**
+ * A {@link NodeProcessor} adding an aspect with fixed property values to the nodes that do not have it yet, the kind
+ * of migration that does not need a script.
+ * 
+ * @author Philippe
+ */
+public class AddAspectNodeProcessor extends NodeProcessorAdapter
+{
+    private NodeService nodeService;
+    private NamespaceService namespaceService;
+    private String aspect;
+    private Map<String, String> properties;
+
+    private QName aspectQName;
+    private Map<QName, Serializable> aspectProperties;
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    public void setNamespaceService(NamespaceService namespaceService)
+    {
+        this.namespaceService = namespaceService;
+    }
+
+    /**
+     * @param aspect
+     *            prefixed name of the aspect to add, e.g. <tt>cm:titled</tt>
+     */
+    public void setAspect(String aspect)
+    {
+        this.aspect = aspect;
+    }
+
+    /**
+     * @param properties
+     *            values of the aspect properties by prefixed name
+     */
+    public void setProperties(Map<String, String> properties)
+    {
+        this.properties = properties;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "nodeService", nodeService);
+        PropertyCheck.mandatory(this, "namespaceService", namespaceService);
+        PropertyCheck.mandatory(this, "aspect", aspect);
+        aspectQName = QName.createQName(aspect, namespaceService);
+        aspectProperties = new HashMap<QName, Serializable>();
+        if (properties != null)
+        {
+            for (Map.Entry<String, String> property : properties.entrySet())
+            {
+                aspectProperties.put(QName.createQName(property.getKey(), namespaceService), property.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void process(NodeRef nodeRef)
+    {
+        if (!nodeService.hasAspect(nodeRef, aspectQName))
+        {
+            nodeService.addAspect(nodeRef, aspectQName, aspectProperties);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AddAspectNodeProcessor[" + aspect + ", " + properties + "]";
+    }
+}
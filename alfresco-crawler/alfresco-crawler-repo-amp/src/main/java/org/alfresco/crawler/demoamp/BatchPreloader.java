@@ -0,0 +1,143 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.permissions.AclDAO;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.Pair;
+import org.alfresco.util.PropertyCheck;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bulk loads the metadata of the nodes of a batch into the caches, in the transaction of the batch, before the nodes
+ * are processed. The nodes are then read from the caches instead of costing several queries each.
+ * <p>
+ * The node rows, their properties and their aspects are loaded together by {@link NodeDAO#cacheNodesById(List)}, the
+ * DAO does not load them separately. The parent associations and the ACLs are optional.
+ * 
+ * @author Philippe
+ */
+public class BatchPreloader
+{
+    private static Log logger = LogFactory.getLog(BatchPreloader.class);
+
+    private NodeDAO nodeDAO;
+    private AclDAO aclDAO;
+    private boolean properties = true;
+    private boolean parentAssocs = false;
+    private boolean acls = false;
+
+    public void setNodeDAO(NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    public void setAclDAO(AclDAO aclDAO)
+    {
+        this.aclDAO = aclDAO;
+    }
+
+    /**
+     * @param properties
+     *            <tt>true</tt> to load the nodes with their properties and aspects
+     */
+    public void setProperties(boolean properties)
+    {
+        this.properties = properties;
+    }
+
+    /**
+     * @param parentAssocs
+     *            <tt>true</tt> to load the primary parent associations and the parent nodes
+     */
+    public void setParentAssocs(boolean parentAssocs)
+    {
+        this.parentAssocs = parentAssocs;
+    }
+
+    /**
+     * @param acls
+     *            <tt>true</tt> to load the ACLs of the nodes, each distinct ACL once
+     */
+    public void setAcls(boolean acls)
+    {
+        this.acls = acls;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "nodeDAO", nodeDAO);
+        if (acls)
+        {
+            PropertyCheck.mandatory(this, "aclDAO", aclDAO);
+        }
+    }
+
+    /**
+     * Load the nodes, to be called in the transaction that processes them.
+     */
+    public void preload(List<Long> nodeIds)
+    {
+        if (properties || parentAssocs || acls)
+        {
+            // the other lookups need the node rows anyway
+            nodeDAO.cacheNodesById(nodeIds);
+        }
+        if (!parentAssocs && !acls)
+        {
+            return;
+        }
+        Set<NodeRef> parentRefs = new LinkedHashSet<NodeRef>();
+        Set<Long> aclIds = new LinkedHashSet<Long>();
+        for (Long nodeId : nodeIds)
+        {
+            if (nodeDAO.getNodePair(nodeId) == null)
+            {
+                // deleted since it was fetched
+                continue;
+            }
+            if (parentAssocs)
+            {
+                Pair<Long, ChildAssociationRef> parentAssoc = nodeDAO.getPrimaryParentAssoc(nodeId);
+                if (parentAssoc != null)
+                {
+                    parentRefs.add(parentAssoc.getSecond().getParentRef());
+                }
+            }
+            if (acls)
+            {
+                Long aclId = nodeDAO.getNodeAclId(nodeId);
+                if (aclId != null)
+                {
+                    aclIds.add(aclId);
+                }
+            }
+        }
+        if (!parentRefs.isEmpty())
+        {
+            // the nodes of a batch usually share a few folders
+            nodeDAO.cacheNodes(new ArrayList<NodeRef>(parentRefs));
+        }
+        for (Long aclId : aclIds)
+        {
+            aclDAO.getAccessControlList(aclId);
+        }
+        if (logger.isTraceEnabled())
+        {
+            logger.trace("Preloaded " + nodeIds.size() + " nodes, " + parentRefs.size() + " parents and "
+                    + aclIds.size() + " ACLs");
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BatchPreloader[properties=" + properties + ", parentAssocs=" + parentAssocs + ", acls=" + acls + "]";
+    }
+}
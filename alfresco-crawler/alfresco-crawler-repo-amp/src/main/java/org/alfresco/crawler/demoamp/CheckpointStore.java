@@ -0,0 +1,243 @@
+package org.alfresco.crawler.demoamp;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.PropertyCheck;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Persists the checkpoints of the crawl jobs with the attribute service, so that an interrupted crawl can be resumed
+ * after a restart. Each call runs in its own transaction.
+ * 
+ * @author Philippe
+ */
+public class CheckpointStore
+{
+    /** the position of the source to resume from, <tt>Long</tt> */
+    public static final String POSITION = "position";
+    /** the number of nodes processed when the checkpoint was taken, <tt>Integer</tt> */
+    public static final String PROCESSED = "processed";
+    /** the parameters of the job, the checkpoint is only valid for a job with the same parameters */
+    public static final String PARAMETERS = "parameters";
+    /** when the checkpoint was taken, <tt>Long</tt> */
+    public static final String TIME = "time";
+    /** the high-water mark the last complete incremental run started from, see {@link HighWaterMark#toMap()} */
+    public static final String MARK = "mark";
+    /** the high-water mark of the incremental run in progress, saved once it completes */
+    public static final String PENDING_MARK = "pendingMark";
+    /** the numbers of the saved segments of a processed-node set, <tt>ArrayList&lt;Integer&gt;</tt> */
+    public static final String SEGMENTS = "segments";
+
+    private static final String KEY_APPLICATION = "ParallelCrawler";
+    private static final String KEY_CHECKPOINT = "checkpoint";
+    private static final String KEY_HIGH_WATER_MARK = "highWaterMark";
+    private static final String KEY_PROCESSED = "processed";
+    private static final String KEY_PROCESSED_SEGMENT = "processed-";
+
+    private static Log logger = LogFactory.getLog(CheckpointStore.class);
+
+    private AttributeService attributeService;
+    private TransactionService transactionService;
+
+    public void setAttributeService(AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "attributeService", attributeService);
+        PropertyCheck.mandatory(this, "transactionService", transactionService);
+    }
+
+    /**
+     * @return the last checkpoint saved for the job, <tt>null</tt> if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Serializable> load(final String jobName)
+    {
+        return transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<Map<String, Serializable>>()
+                    {
+                        public Map<String, Serializable> execute() throws Throwable
+                        {
+                            return (Map<String, Serializable>) attributeService.getAttribute(KEY_APPLICATION,
+                                    jobName, KEY_CHECKPOINT);
+                        }
+                    }, true, true);
+    }
+
+    public void save(final String jobName, final HashMap<String, Serializable> checkpoint)
+    {
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    attributeService.setAttribute(checkpoint, KEY_APPLICATION, jobName, KEY_CHECKPOINT);
+                    return null;
+                }
+            }, false, true);
+    }
+
+    /**
+     * @return the high-water marks of the incremental runs of the job with their {@link #PARAMETERS}, <tt>null</tt>
+     *         if it never ran incrementally
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Serializable> loadHighWaterMarks(final String jobName)
+    {
+        return transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<Map<String, Serializable>>()
+                    {
+                        public Map<String, Serializable> execute() throws Throwable
+                        {
+                            return (Map<String, Serializable>) attributeService.getAttribute(KEY_APPLICATION,
+                                    jobName, KEY_HIGH_WATER_MARK);
+                        }
+                    }, true, true);
+    }
+
+    public void saveHighWaterMarks(final String jobName, final HashMap<String, Serializable> marks)
+    {
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    attributeService.setAttribute(marks, KEY_APPLICATION, jobName, KEY_HIGH_WATER_MARK);
+                    return null;
+                }
+            }, false, true);
+    }
+
+    public void clear(final String jobName)
+    {
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    attributeService.removeAttribute(KEY_APPLICATION, jobName, KEY_CHECKPOINT);
+                    return null;
+                }
+            }, false, true);
+    }
+
+    /**
+     * Load the nodes the job already processed. The set is only valid for a job with the same parameters, the set
+     * saved with other parameters is dropped.
+     * 
+     * @return the saved set, an empty one if there is none
+     */
+    public ProcessedNodeSet loadProcessedNodes(final String jobName, final HashMap<String, Serializable> parameters)
+    {
+        ProcessedNodeSet processedNodes = transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<ProcessedNodeSet>()
+                    {
+                        @SuppressWarnings("unchecked")
+                        public ProcessedNodeSet execute() throws Throwable
+                        {
+                            Map<String, Serializable> index = (Map<String, Serializable>) attributeService
+                                    .getAttribute(KEY_APPLICATION, jobName, KEY_PROCESSED);
+                            if (index == null || !parameters.equals(index.get(PARAMETERS)))
+                            {
+                                return null;
+                            }
+                            ProcessedNodeSet processedNodes = new ProcessedNodeSet();
+                            for (Integer segment : (List<Integer>) index.get(SEGMENTS))
+                            {
+                                long[] words = (long[]) attributeService.getAttribute(KEY_APPLICATION, jobName,
+                                        KEY_PROCESSED_SEGMENT + segment);
+                                if (words != null)
+                                {
+                                    processedNodes.restoreSegment(segment, words);
+                                }
+                            }
+                            return processedNodes;
+                        }
+                    }, true, true);
+        if (processedNodes == null)
+        {
+            clearProcessedNodes(jobName);
+            processedNodes = new ProcessedNodeSet();
+        }
+        return processedNodes;
+    }
+
+    /**
+     * Save the segments of the set changed since it was last saved. Failures are logged and the segments are saved
+     * again next time, the set is only ever an optimisation.
+     */
+    public void saveProcessedNodes(
+            final String jobName,
+            final HashMap<String, Serializable> parameters,
+            final ProcessedNodeSet processedNodes)
+    {
+        final Map<Integer, long[]> changed = processedNodes.takeDirtySegments();
+        if (changed.isEmpty())
+        {
+            return;
+        }
+        try
+        {
+            transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+                {
+                    public Void execute() throws Throwable
+                    {
+                        for (Map.Entry<Integer, long[]> entry : changed.entrySet())
+                        {
+                            attributeService.setAttribute(entry.getValue(), KEY_APPLICATION, jobName,
+                                    KEY_PROCESSED_SEGMENT + entry.getKey());
+                        }
+                        HashMap<String, Serializable> index = new HashMap<String, Serializable>();
+                        index.put(PARAMETERS, parameters);
+                        index.put(SEGMENTS, new ArrayList<Integer>(processedNodes.getSegmentNumbers()));
+                        attributeService.setAttribute(index, KEY_APPLICATION, jobName, KEY_PROCESSED);
+                        return null;
+                    }
+                }, false, true);
+        }
+        catch (Throwable e)
+        {
+            processedNodes.markDirty(changed.keySet());
+            logger.warn("Unable to save the processed nodes of " + jobName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forget the nodes the job processed, the next run visits them all again.
+     */
+    public void clearProcessedNodes(final String jobName)
+    {
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+                @SuppressWarnings("unchecked")
+                public Void execute() throws Throwable
+                {
+                    Map<String, Serializable> index = (Map<String, Serializable>) attributeService.getAttribute(
+                            KEY_APPLICATION, jobName, KEY_PROCESSED);
+                    if (index == null)
+                    {
+                        return null;
+                    }
+                    for (Integer segment : (List<Integer>) index.get(SEGMENTS))
+                    {
+                        attributeService.removeAttribute(KEY_APPLICATION, jobName, KEY_PROCESSED_SEGMENT + segment);
+                    }
+                    attributeService.removeAttribute(KEY_APPLICATION, jobName, KEY_PROCESSED);
+                    return null;
+                }
+            }, false, true);
+    }
+}
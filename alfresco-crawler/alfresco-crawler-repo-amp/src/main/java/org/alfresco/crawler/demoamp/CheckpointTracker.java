@@ -0,0 +1,65 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.TreeMap;
+
+/**
+ * Keeps track of the position up to which a crawl is done with every node, the position a crawl may be resumed from.
+ * <p>
+ * Pages complete out of order since their batches are processed concurrently, so the committed position only moves
+ * past a page once that page and all the pages before it are done.
+ * 
+ * @author Philippe
+ */
+public class CheckpointTracker
+{
+    private final TreeMap<Long, NodePage> pages = new TreeMap<Long, NodePage>();
+    private long nextSeq = 0;
+    private Long committedPosition;
+
+    /**
+     * @param startPosition
+     *            the position the source was restored to, <tt>null</tt> when starting from scratch
+     */
+    public CheckpointTracker(Long startPosition)
+    {
+        this.committedPosition = startPosition;
+    }
+
+    public synchronized void pageFetched(NodePage page)
+    {
+        pages.put(page.getSeq(), page);
+        advance();
+    }
+
+    /**
+     * Called once nodes of the page are either committed or given up on.
+     */
+    public void nodesDone(NodePage page, int count)
+    {
+        if (page.nodesDone(count))
+        {
+            synchronized (this)
+            {
+                advance();
+            }
+        }
+    }
+
+    /**
+     * @return the position after the last page that is done along with all the pages before it, <tt>null</tt> if
+     *         there is none yet
+     */
+    public synchronized Long getCommittedPosition()
+    {
+        return committedPosition;
+    }
+
+    private void advance()
+    {
+        while (!pages.isEmpty() && pages.firstKey() == nextSeq && pages.firstEntry().getValue().isDone())
+        {
+            committedPosition = pages.pollFirstEntry().getValue().getPosition();
+            nextSeq++;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The unit of work handed to the <tt>BatchProcessor</tt>: the nodes processed together in one transaction.
+ * 
+ * @author Philippe
+ */
+public class CrawlBatch
+{
+    private final long id;
+    private final NodePage page;
+    private final long[] nodeIds;
+    private final Object[] affinityKeys;
+    private final int retries;
+    private volatile boolean committed = false;
+    private volatile Throwable error;
+    private final AtomicBoolean settled = new AtomicBoolean(false);
+    private final AtomicInteger attempts = new AtomicInteger(0);
+
+    /**
+     * @param page
+     *            the page the nodes were read from
+     * @param nodeIds
+     *            the database IDs of the nodes
+     */
+    public CrawlBatch(long id, NodePage page, long[] nodeIds)
+    {
+        this(id, page, nodeIds, null, 0);
+    }
+
+    /**
+     * @param affinityKeys
+     *            the {@link NodeAffinity affinity key} of each node, <tt>null</tt> if the crawl is not partitioned
+     * @param retries
+     *            the number of times the nodes were handed out again after failing on their own
+     */
+    public CrawlBatch(long id, NodePage page, long[] nodeIds, Object[] affinityKeys, int retries)
+    {
+        this.id = id;
+        this.page = page;
+        this.nodeIds = nodeIds;
+        this.affinityKeys = affinityKeys;
+        this.retries = retries;
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+
+    public NodePage getPage()
+    {
+        return page;
+    }
+
+    public long[] getNodeIds()
+    {
+        return nodeIds;
+    }
+
+    /**
+     * @return the IDs of the nodes, as the node DAO takes them
+     */
+    public List<Long> getNodeIdList()
+    {
+        List<Long> list = new ArrayList<Long>(nodeIds.length);
+        for (long nodeId : nodeIds)
+        {
+            list.add(nodeId);
+        }
+        return list;
+    }
+
+    /**
+     * @return the affinity key of each node, <tt>null</tt> if the crawl is not partitioned
+     */
+    public Object[] getAffinityKeys()
+    {
+        return affinityKeys;
+    }
+
+    public int getRetries()
+    {
+        return retries;
+    }
+
+    public int size()
+    {
+        return nodeIds.length;
+    }
+
+    public boolean isCommitted()
+    {
+        return committed;
+    }
+
+    void setCommitted()
+    {
+        this.committed = true;
+    }
+
+    /**
+     * @return the last error processing the batch, <tt>null</tt> if none was seen
+     */
+    public Throwable getError()
+    {
+        return error;
+    }
+
+    void setError(Throwable error)
+    {
+        this.error = error;
+    }
+
+    /**
+     * Count a transaction processing the batch.
+     * 
+     * @return the number of transactions that processed the batch, including this one
+     */
+    int attempt()
+    {
+        return attempts.incrementAndGet();
+    }
+
+    /**
+     * @return the number of transactions that processed the batch so far
+     */
+    public int getAttempts()
+    {
+        return attempts.get();
+    }
+
+    /**
+     * @return <tt>true</tt> the first time only, so that a batch is accounted for exactly once
+     */
+    boolean settle()
+    {
+        return settled.compareAndSet(false, true);
+    }
+
+    @Override
+    public String toString()
+    {
+        if (nodeIds.length == 1)
+        {
+            return "node-" + nodeIds[0];
+        }
+        return "batch-" + id + " (" + nodeIds.length + " nodes)";
+    }
+}
@@ -0,0 +1,125 @@
+package org.alfresco.crawler.demoamp;
+
+/**
+ * What a dry run of a crawl found: how many candidates the source has and what a node costs the processor, measured on
+ * a sample processed in transactions that were rolled back. The projections assume the processing scales with the
+ * threads and overlaps with the reading of the source, and leave the commits out.
+ *
+ * @author Philippe
+ */
+public class CrawlEstimate
+{
+    private final long candidates;
+    private final boolean exact;
+    private final int sampled;
+    private final int sampleFailures;
+    private final long nodeNanos;
+    private final long pageNanos;
+    private final int pageSize;
+    private final int fetcherThreads;
+    private final int threads;
+
+    /**
+     * @param candidates
+     *            the number of candidates of the source
+     * @param exact
+     *            <tt>false</tt> if <tt>candidates</tt> was extrapolated from the sample
+     * @param sampled
+     *            the number of sampled nodes processed and rolled back
+     * @param sampleFailures
+     *            the number of sampled nodes whose transaction failed
+     * @param nodeNanos
+     *            the average time to preload, filter and process one node
+     * @param pageNanos
+     *            the time to read one page of the source
+     */
+    public CrawlEstimate(long candidates, boolean exact, int sampled, int sampleFailures, long nodeNanos,
+            long pageNanos, int pageSize, int fetcherThreads, int threads)
+    {
+        this.candidates = candidates;
+        this.exact = exact;
+        this.sampled = sampled;
+        this.sampleFailures = sampleFailures;
+        this.nodeNanos = nodeNanos;
+        this.pageNanos = pageNanos;
+        this.pageSize = pageSize;
+        this.fetcherThreads = fetcherThreads;
+        this.threads = threads;
+    }
+
+    public long getCandidates()
+    {
+        return candidates;
+    }
+
+    /**
+     * @return <tt>true</tt> if the candidates were counted, <tt>false</tt> if their number was extrapolated from the
+     *         sample
+     */
+    public boolean isExact()
+    {
+        return exact;
+    }
+
+    public int getSampled()
+    {
+        return sampled;
+    }
+
+    public int getSampleFailures()
+    {
+        return sampleFailures;
+    }
+
+    /**
+     * @return the average milliseconds the processor spent on a sampled node, including the preload
+     */
+    public double getNodeMs()
+    {
+        return nodeNanos / 1000000.0;
+    }
+
+    /**
+     * @return the milliseconds it took to read one page of the source
+     */
+    public double getPageMs()
+    {
+        return pageNanos / 1000000.0;
+    }
+
+    /**
+     * @return the thread count the projection of {@link #getProjectedMs()} is for
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @return the projected duration of the crawl with the configured threads, in milliseconds
+     */
+    public long getProjectedMs()
+    {
+        return getProjectedMs(threads);
+    }
+
+    /**
+     * @return the projected duration of the crawl with <tt>threads</tt> worker threads, in milliseconds: whichever
+     *         takes longer of processing the candidates or reading them
+     */
+    public long getProjectedMs(int threads)
+    {
+        double processNanos = (double) candidates * nodeNanos / Math.max(1, threads);
+        long pages = (candidates + pageSize - 1) / Math.max(1, pageSize);
+        double fetchNanos = (double) pages * pageNanos / Math.max(1, fetcherThreads);
+        return (long) (Math.max(processNanos, fetchNanos) / 1000000.0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CrawlEstimate[" + (exact ? "" : "~") + candidates + " candidates, " + getNodeMs() + " ms/node over "
+                + sampled + " nodes (" + sampleFailures + " failed), " + getPageMs() + " ms/page, projected "
+                + getProjectedMs() + " ms with " + threads + " threads]";
+    }
+}
@@ -0,0 +1,149 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A crawl submitted to the {@link CrawlJobManager}, with the crawler running it and its progress.
+ * 
+ * @author Philippe
+ */
+public class CrawlJob
+{
+    public enum State
+    {
+        QUEUED, RUNNING, PAUSED, CANCELLING, COMPLETED, STOPPED, FAILED;
+
+        public boolean isFinished()
+        {
+            return this == COMPLETED || this == STOPPED || this == FAILED;
+        }
+    }
+
+    private final CrawlJobDefinition definition;
+    private final ParallelCrawler crawler;
+    private final Date submitted = new Date();
+    private volatile State state = State.QUEUED;
+    private volatile Date started;
+    private volatile Date ended;
+    private volatile String error;
+    private volatile CrawlEstimate estimate;
+
+    CrawlJob(CrawlJobDefinition definition, ParallelCrawler crawler)
+    {
+        this.definition = definition;
+        this.crawler = crawler;
+    }
+
+    public String getName()
+    {
+        return definition.getName();
+    }
+
+    public CrawlJobDefinition getDefinition()
+    {
+        return definition;
+    }
+
+    ParallelCrawler getCrawler()
+    {
+        return crawler;
+    }
+
+    /**
+     * @return the state of the job, {@link State#PAUSED} while it runs paused
+     */
+    public State getState()
+    {
+        State current = state;
+        if (current == State.RUNNING && crawler.isPaused())
+        {
+            return State.PAUSED;
+        }
+        return current;
+    }
+
+    void setState(State state)
+    {
+        this.state = state;
+    }
+
+    State getInternalState()
+    {
+        return state;
+    }
+
+    public Date getSubmitted()
+    {
+        return submitted;
+    }
+
+    public Date getStarted()
+    {
+        return started;
+    }
+
+    void setStarted(Date started)
+    {
+        this.started = started;
+    }
+
+    public Date getEnded()
+    {
+        return ended;
+    }
+
+    void setEnded(Date ended)
+    {
+        this.ended = ended;
+    }
+
+    /**
+     * @return the message of the error that ended the job, <tt>null</tt> if it did not fail
+     */
+    public String getError()
+    {
+        return error;
+    }
+
+    void setError(String error)
+    {
+        this.error = error;
+    }
+
+    /**
+     * @return the outcome of a dry run, <tt>null</tt> for a crawl or until the dry run is done
+     */
+    public CrawlEstimate getEstimate()
+    {
+        return estimate;
+    }
+
+    void setEstimate(CrawlEstimate estimate)
+    {
+        this.estimate = estimate;
+    }
+
+    public int getProcessedNodes()
+    {
+        AtomicInteger processed = crawler.getNumOfProcessedNodes();
+        return processed == null ? 0 : processed.get();
+    }
+
+    /**
+     * @return the milliseconds the job has been running for, or ran for
+     */
+    public long getElapsed()
+    {
+        return started == null ? 0 : crawler.getExecTimeMs();
+    }
+
+    /**
+     * @return the average nodes processed per second since the job started
+     */
+    public double getNodesPerSecond()
+    {
+        long elapsed = getElapsed();
+        return elapsed <= 0 ? 0 : getProcessedNodes() * 1000.0 / elapsed;
+    }
+}
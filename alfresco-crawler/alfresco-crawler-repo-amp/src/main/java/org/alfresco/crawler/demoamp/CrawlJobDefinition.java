@@ -0,0 +1,280 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.List;
+
+/**
+ * What to crawl and how, as submitted to the {@link CrawlJobManager}. The parameters left <tt>null</tt> keep the
+ * values configured on the crawler bean.
+ * 
+ * @author Philippe
+ */
+public class CrawlJobDefinition
+{
+    private String name;
+    private String query;
+    private ParallelCrawler.SourceType sourceType;
+    private String store;
+    private List<CrawlSource> sources;
+    private String nodeType;
+    private List<String> roots;
+    private String scriptName;
+    private String processor;
+    private String filter;
+    private String affinity;
+    private Integer threads;
+    private Integer pageSize;
+    private Integer batchSize;
+    private Integer weight;
+    private Boolean skipProcessed;
+    private boolean resume = false;
+    private boolean dryRun = false;
+    private Integer sampleSize;
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @param name
+     *            the name of the job, also the name its checkpoints are saved under
+     */
+    public void setName(String name)
+    {
+        this.name = name;
+    }
+
+    public String getQuery()
+    {
+        return query;
+    }
+
+    public void setQuery(String query)
+    {
+        this.query = query;
+    }
+
+    public ParallelCrawler.SourceType getSourceType()
+    {
+        return sourceType;
+    }
+
+    public void setSourceType(ParallelCrawler.SourceType sourceType)
+    {
+        this.sourceType = sourceType;
+    }
+
+    public String getStore()
+    {
+        return store;
+    }
+
+    public void setStore(String store)
+    {
+        this.store = store;
+    }
+
+    public List<CrawlSource> getSources()
+    {
+        return sources;
+    }
+
+    /**
+     * @param sources
+     *            the stores and queries crawled together, instead of the query on the store
+     */
+    public void setSources(List<CrawlSource> sources)
+    {
+        this.sources = sources;
+    }
+
+    public String getNodeType()
+    {
+        return nodeType;
+    }
+
+    public void setNodeType(String nodeType)
+    {
+        this.nodeType = nodeType;
+    }
+
+    public List<String> getRoots()
+    {
+        return roots;
+    }
+
+    /**
+     * @param roots
+     *            the node references of the folders a {@link ParallelCrawler.SourceType#SUBTREE} crawl walks
+     */
+    public void setRoots(List<String> roots)
+    {
+        this.roots = roots;
+    }
+
+    public String getScriptName()
+    {
+        return scriptName;
+    }
+
+    public void setScriptName(String scriptName)
+    {
+        this.scriptName = scriptName;
+    }
+
+    public String getProcessor()
+    {
+        return processor;
+    }
+
+    /**
+     * @param processor
+     *            the name of a {@link NodeProcessor} bean to run instead of the script
+     */
+    public void setProcessor(String processor)
+    {
+        this.processor = processor;
+    }
+
+    public String getFilter()
+    {
+        return filter;
+    }
+
+    /**
+     * @param filter
+     *            the name of a {@link NodePredicate} bean selecting the nodes to process
+     */
+    public void setFilter(String filter)
+    {
+        this.filter = filter;
+    }
+
+    public String getAffinity()
+    {
+        return affinity;
+    }
+
+    /**
+     * @param affinity
+     *            the name of a {@link NodeAffinity} bean grouping the nodes likely to conflict
+     */
+    public void setAffinity(String affinity)
+    {
+        this.affinity = affinity;
+    }
+
+    public Integer getThreads()
+    {
+        return threads;
+    }
+
+    public void setThreads(Integer threads)
+    {
+        this.threads = threads;
+    }
+
+    public Integer getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * @param pageSize
+     *            the nodes fetched per query page, see {@link ParallelCrawler#setBigPageLen(int)}
+     */
+    public void setPageSize(Integer pageSize)
+    {
+        this.pageSize = pageSize;
+    }
+
+    public Integer getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public void setBatchSize(Integer batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    public Integer getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * @param weight
+     *            the share of the worker budget taken by the job relative to the other running jobs
+     */
+    public void setWeight(Integer weight)
+    {
+        this.weight = weight;
+    }
+
+    public Boolean getSkipProcessed()
+    {
+        return skipProcessed;
+    }
+
+    /**
+     * @param skipProcessed
+     *            <tt>true</tt> to drop the nodes the job already processed, see
+     *            {@link ParallelCrawler#setSkipProcessed(boolean)}
+     */
+    public void setSkipProcessed(Boolean skipProcessed)
+    {
+        this.skipProcessed = skipProcessed;
+    }
+
+    public boolean isResume()
+    {
+        return resume;
+    }
+
+    /**
+     * @param resume
+     *            <tt>true</tt> to continue from the checkpoint of the job, if any
+     */
+    public void setResume(boolean resume)
+    {
+        this.resume = resume;
+    }
+
+    public boolean isDryRun()
+    {
+        return dryRun;
+    }
+
+    /**
+     * @param dryRun
+     *            <tt>true</tt> to only {@link ParallelCrawler#estimate() estimate} the crawl
+     */
+    public void setDryRun(boolean dryRun)
+    {
+        this.dryRun = dryRun;
+    }
+
+    public Integer getSampleSize()
+    {
+        return sampleSize;
+    }
+
+    /**
+     * @param sampleSize
+     *            the number of nodes a dry run processes and rolls back
+     */
+    public void setSampleSize(Integer sampleSize)
+    {
+        this.sampleSize = sampleSize;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CrawlJobDefinition [name=" + name + ", query=" + query + ", sourceType=" + sourceType + ", store=" + store
+                + ", sources=" + sources + ", roots=" + roots + ", processor=" + processor + ", filter=" + filter + ", affinity=" + affinity + ", threads=" + threads + ", pageSize="
+                + pageSize + ", batchSize=" + batchSize + ", weight=" + weight + ", skipProcessed=" + skipProcessed
+                + ", resume=" + resume + ", dryRun=" + dryRun + ", sampleSize=" + sampleSize + "]";
+    }
+}
@@ -0,0 +1,24 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Status and throughput of a crawl job: <tt>GET /crawler/jobs/{name}</tt>.
+ * 
+ * @author Philippe
+ */
+public class CrawlJobGet extends AbstractCrawlJobWebScript
+{
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache)
+    {
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("job", getJob(req));
+        return model;
+    }
+}
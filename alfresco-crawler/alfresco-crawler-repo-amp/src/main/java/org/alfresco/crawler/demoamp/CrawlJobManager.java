@@ -0,0 +1,392 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.alfresco.util.PropertyCheck;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+
+/**
+ * Runs crawls in the background so that they can be driven remotely, see the <tt>/crawler/jobs</tt> web scripts. Each
+ * job gets its own crawler, created from the prototype bean <tt>crawlerBeanName</tt>, with its own state and job lock,
+ * so that jobs with different names run at the same time. The crawlers share the {@link WorkerBudget} they are
+ * configured with, which keeps the running jobs from oversubscribing the repository.
+ * 
+ * @author Philippe
+ */
+public class CrawlJobManager implements BeanFactoryAware
+{
+    private static Log logger = LogFactory.getLog(CrawlJobManager.class);
+
+    private BeanFactory beanFactory;
+    private String crawlerBeanName;
+    private int maxFinishedJobs = 50;
+    private ExecutorService executor;
+    private final Map<String, CrawlJob> jobs = new LinkedHashMap<String, CrawlJob>();
+
+    public void setBeanFactory(BeanFactory beanFactory) throws BeansException
+    {
+        this.beanFactory = beanFactory;
+    }
+
+    /**
+     * @param crawlerBeanName
+     *            the name of a prototype {@link ParallelCrawler} bean
+     */
+    public void setCrawlerBeanName(String crawlerBeanName)
+    {
+        this.crawlerBeanName = crawlerBeanName;
+    }
+
+    /**
+     * @param maxFinishedJobs
+     *            the finished jobs kept for their status, the oldest are forgotten first
+     */
+    public void setMaxFinishedJobs(int maxFinishedJobs)
+    {
+        this.maxFinishedJobs = maxFinishedJobs;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "crawlerBeanName", crawlerBeanName);
+        executor = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "ParallelCrawler-jobs");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /**
+     * Cancel the jobs and stop running them, the running crawl saves its checkpoint.
+     */
+    public void destroy()
+    {
+        for (CrawlJob job : getJobs())
+        {
+            cancel(job.getName());
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Queue a crawl.
+     * 
+     * @throws IllegalArgumentException
+     *             if the definition is not valid
+     * @throws IllegalStateException
+     *             if a job with the same name is not finished
+     */
+    public CrawlJob submit(CrawlJobDefinition definition)
+    {
+        if (definition.getName() == null || definition.getName().length() == 0)
+        {
+            throw new IllegalArgumentException("A crawl job needs a name");
+        }
+        NodeProcessor processor = null;
+        if (definition.getProcessor() != null)
+        {
+            try
+            {
+                processor = beanFactory.getBean(definition.getProcessor(), NodeProcessor.class);
+            }
+            catch (BeansException e)
+            {
+                throw new IllegalArgumentException("No node processor " + definition.getProcessor(), e);
+            }
+        }
+        NodePredicate filter = null;
+        if (definition.getFilter() != null)
+        {
+            try
+            {
+                filter = beanFactory.getBean(definition.getFilter(), NodePredicate.class);
+            }
+            catch (BeansException e)
+            {
+                throw new IllegalArgumentException("No node filter " + definition.getFilter(), e);
+            }
+        }
+        NodeAffinity affinity = null;
+        if (definition.getAffinity() != null)
+        {
+            try
+            {
+                affinity = beanFactory.getBean(definition.getAffinity(), NodeAffinity.class);
+            }
+            catch (BeansException e)
+            {
+                throw new IllegalArgumentException("No node affinity " + definition.getAffinity(), e);
+            }
+        }
+        ParallelCrawler crawler = beanFactory.getBean(crawlerBeanName, ParallelCrawler.class);
+        crawler.setJobName(definition.getName());
+        if (definition.getQuery() != null)
+        {
+            crawler.setQuery(definition.getQuery());
+        }
+        if (definition.getSourceType() != null)
+        {
+            crawler.setSourceType(definition.getSourceType());
+        }
+        if (definition.getStore() != null)
+        {
+            crawler.setStore(definition.getStore());
+        }
+        if (definition.getSources() != null)
+        {
+            crawler.setSources(definition.getSources());
+        }
+        if (definition.getNodeType() != null)
+        {
+            crawler.setNodeType(definition.getNodeType());
+        }
+        if (definition.getRoots() != null)
+        {
+            crawler.setRoots(definition.getRoots());
+        }
+        if (definition.getScriptName() != null)
+        {
+            crawler.setScriptName(definition.getScriptName());
+        }
+        if (processor != null)
+        {
+            crawler.setProcessor(processor);
+        }
+        if (filter != null)
+        {
+            crawler.setFilter(filter);
+        }
+        if (affinity != null)
+        {
+            crawler.setAffinity(affinity);
+        }
+        if (definition.getThreads() != null)
+        {
+            crawler.setThreadNumber(definition.getThreads());
+        }
+        if (definition.getPageSize() != null)
+        {
+            crawler.setBigPageLen(definition.getPageSize());
+        }
+        if (definition.getBatchSize() != null)
+        {
+            crawler.setBatchSize(definition.getBatchSize());
+        }
+        if (definition.getWeight() != null)
+        {
+            crawler.setWeight(definition.getWeight());
+        }
+        if (definition.getSkipProcessed() != null)
+        {
+            crawler.setSkipProcessed(definition.getSkipProcessed());
+        }
+        if (definition.getSampleSize() != null)
+        {
+            crawler.setSampleSize(definition.getSampleSize());
+        }
+
+        final CrawlJob job = new CrawlJob(definition, crawler);
+        synchronized (jobs)
+        {
+            CrawlJob previous = jobs.get(job.getName());
+            if (previous != null && !previous.getInternalState().isFinished())
+            {
+                throw new IllegalStateException("The crawl job " + job.getName() + " is " + previous.getState());
+            }
+            jobs.remove(job.getName());
+            jobs.put(job.getName(), job);
+            forgetFinishedJobs();
+            executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        runJob(job);
+                    }
+                });
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Submitted " + definition);
+        }
+        return job;
+    }
+
+    private void runJob(CrawlJob job)
+    {
+        synchronized (jobs)
+        {
+            if (job.getInternalState() != CrawlJob.State.QUEUED)
+            {
+                // cancelled before it started
+                job.setState(CrawlJob.State.STOPPED);
+                job.setEnded(new Date());
+                return;
+            }
+            job.setStarted(new Date());
+            job.setState(CrawlJob.State.RUNNING);
+        }
+        CrawlJob.State state;
+        try
+        {
+            if (job.getDefinition().isDryRun())
+            {
+                job.setEstimate(job.getCrawler().estimate());
+                state = CrawlJob.State.COMPLETED;
+            }
+            else
+            {
+                state = crawl(job);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Crawl job " + job.getName() + " failed", e);
+            state = CrawlJob.State.FAILED;
+            job.setError(e.getMessage());
+        }
+        synchronized (jobs)
+        {
+            job.setEnded(new Date());
+            job.setState(state);
+        }
+    }
+
+    /**
+     * @return the state the job ended in
+     */
+    private CrawlJob.State crawl(CrawlJob job)
+    {
+        ParallelCrawler.Outcome outcome = job.getCrawler().execute(job.getDefinition().isResume());
+        switch (outcome)
+        {
+            case COMPLETED:
+                return CrawlJob.State.COMPLETED;
+            case FAILED:
+                Throwable error = job.getCrawler().getLastError();
+                job.setError(error == null ? null : error.getMessage());
+                return CrawlJob.State.FAILED;
+            case NOT_RUN:
+                job.setError("The crawl did not start, it is already running or the repository is read-only");
+                return CrawlJob.State.FAILED;
+            default:
+                return CrawlJob.State.STOPPED;
+        }
+    }
+
+    private void forgetFinishedJobs()
+    {
+        int finished = 0;
+        for (CrawlJob job : jobs.values())
+        {
+            if (job.getInternalState().isFinished())
+            {
+                finished++;
+            }
+        }
+        for (Iterator<CrawlJob> it = jobs.values().iterator(); it.hasNext() && finished > maxFinishedJobs;)
+        {
+            if (it.next().getInternalState().isFinished())
+            {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+
+    /**
+     * @return the job, <tt>null</tt> if unknown
+     */
+    public CrawlJob getJob(String name)
+    {
+        synchronized (jobs)
+        {
+            return jobs.get(name);
+        }
+    }
+
+    /**
+     * @return the jobs in the order they were submitted
+     */
+    public List<CrawlJob> getJobs()
+    {
+        synchronized (jobs)
+        {
+            return new ArrayList<CrawlJob>(jobs.values());
+        }
+    }
+
+    /**
+     * Stop handing out batches to the job, a queued job starts paused.
+     * 
+     * @return the job, <tt>null</tt> if unknown
+     */
+    public CrawlJob pause(String name)
+    {
+        CrawlJob job = getJob(name);
+        if (job != null)
+        {
+            job.getCrawler().pause();
+        }
+        return job;
+    }
+
+    /**
+     * @return the job, <tt>null</tt> if unknown
+     */
+    public CrawlJob resume(String name)
+    {
+        CrawlJob job = getJob(name);
+        if (job != null)
+        {
+            job.getCrawler().resume();
+        }
+        return job;
+    }
+
+    /**
+     * Cancel the job: a queued job does not start, a running one completes the batches in progress and saves its
+     * checkpoint, so that it can be submitted again with <tt>resume</tt>.
+     * 
+     * @return the job, <tt>null</tt> if unknown
+     */
+    public CrawlJob cancel(String name)
+    {
+        CrawlJob job = getJob(name);
+        if (job == null)
+        {
+            return null;
+        }
+        synchronized (jobs)
+        {
+            CrawlJob.State state = job.getInternalState();
+            if (state == CrawlJob.State.QUEUED)
+            {
+                job.setState(CrawlJob.State.CANCELLING);
+                return job;
+            }
+            if (state != CrawlJob.State.RUNNING)
+            {
+                return job;
+            }
+            job.setState(CrawlJob.State.CANCELLING);
+        }
+        job.getCrawler().cancel();
+        return job;
+    }
+}
@@ -0,0 +1,47 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Pauses, resumes or cancels a crawl job: <tt>POST /crawler/jobs/{name}/{action}</tt>, the action being
+ * <tt>pause</tt>, <tt>resume</tt> or <tt>cancel</tt>. Cancelling drains the batches in progress and saves the
+ * checkpoint of the job.
+ * 
+ * @author Philippe
+ */
+public class CrawlJobPost extends AbstractCrawlJobWebScript
+{
+    private static final String PARAM_ACTION = "action";
+
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache)
+    {
+        CrawlJob job = getJob(req);
+        String action = req.getServiceMatch().getTemplateVars().get(PARAM_ACTION);
+        if ("pause".equals(action))
+        {
+            jobManager.pause(job.getName());
+        }
+        else if ("resume".equals(action))
+        {
+            jobManager.resume(job.getName());
+        }
+        else if ("cancel".equals(action))
+        {
+            jobManager.cancel(job.getName());
+        }
+        else
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Unknown crawl job action " + action);
+        }
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("job", job);
+        return model;
+    }
+}
@@ -0,0 +1,24 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Lists the crawl jobs: <tt>GET /crawler/jobs</tt>.
+ * 
+ * @author Philippe
+ */
+public class CrawlJobsGet extends AbstractCrawlJobWebScript
+{
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache)
+    {
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("jobs", jobManager.getJobs());
+        return model;
+    }
+}
@@ -0,0 +1,144 @@
+package org.alfresco.crawler.demoamp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Submits a crawl job: <tt>POST /crawler/jobs</tt> with a JSON body such as
+ * 
+ * <pre>
+ * { "name": "fix-titles", "query": "TYPE:\"cm:content\"", "processor": "fixTitlesProcessor",
+ *   "filter": "untitledFilter", "affinity": "parallelCrawler.parentAffinity", "threads": 8, "pageSize": 20000,
+ *   "batchSize": 200, "weight": 2, "skipProcessed": true, "resume": true }
+ * </pre>
+ * 
+ * Only the name is required, see {@link CrawlJobDefinition}. The crawl runs in the background, the response is the
+ * status of the queued job. Several stores and queries are crawled together with
+ * <tt>"sources": [{ "store": "archive://SpacesStore", "query": "...", "weight": 2 }, ...]</tt>. A <tt>"SUBTREE"</tt>
+ * job walks the folders listed as <tt>"roots"</tt>. With <tt>"dryRun": true</tt> the job only estimates the crawl,
+ * processing <tt>"sampleSize"</tt> nodes in transactions that are rolled back, and the estimate is part of its status.
+ * 
+ * @author Philippe
+ */
+public class CrawlJobsPost extends AbstractCrawlJobWebScript
+{
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache)
+    {
+        CrawlJobDefinition definition;
+        try
+        {
+            definition = parseDefinition(new JSONObject(req.getContent().getContent()));
+        }
+        catch (JSONException e)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid crawl job: " + e.getMessage(), e);
+        }
+        catch (IOException e)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Unable to read the crawl job", e);
+        }
+
+        CrawlJob job;
+        try
+        {
+            job = jobManager.submit(definition);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, e.getMessage(), e);
+        }
+        catch (IllegalStateException e)
+        {
+            throw new WebScriptException(Status.STATUS_CONFLICT, e.getMessage(), e);
+        }
+        status.setCode(Status.STATUS_CREATED);
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("job", job);
+        return model;
+    }
+
+    private CrawlJobDefinition parseDefinition(JSONObject json) throws JSONException
+    {
+        CrawlJobDefinition definition = new CrawlJobDefinition();
+        definition.setName(json.getString("name"));
+        definition.setQuery(json.optString("query", null));
+        if (json.has("sourceType"))
+        {
+            try
+            {
+                definition.setSourceType(ParallelCrawler.SourceType.valueOf(json.getString("sourceType")));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new JSONException("Unknown sourceType " + json.getString("sourceType"));
+            }
+        }
+        definition.setStore(json.optString("store", null));
+        if (json.has("sources"))
+        {
+            JSONArray sourcesJson = json.getJSONArray("sources");
+            List<CrawlSource> sources = new ArrayList<CrawlSource>(sourcesJson.length());
+            for (int i = 0; i < sourcesJson.length(); i++)
+            {
+                JSONObject sourceJson = sourcesJson.getJSONObject(i);
+                sources.add(new CrawlSource(sourceJson.optString("store", "workspace://SpacesStore"),
+                        sourceJson.getString("query"), sourceJson.optInt("weight", 1)));
+            }
+            definition.setSources(sources);
+        }
+        definition.setNodeType(json.optString("nodeType", null));
+        if (json.has("roots"))
+        {
+            JSONArray rootsJson = json.getJSONArray("roots");
+            List<String> roots = new ArrayList<String>(rootsJson.length());
+            for (int i = 0; i < rootsJson.length(); i++)
+            {
+                roots.add(rootsJson.getString(i));
+            }
+            definition.setRoots(roots);
+        }
+        definition.setScriptName(json.optString("scriptName", null));
+        definition.setProcessor(json.optString("processor", null));
+        definition.setFilter(json.optString("filter", null));
+        definition.setAffinity(json.optString("affinity", null));
+        if (json.has("threads"))
+        {
+            definition.setThreads(json.getInt("threads"));
+        }
+        if (json.has("pageSize"))
+        {
+            definition.setPageSize(json.getInt("pageSize"));
+        }
+        if (json.has("batchSize"))
+        {
+            definition.setBatchSize(json.getInt("batchSize"));
+        }
+        if (json.has("weight"))
+        {
+            definition.setWeight(json.getInt("weight"));
+        }
+        if (json.has("skipProcessed"))
+        {
+            definition.setSkipProcessed(json.getBoolean("skipProcessed"));
+        }
+        definition.setResume(json.optBoolean("resume", false));
+        definition.setDryRun(json.optBoolean("dryRun", false));
+        if (json.has("sampleSize"))
+        {
+            definition.setSampleSize(json.getInt("sampleSize"));
+        }
+        return definition;
+    }
+}
@@ -0,0 +1,293 @@
+package org.alfresco.crawler.demoamp;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Counters and latency histograms of the stages of one crawl: page fetch, preload, processing and commit, plus the
+ * time each thread spent working. The metrics of a job are registered on the platform MBean server as
+ * <tt>org.alfresco.crawler:type=ParallelCrawler,name=&lt;jobName&gt;</tt> and stay there after the crawl, until the
+ * next run of the job replaces them.
+ * 
+ * @author Philippe
+ */
+public class CrawlMetrics implements CrawlMetricsMXBean
+{
+    private static Log logger = LogFactory.getLog(CrawlMetrics.class);
+
+    private final String jobName;
+    private final long startTime = System.currentTimeMillis();
+    private volatile long endTime = -1;
+
+    private final AtomicLong nodesProcessed = new AtomicLong();
+    private final AtomicLong nodesFiltered = new AtomicLong();
+    private final AtomicLong nodesRetried = new AtomicLong();
+    private final AtomicLong nodesDeadLettered = new AtomicLong();
+    private final AtomicLong batchesDeferred = new AtomicLong();
+    private final AtomicLong pagesFetched = new AtomicLong();
+    private final AtomicLong batchesCommitted = new AtomicLong();
+    private final AtomicLong batchesFailed = new AtomicLong();
+    private final AtomicLong transactionRetries = new AtomicLong();
+    private final LatencyHistogram fetchLatency = new LatencyHistogram();
+    private final LatencyHistogram preloadLatency = new LatencyHistogram();
+    private final LatencyHistogram processLatency = new LatencyHistogram();
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final ConcurrentMap<String, AtomicLong> threadBusyNanos = new ConcurrentHashMap<String, AtomicLong>();
+
+    private ObjectName objectName;
+
+    public CrawlMetrics(String jobName)
+    {
+        this.jobName = jobName;
+    }
+
+    /**
+     * Publish the metrics over JMX, replacing those of the previous run of the job. Failures are logged only.
+     */
+    public void register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("org.alfresco.crawler:type=ParallelCrawler,name="
+                    + ObjectName.quote(jobName));
+            if (server.isRegistered(objectName))
+            {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Unable to publish the metrics of " + jobName + " over JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Mark the crawl finished, the rates stop moving.
+     */
+    public void finished()
+    {
+        endTime = System.currentTimeMillis();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Crawl " + jobName + " metrics: " + nodesProcessed + " nodes, " + nodesFiltered
+                    + " filtered out, fetch " + getFetchLatency() + ", preload "
+                    + getPreloadLatency() + ", process " + getProcessLatency() + ", commit " + getCommitLatency());
+        }
+    }
+
+    void pageFetched(long startNanos)
+    {
+        fetchLatency.recordSince(startNanos);
+        pagesFetched.incrementAndGet();
+    }
+
+    void batchPreloaded(long startNanos)
+    {
+        preloadLatency.recordSince(startNanos);
+    }
+
+    void batchProcessed(long startNanos)
+    {
+        processLatency.recordSince(startNanos);
+    }
+
+    /**
+     * @param processed
+     *            the nodes of the batch the processor ran on
+     * @param commitNanos
+     *            the time the commit took
+     */
+    void batchCommitted(int processed, long commitNanos)
+    {
+        commitLatency.record(commitNanos);
+        batchesCommitted.incrementAndGet();
+        nodesProcessed.addAndGet(processed);
+    }
+
+    /**
+     * @param count
+     *            nodes of a committed batch skipped by the filter, they are not counted as processed
+     */
+    void nodesFiltered(int count)
+    {
+        nodesFiltered.addAndGet(count);
+    }
+
+    void nodeRetried()
+    {
+        nodesRetried.incrementAndGet();
+    }
+
+    void nodeDeadLettered()
+    {
+        nodesDeadLettered.incrementAndGet();
+    }
+
+    void batchDeferred()
+    {
+        batchesDeferred.incrementAndGet();
+    }
+
+    void batchFailed()
+    {
+        batchesFailed.incrementAndGet();
+    }
+
+    void transactionRetried()
+    {
+        transactionRetries.incrementAndGet();
+    }
+
+    /**
+     * Count the time the current thread spent working since <tt>startNanos</tt>.
+     */
+    void threadBusy(long startNanos)
+    {
+        String threadName = Thread.currentThread().getName();
+        AtomicLong busy = threadBusyNanos.get(threadName);
+        if (busy == null)
+        {
+            AtomicLong newBusy = new AtomicLong();
+            busy = threadBusyNanos.putIfAbsent(threadName, newBusy);
+            if (busy == null)
+            {
+                busy = newBusy;
+            }
+        }
+        busy.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public String getJobName()
+    {
+        return jobName;
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return endTime < 0;
+    }
+
+    @Override
+    public long getElapsedMs()
+    {
+        return (endTime < 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    @Override
+    public long getNodesProcessed()
+    {
+        return nodesProcessed.get();
+    }
+
+    @Override
+    public double getNodesPerSecond()
+    {
+        long elapsed = getElapsedMs();
+        return elapsed == 0 ? 0 : nodesProcessed.get() * 1000.0 / elapsed;
+    }
+
+    @Override
+    public long getNodesFiltered()
+    {
+        return nodesFiltered.get();
+    }
+
+    @Override
+    public long getNodesRetried()
+    {
+        return nodesRetried.get();
+    }
+
+    @Override
+    public long getNodesDeadLettered()
+    {
+        return nodesDeadLettered.get();
+    }
+
+    @Override
+    public long getPagesFetched()
+    {
+        return pagesFetched.get();
+    }
+
+    @Override
+    public long getBatchesCommitted()
+    {
+        return batchesCommitted.get();
+    }
+
+    @Override
+    public long getBatchesFailed()
+    {
+        return batchesFailed.get();
+    }
+
+    @Override
+    public long getTransactionRetries()
+    {
+        return transactionRetries.get();
+    }
+
+    @Override
+    public double getRetriesPerBatch()
+    {
+        long batches = batchesCommitted.get() + batchesFailed.get();
+        return batches == 0 ? 0 : transactionRetries.get() / (double) batches;
+    }
+
+    @Override
+    public long getBatchesDeferred()
+    {
+        return batchesDeferred.get();
+    }
+
+    @Override
+    public LatencySnapshot getFetchLatency()
+    {
+        return fetchLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getPreloadLatency()
+    {
+        return preloadLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getProcessLatency()
+    {
+        return processLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getCommitLatency()
+    {
+        return commitLatency.snapshot();
+    }
+
+    @Override
+    public Map<String, Double> getThreadUtilization()
+    {
+        double elapsedNanos = Math.max(1L, getElapsedMs()) * 1000000.0;
+        Map<String, Double> utilization = new TreeMap<String, Double>();
+        for (Map.Entry<String, AtomicLong> busy : threadBusyNanos.entrySet())
+        {
+            utilization.put(busy.getKey(), Math.min(1.0, busy.getValue().get() / elapsedNanos));
+        }
+        return utilization;
+    }
+}
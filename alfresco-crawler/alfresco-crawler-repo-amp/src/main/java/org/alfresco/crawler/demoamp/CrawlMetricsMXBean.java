@@ -0,0 +1,82 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.Map;
+
+/**
+ * The metrics of a crawl job published over JMX. The latencies are in milliseconds.
+ * 
+ * @author Philippe
+ */
+public interface CrawlMetricsMXBean
+{
+    String getJobName();
+
+    boolean isRunning();
+
+    long getElapsedMs();
+
+    /**
+     * @return the nodes the processor ran on in committed batches
+     */
+    long getNodesProcessed();
+
+    double getNodesPerSecond();
+
+    /**
+     * @return the nodes skipped by the filter of the crawl, without running the processor
+     */
+    long getNodesFiltered();
+
+    /**
+     * @return the retries of the nodes failing on their own
+     */
+    long getNodesRetried();
+
+    /**
+     * @return the nodes given up on, see {@link DeadLetterStore}
+     */
+    long getNodesDeadLettered();
+
+    long getPagesFetched();
+
+    long getBatchesCommitted();
+
+    long getBatchesFailed();
+
+    long getTransactionRetries();
+
+    /**
+     * @return the transaction retries per batch, what the conflicts between the workers cost
+     */
+    double getRetriesPerBatch();
+
+    /**
+     * @return the times a batch was held back because a batch with the same affinity key was in flight
+     */
+    long getBatchesDeferred();
+
+    /**
+     * @return reading a page from the source, query or node table walk
+     */
+    LatencySnapshot getFetchLatency();
+
+    /**
+     * @return bulk loading the metadata of a batch
+     */
+    LatencySnapshot getPreloadLatency();
+
+    /**
+     * @return running the script, action or processor on a batch
+     */
+    LatencySnapshot getProcessLatency();
+
+    /**
+     * @return committing the transaction of a batch
+     */
+    LatencySnapshot getCommitLatency();
+
+    /**
+     * @return the share of the elapsed time each thread spent working, by thread name
+     */
+    Map<String, Double> getThreadUtilization();
+}
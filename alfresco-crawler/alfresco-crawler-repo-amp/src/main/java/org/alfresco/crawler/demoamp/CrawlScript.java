@@ -0,0 +1,234 @@
+package org.alfresco.crawler.demoamp;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.jscript.Scopeable;
+import org.alfresco.repo.jscript.ScriptNode;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.ScriptLocation;
+import org.alfresco.service.cmr.repository.ScriptService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * Runs the crawl script straight through the script service rather than through the script action, which reloads and
+ * recompiles the script for every node.
+ * <p>
+ * The script is handed to the script service as a cachable location whose path is the script node, so the script
+ * processor compiles it once and keeps a single compiled form. {@link #refresh()} compares the content URL of the
+ * node with the one that was compiled once per transaction, which costs a cached property read, and resets the script
+ * processors when it changed so that the new content replaces the old entry.
+ * <p>
+ * The script gets the model the script action builds: <tt>person</tt> and <tt>userhome</tt> for the current user,
+ * <tt>companyhome</tt>, <tt>script</tt>, <tt>document</tt> and <tt>space</tt>, only <tt>action</tt> is missing.
+ * 
+ * @author Philippe
+ */
+public class CrawlScript
+{
+    private static Log logger = LogFactory.getLog(CrawlScript.class);
+
+    private final ServiceRegistry serviceRegistry;
+    private final ScriptService scriptService;
+    private final NodeService nodeService;
+    private final ContentService contentService;
+    private final NodeRef scriptRef;
+    private final NodeRef companyHome;
+    private final ContentScriptLocation location = new ContentScriptLocation();
+    // the content the script processor compiled, null until it reads the script
+    private volatile String compiledUrl;
+
+    /**
+     * @param scriptRef
+     *            the node holding the script
+     * @param companyHome
+     *            exposed to the script as <tt>companyhome</tt>
+     */
+    public CrawlScript(
+            ServiceRegistry serviceRegistry,
+            ScriptService scriptService,
+            NodeService nodeService,
+            ContentService contentService,
+            NodeRef scriptRef,
+            NodeRef companyHome)
+    {
+        this.serviceRegistry = serviceRegistry;
+        this.scriptService = scriptService;
+        this.nodeService = nodeService;
+        this.contentService = contentService;
+        this.scriptRef = scriptRef;
+        this.companyHome = companyHome;
+    }
+
+    public NodeRef getScriptRef()
+    {
+        return scriptRef;
+    }
+
+    /**
+     * Pick up a new version of the script, if its content changed since it was compiled. To be called in a
+     * transaction.
+     */
+    public void refresh()
+    {
+        ContentData content = (ContentData) nodeService.getProperty(scriptRef, ContentModel.PROP_CONTENT);
+        if (content == null || content.getContentUrl() == null)
+        {
+            throw new AlfrescoRuntimeException("Script " + scriptRef + " has no content");
+        }
+        String compiled = compiledUrl;
+        if (compiled != null && !compiled.equals(content.getContentUrl()))
+        {
+            if (logger.isInfoEnabled())
+            {
+                logger.info("Script " + scriptRef + " changed, it will be recompiled");
+            }
+            // the script processors cache by path and cannot drop a single entry
+            compiledUrl = null;
+            scriptService.resetScriptProcessors();
+        }
+    }
+
+    /**
+     * Run the script on one node, exposed as <tt>document</tt>, as the script action does.
+     */
+    public Object execute(NodeRef nodeRef)
+    {
+        NodeRef space = nodeRef;
+        if (!serviceRegistry.getDictionaryService().isSubClass(nodeService.getType(nodeRef), ContentModel.TYPE_FOLDER))
+        {
+            space = nodeService.getPrimaryParent(nodeRef).getParentRef();
+        }
+        return scriptService.executeScript(location, buildModel(nodeRef, space));
+    }
+
+    /**
+     * Run the script once for a whole batch, the nodes being exposed as the <tt>documents</tt> list, to be walked with
+     * <tt>documents.size()</tt> and <tt>documents.get(i)</tt>.
+     */
+    public Object execute(List<NodeRef> nodeRefs)
+    {
+        Map<String, Object> model = buildModel(null, null);
+        Documents documents = new Documents(nodeRefs.size());
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            documents.add(new ScriptNode(nodeRef, serviceRegistry));
+        }
+        model.put("documents", documents);
+        return scriptService.executeScript(location, model);
+    }
+
+    /**
+     * The model of the script action, for the user running the crawl.
+     */
+    private Map<String, Object> buildModel(NodeRef document, NodeRef space)
+    {
+        String userName = serviceRegistry.getAuthenticationService().getCurrentUserName();
+        NodeRef person = serviceRegistry.getPersonService().getPerson(userName);
+        NodeRef userHome = (NodeRef) nodeService.getProperty(person, ContentModel.PROP_HOMEFOLDER);
+        return scriptService.buildDefaultModel(person, companyHome, userHome, scriptRef, document, space);
+    }
+
+    /**
+     * The script processor only hands its scope to the top level objects of the model, this passes it on to the nodes.
+     */
+    private static class Documents extends ArrayList<ScriptNode> implements Scopeable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Documents(int size)
+        {
+            super(size);
+        }
+
+        @Override
+        public void setScope(Scriptable scope)
+        {
+            for (ScriptNode document : this)
+            {
+                document.setScope(scope);
+            }
+        }
+    }
+
+    /**
+     * The content of the script node, cachable under the path of the node.
+     */
+    private class ContentScriptLocation implements ScriptLocation
+    {
+        private final String path = "crawler:" + scriptRef;
+
+        @Override
+        public InputStream getInputStream()
+        {
+            return getContentReader().getContentInputStream();
+        }
+
+        @Override
+        public Reader getReader()
+        {
+            ContentReader reader = getContentReader();
+            try
+            {
+                return new InputStreamReader(reader.getContentInputStream(), reader.getEncoding());
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                throw new AlfrescoRuntimeException("Unsupported encoding of script " + scriptRef, e);
+            }
+        }
+
+        @Override
+        public String getPath()
+        {
+            return path;
+        }
+
+        @Override
+        public boolean isCachable()
+        {
+            return true;
+        }
+
+        /**
+         * Like the scripts run by the script action, the script is not trusted with the Java classes.
+         */
+        @Override
+        public boolean isSecure()
+        {
+            return false;
+        }
+
+        @Override
+        public String toString()
+        {
+            return path;
+        }
+
+        private ContentReader getContentReader()
+        {
+            ContentReader reader = contentService.getReader(scriptRef, ContentModel.PROP_CONTENT);
+            if (reader == null)
+            {
+                throw new AlfrescoRuntimeException("Script " + scriptRef + " has no content");
+            }
+            // only read to be compiled
+            compiledUrl = reader.getContentUrl();
+            return reader;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.alfresco.crawler.demoamp;
+
+/**
+ * One of the queries of a crawl over several stores or queries, see {@link ParallelCrawler#setSources(java.util.List)}.
+ *
+ * @author Philippe
+ */
+public class CrawlSource
+{
+    private String store = "workspace://SpacesStore";
+    private String query;
+    private int weight = 1;
+
+    public CrawlSource()
+    {
+    }
+
+    public CrawlSource(String store, String query, int weight)
+    {
+        this.store = store;
+        this.query = query;
+        this.weight = weight;
+    }
+
+    public String getStore()
+    {
+        return store;
+    }
+
+    /**
+     * @param store
+     *            the store the query runs against, <tt>workspace://SpacesStore</tt> by default
+     */
+    public void setStore(String store)
+    {
+        this.store = store;
+    }
+
+    public String getQuery()
+    {
+        return query;
+    }
+
+    /**
+     * @param query
+     *            the FTS query of the candidates
+     */
+    public void setQuery(String query)
+    {
+        this.query = query;
+    }
+
+    public int getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * @param weight
+     *            the share of the nodes fed to the workers the query gets while the other queries have candidates
+     *            left, relative to their weights; <tt>1</tt> by default
+     */
+    public void setWeight(int weight)
+    {
+        this.weight = weight;
+    }
+
+    @Override
+    public String toString()
+    {
+        return weight + "x " + store + " " + query;
+    }
+}
@@ -0,0 +1,180 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps a crawl from hurting the users of a live repository: the batches are handed to the workers at no more than
+ * <tt>nodesPerSecond</tt> nodes and <tt>transactionsPerSecond</tt> batches per second, limits that may differ by
+ * time of the day, and the crawl pauses while a {@link HealthCheck} fails.
+ * <p>
+ * The throttle is applied where the batches are handed out, outside of any transaction, so a throttled crawl holds
+ * no database connection while it waits.
+ * <p>
+ * The rates are those of one crawl: each crawl is throttled by a {@link #forCrawl(boolean) copy} with buckets of its
+ * own, so the crawls running at the same time share neither their limits nor the outcome of the health checks.
+ * 
+ * @author Philippe
+ */
+public class CrawlThrottle
+{
+    private static Log logger = LogFactory.getLog(CrawlThrottle.class);
+
+    private double nodesPerSecond = -1;
+    private double transactionsPerSecond = -1;
+    private List<ThrottleWindow> windows = Collections.emptyList();
+    private List<HealthCheck> healthChecks = Collections.emptyList();
+    private long healthCheckInterval = 5000;
+
+    private final TokenBucket nodeBucket = new TokenBucket(-1);
+    private final TokenBucket transactionBucket = new TokenBucket(-1);
+    private long lastHealthCheck = -1;
+    private String unhealthy;
+    private String pausedFor;
+
+    /**
+     * @param nodesPerSecond
+     *            the node rate outside of the windows, less than <tt>0</tt> for no limit
+     */
+    public void setNodesPerSecond(double nodesPerSecond)
+    {
+        this.nodesPerSecond = nodesPerSecond;
+    }
+
+    /**
+     * @param transactionsPerSecond
+     *            the transaction rate outside of the windows, less than <tt>0</tt> for no limit
+     */
+    public void setTransactionsPerSecond(double transactionsPerSecond)
+    {
+        this.transactionsPerSecond = transactionsPerSecond;
+    }
+
+    /**
+     * @param windows
+     *            the limits by time of the day, the first window containing the current time applies
+     */
+    public void setWindows(List<ThrottleWindow> windows)
+    {
+        this.windows = windows;
+    }
+
+    public void setHealthChecks(List<HealthCheck> healthChecks)
+    {
+        this.healthChecks = healthChecks;
+    }
+
+    /**
+     * @param healthCheckInterval
+     *            the number of milliseconds the outcome of the health checks is trusted for
+     */
+    public void setHealthCheckInterval(long healthCheckInterval)
+    {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    /**
+     * @param searching
+     *            <tt>true</tt> if the crawl queries the search index, the other crawls skip the
+     *            {@link HealthCheck#isSearchCheck() checks of the index}
+     * @return a throttle for one crawl, with the limits and the health checks of this one and buckets of its own
+     */
+    public CrawlThrottle forCrawl(boolean searching)
+    {
+        CrawlThrottle throttle = new CrawlThrottle();
+        throttle.nodesPerSecond = nodesPerSecond;
+        throttle.transactionsPerSecond = transactionsPerSecond;
+        throttle.windows = windows;
+        throttle.healthChecks = new ArrayList<HealthCheck>(healthChecks.size());
+        for (HealthCheck healthCheck : healthChecks)
+        {
+            if (searching || !healthCheck.isSearchCheck())
+            {
+                throttle.healthChecks.add(healthCheck);
+            }
+        }
+        throttle.healthCheckInterval = healthCheckInterval;
+        return throttle;
+    }
+
+    /**
+     * Take the permits to hand out a batch.
+     * 
+     * @param nodes
+     *            the number of nodes of the batch
+     * @return the number of milliseconds to wait before handing the batch out, <tt>-1</tt> if the crawl is paused
+     *         and nothing was taken
+     */
+    public long reserve(int nodes)
+    {
+        Calendar now = Calendar.getInstance();
+        return reserve(nodes, now.getTimeInMillis(), now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE));
+    }
+
+    /**
+     * @param now
+     *            the current time in milliseconds
+     * @param minuteOfDay
+     *            minutes since midnight
+     * @see #reserve(int)
+     */
+    public synchronized long reserve(int nodes, long now, int minuteOfDay)
+    {
+        ThrottleWindow window = null;
+        for (ThrottleWindow candidate : windows)
+        {
+            if (candidate.contains(minuteOfDay))
+            {
+                window = candidate;
+                break;
+            }
+        }
+        double nodeRate = window == null ? nodesPerSecond : window.getNodesPerSecond();
+        double transactionRate = window == null ? transactionsPerSecond : window.getTransactionsPerSecond();
+
+        String pause = nodeRate == 0 || transactionRate == 0 ? "window " + window : checkHealth(now);
+        if (pause == null ? pausedFor != null : !pause.equals(pausedFor))
+        {
+            logger.info(pause == null ? "Crawl resumed" : "Crawl paused: " + pause);
+            pausedFor = pause;
+        }
+        if (pause != null)
+        {
+            return -1;
+        }
+        nodeBucket.setRate(nodeRate);
+        transactionBucket.setRate(transactionRate);
+        return Math.max(nodeBucket.reserve(nodes, now), transactionBucket.reserve(1, now));
+    }
+
+    private String checkHealth(long now)
+    {
+        if (lastHealthCheck >= 0 && now - lastHealthCheck < healthCheckInterval)
+        {
+            return unhealthy;
+        }
+        lastHealthCheck = now;
+        unhealthy = null;
+        for (HealthCheck healthCheck : healthChecks)
+        {
+            try
+            {
+                unhealthy = healthCheck.check();
+            }
+            catch (Throwable e)
+            {
+                unhealthy = healthCheck + " failed: " + e.getMessage();
+            }
+            if (unhealthy != null)
+            {
+                break;
+            }
+        }
+        return unhealthy;
+    }
+}
@@ -0,0 +1,898 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.util.VmShutdownListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Streams the candidates of a {@link NodeSource} to the <tt>BatchProcessor</tt>.
+ * <p>
+ * A fetcher thread reads the source page by page and cuts the pages into {@link CrawlBatch batches} that are put on a
+ * bounded queue, so the next page is being queried while the workers drain the current one. The fetcher blocks as soon
+ * as the queue is full and {@link #getNextWork()} blocks while too many batches are in flight, so the heap used by a
+ * crawl depends on the queue depth rather than on the page size.
+ * <p>
+ * A batch that fails is split and its nodes are handed out again one by one, so that a single bad node does not fail
+ * its whole batch. A node that fails on its own is retried after an exponential backoff, between the healthy batches,
+ * and once out of retries it is recorded as a {@link DeadLetter}.
+ * <p>
+ * With a {@link NodeAffinity}, the nodes of a page sharing an affinity key are cut into the same batches, and a batch
+ * sharing a key with a batch in flight is held back until that batch is settled, so that related nodes are not
+ * processed by concurrent transactions. Nodes requeued after the last call to
+ * {@link #getNextWork()} are reported by {@link #hasRequeuedWork()} and must be drained by running the
+ * <tt>BatchProcessor</tt> again.
+ * 
+ * @author Philippe
+ */
+public class CrawlWorkProvider implements BatchProcessWorkProvider<CrawlBatch>
+{
+    private static Log logger = LogFactory.getLog(CrawlWorkProvider.class);
+
+    private static final CrawlBatch END_OF_SOURCE = new CrawlBatch(-1L, null, new long[0]);
+
+    private final NodeSource source;
+    private final CheckpointTracker checkpointTracker;
+    private final RetryingTransactionHelper retryingTransactionHelper;
+    private final VmShutdownListener vmShutdownListener;
+    private volatile int batchSize;
+    private final int maxInFlight;
+    private final int fetcherThreads;
+    private final AtomicInteger activeFetchers = new AtomicInteger(0);
+    private final BlockingQueue<CrawlBatch> queue;
+    private final Queue<CrawlBatch> requeued = new ConcurrentLinkedQueue<CrawlBatch>();
+    /** guarded by the lock */
+    private final PriorityQueue<DelayedBatch> retries = new PriorityQueue<DelayedBatch>();
+    /** batches held back by the affinity of their nodes, guarded by the lock */
+    private final List<CrawlBatch> deferred = new LinkedList<CrawlBatch>();
+    /** the number of batches in flight by affinity key, guarded by the lock */
+    private final Map<Object, Integer> busyKeys = new HashMap<Object, Integer>();
+    private final int maxDeferred;
+    private final AtomicLong nextBatchId = new AtomicLong(0);
+    private final Object lock = new Object();
+
+    private CrawlThrottle throttle;
+    private CrawlMetrics metrics;
+    private ProcessedNodeSet processedNodes;
+    private NodeAffinity affinity;
+    private WorkerGate workerGate;
+    private int maxRetries = 0;
+    private long retryDelay = 1000L;
+    private long maxRetryDelay = 60000L;
+    private DeadLetterStore deadLetterStore;
+    private String deadLetterName;
+    private boolean clearDeadLetters = false;
+    private List<Thread> fetchers;
+    private volatile boolean stopped = false;
+    private volatile boolean paused = false;
+    private volatile Throwable fetchError;
+    private volatile boolean sourceExhausted = false;
+    private boolean holdingBatch = false;
+    private int unsettled = 0;
+    private long issued = 0;
+
+    /**
+     * @param source
+     *            where the candidates come from
+     * @param checkpointTracker
+     *            told about the pages read and the nodes done with
+     * @param retryingTransactionHelper
+     *            used to wrap the page fetches in read-only transactions
+     * @param batchSize
+     *            the number of nodes processed in one transaction
+     * @param queueDepth
+     *            the number of batches the fetcher may read ahead
+     * @param maxInFlight
+     *            the number of batches that may be handed to the <tt>BatchProcessor</tt> and not yet be processed
+     * @param fetcherThreads
+     *            the number of threads reading the source, more than one only if the source is thread safe
+     * @param vmShutdownListener
+     *            stops the fetcher when the VM is shutting down
+     */
+    public CrawlWorkProvider(
+            NodeSource source,
+            CheckpointTracker checkpointTracker,
+            RetryingTransactionHelper retryingTransactionHelper,
+            int batchSize,
+            int queueDepth,
+            int maxInFlight,
+            int fetcherThreads,
+            VmShutdownListener vmShutdownListener)
+    {
+        this.source = source;
+        this.checkpointTracker = checkpointTracker;
+        this.retryingTransactionHelper = retryingTransactionHelper;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        this.fetcherThreads = Math.max(1, fetcherThreads);
+        this.queue = new ArrayBlockingQueue<CrawlBatch>(queueDepth);
+        this.maxDeferred = queueDepth;
+        this.vmShutdownListener = vmShutdownListener;
+    }
+
+    /**
+     * Start prefetching the source.
+     */
+    public synchronized void start()
+    {
+        if (fetchers != null)
+        {
+            throw new IllegalStateException("Work provider already started");
+        }
+        fetchers = new ArrayList<Thread>(fetcherThreads);
+        activeFetchers.set(fetcherThreads);
+        for (int i = 0; i < fetcherThreads; i++)
+        {
+            Thread fetcher = new Thread(new Fetcher(), "ParallelCrawler-fetcher-" + i);
+            fetcher.setDaemon(true);
+            fetchers.add(fetcher);
+            fetcher.start();
+        }
+    }
+
+    /**
+     * Stop prefetching and drop whatever has not been handed out yet.
+     */
+    public synchronized void stop()
+    {
+        stopped = true;
+        if (fetchers != null)
+        {
+            for (Thread fetcher : fetchers)
+            {
+                fetcher.interrupt();
+            }
+        }
+        queue.clear();
+        synchronized (lock)
+        {
+            deferred.clear();
+        }
+        if (workerGate != null)
+        {
+            workerGate.stop();
+        }
+    }
+
+    /**
+     * @param workerGate
+     *            the gate the workers wait in, stopped with the crawl so that none of them keeps waiting for a slot
+     */
+    public void setWorkerGate(WorkerGate workerGate)
+    {
+        this.workerGate = workerGate;
+    }
+
+    /**
+     * @param batchSize
+     *            the number of nodes of the batches cut from the next pages
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param throttle
+     *            limits the rate the batches are handed out at, may be <tt>null</tt>
+     */
+    public void setThrottle(CrawlThrottle throttle)
+    {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @param metrics
+     *            told about the pages fetched, may be <tt>null</tt>
+     */
+    public void setMetrics(CrawlMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param processedNodes
+     *            the nodes to drop from the pages before they are batched, the nodes of the committed batches are
+     *            added to it, may be <tt>null</tt>
+     */
+    public void setProcessedNodes(ProcessedNodeSet processedNodes)
+    {
+        this.processedNodes = processedNodes;
+    }
+
+    /**
+     * @param affinity
+     *            groups the nodes likely to conflict, <tt>null</tt> to batch the nodes in the order of the source
+     */
+    public void setAffinity(NodeAffinity affinity)
+    {
+        this.affinity = affinity;
+    }
+
+    /**
+     * @param maxRetries
+     *            the number of times a node failing on its own is handed out again before it is given up on
+     * @param retryDelay
+     *            the milliseconds before the first retry of a node, doubled for each following retry
+     * @param maxRetryDelay
+     *            the longest milliseconds between two retries of a node
+     */
+    public void setRetries(int maxRetries, long retryDelay, long maxRetryDelay)
+    {
+        this.maxRetries = maxRetries;
+        this.retryDelay = retryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+    /**
+     * @param deadLetterStore
+     *            where the nodes given up on are recorded, <tt>null</tt> to only log them
+     * @param jobName
+     *            the job the dead letters are recorded for
+     * @param clearOnCommit
+     *            <tt>true</tt> to remove the committed nodes from the dead letters, when crawling them again
+     */
+    public void setDeadLetters(DeadLetterStore deadLetterStore, String jobName, boolean clearOnCommit)
+    {
+        this.deadLetterStore = deadLetterStore;
+        this.deadLetterName = jobName;
+        this.clearDeadLetters = clearOnCommit;
+    }
+
+    /**
+     * @param paused
+     *            <tt>true</tt> to stop handing out batches, the batches in progress complete
+     */
+    public void setPaused(boolean paused)
+    {
+        this.paused = paused;
+    }
+
+    /**
+     * @return <tt>true</tt> if the crawl was stopped before the end of the source
+     */
+    public boolean isStopped()
+    {
+        return stopped;
+    }
+
+    /**
+     * @return the error that ended the fetching of the source early, or <tt>null</tt>
+     */
+    public Throwable getFetchError()
+    {
+        return fetchError;
+    }
+
+    /**
+     * @return <tt>true</tt> if nodes were requeued after the <tt>BatchProcessor</tt> stopped asking for work
+     */
+    public boolean hasRequeuedWork()
+    {
+        synchronized (lock)
+        {
+            holdingBatch = false;
+            return (!requeued.isEmpty() || !retries.isEmpty() || !deferred.isEmpty()) && !stopped;
+        }
+    }
+
+    @Override
+    public int getTotalEstimatedWorkSize()
+    {
+        synchronized (lock)
+        {
+            return (int) Math.min(Integer.MAX_VALUE, issued + queue.size() + requeued.size() + retries.size()
+                    + deferred.size());
+        }
+    }
+
+    @Override
+    public Collection<CrawlBatch> getNextWork()
+    {
+        try
+        {
+            synchronized (lock)
+            {
+                // The BatchProcessor asks for more work before submitting the last batch it got, so that batch does
+                // not count against the in-flight limit
+                while (pending() >= maxInFlight && !stopped)
+                {
+                    lock.wait(1000L);
+                }
+            }
+            while (!stopped)
+            {
+                if (paused)
+                {
+                    Thread.sleep(1000L);
+                    continue;
+                }
+                CrawlBatch batch;
+                synchronized (lock)
+                {
+                    batch = pollDeferred();
+                    if (batch == null && deferred.size() >= maxDeferred)
+                    {
+                        // wait for the batches in flight to release their keys
+                        lock.wait(1000L);
+                        continue;
+                    }
+                }
+                if (batch == null)
+                {
+                    batch = requeued.poll();
+                }
+                if (batch == null)
+                {
+                    batch = pollRetry();
+                }
+                if (batch == null && !sourceExhausted)
+                {
+                    batch = queue.poll(1000L, TimeUnit.MILLISECONDS);
+                    if (batch == END_OF_SOURCE)
+                    {
+                        sourceExhausted = true;
+                        continue;
+                    }
+                }
+                if (batch != null && !claimKeys(batch))
+                {
+                    continue;
+                }
+                if (batch != null)
+                {
+                    if (throttle != null && !awaitThrottle(batch))
+                    {
+                        break;
+                    }
+                    return Collections.singletonList(issue(batch));
+                }
+                synchronized (lock)
+                {
+                    if (sourceExhausted && requeued.isEmpty())
+                    {
+                        // failing batches are requeued, so wait for the in-flight batches and the retries before
+                        // ending
+                        if (pending() == 0 && retries.isEmpty() && deferred.isEmpty())
+                        {
+                            holdingBatch = false;
+                            return Collections.emptyList();
+                        }
+                        lock.wait(1000L);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock)
+        {
+            holdingBatch = false;
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Must be called with the lock held.
+     * 
+     * @return the first held back batch whose keys are free, <tt>null</tt> if there is none
+     */
+    private CrawlBatch pollDeferred()
+    {
+        for (Iterator<CrawlBatch> it = deferred.iterator(); it.hasNext();)
+        {
+            CrawlBatch batch = it.next();
+            if (!isBusy(batch))
+            {
+                it.remove();
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Mark the keys of a batch busy until it is settled, or hold it back if one of them is already busy.
+     * 
+     * @return <tt>true</tt> if the batch can be handed out
+     */
+    private boolean claimKeys(CrawlBatch batch)
+    {
+        if (batch.getAffinityKeys() == null)
+        {
+            return true;
+        }
+        synchronized (lock)
+        {
+            if (isBusy(batch))
+            {
+                deferred.add(batch);
+                if (metrics != null)
+                {
+                    metrics.batchDeferred();
+                }
+                return false;
+            }
+            for (Object key : batch.getAffinityKeys())
+            {
+                if (key != null)
+                {
+                    Integer count = busyKeys.get(key);
+                    busyKeys.put(key, count == null ? 1 : count + 1);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private boolean isBusy(CrawlBatch batch)
+    {
+        // the batch the BatchProcessor holds only runs once it gets the next one, it must not hold that one back
+        if (batch.getAffinityKeys() == null || pending() == 0)
+        {
+            return false;
+        }
+        for (Object key : batch.getAffinityKeys())
+        {
+            if (key != null && busyKeys.containsKey(key))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void releaseKeys(CrawlBatch batch)
+    {
+        if (batch.getAffinityKeys() == null)
+        {
+            return;
+        }
+        for (Object key : batch.getAffinityKeys())
+        {
+            Integer count = key == null ? null : busyKeys.get(key);
+            if (count != null)
+            {
+                if (count == 1)
+                {
+                    busyKeys.remove(key);
+                }
+                else
+                {
+                    busyKeys.put(key, count - 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the first retry that is due, <tt>null</tt> if there is none
+     */
+    private CrawlBatch pollRetry()
+    {
+        synchronized (lock)
+        {
+            DelayedBatch retry = retries.peek();
+            if (retry == null || retry.due > System.currentTimeMillis())
+            {
+                return null;
+            }
+            return retries.poll().batch;
+        }
+    }
+
+    /**
+     * Account for a batch once the <tt>BatchProcessor</tt> is done with it. A batch that was not committed is split
+     * and its nodes requeued one by one; a single node that was not committed is retried later, or given up on once
+     * out of retries.
+     * 
+     * @return <tt>true</tt> if this call settled the batch, <tt>false</tt> if it had already been settled
+     */
+    public boolean settle(CrawlBatch batch)
+    {
+        if (!batch.settle())
+        {
+            return false;
+        }
+        if (batch.isCommitted() && processedNodes != null)
+        {
+            processedNodes.addAll(batch.getNodeIds());
+        }
+        if (batch.isCommitted() && clearDeadLetters)
+        {
+            removeDeadLetters(batch);
+        }
+        if (batch.isCommitted())
+        {
+            checkpointTracker.nodesDone(batch.getPage(), batch.size());
+        }
+        else if (batch.size() == 1 && batch.getRetries() >= maxRetries)
+        {
+            addDeadLetter(batch);
+            checkpointTracker.nodesDone(batch.getPage(), batch.size());
+        }
+        else if (batch.size() == 1 && !stopped)
+        {
+            long delay = Math.min(maxRetryDelay, retryDelay << Math.min(batch.getRetries(), 30));
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Retrying failed " + batch + " in " + delay + " ms");
+            }
+            if (metrics != null)
+            {
+                metrics.nodeRetried();
+            }
+            CrawlBatch retry = new CrawlBatch(nextBatchId.getAndIncrement(), batch.getPage(), batch.getNodeIds(),
+                    batch.getAffinityKeys(), batch.getRetries() + 1);
+            synchronized (lock)
+            {
+                retries.add(new DelayedBatch(retry, System.currentTimeMillis() + delay));
+            }
+        }
+        else if (!stopped)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Splitting failed " + batch);
+            }
+            long[] nodeIds = batch.getNodeIds();
+            Object[] keys = batch.getAffinityKeys();
+            for (int i = 0; i < nodeIds.length; i++)
+            {
+                requeued.add(new CrawlBatch(nextBatchId.getAndIncrement(), batch.getPage(), new long[] { nodeIds[i] },
+                        keys == null ? null : new Object[] { keys[i] }, 0));
+            }
+        }
+        synchronized (lock)
+        {
+            releaseKeys(batch);
+            unsettled--;
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Account for a batch the crawl was stopped before processing: it is neither retried nor given up on, its nodes
+     * are not done and a resumed crawl reads them again.
+     */
+    public void drop(CrawlBatch batch)
+    {
+        if (!batch.settle())
+        {
+            return;
+        }
+        synchronized (lock)
+        {
+            releaseKeys(batch);
+            unsettled--;
+            lock.notifyAll();
+        }
+    }
+
+    private void addDeadLetter(CrawlBatch batch)
+    {
+        long nodeId = batch.getNodeIds()[0];
+        Throwable error = batch.getError();
+        String message = error == null ? null : error.toString();
+        logger.warn("Giving up on node " + nodeId + " after " + batch.getRetries() + " retries: " + message);
+        if (metrics != null)
+        {
+            metrics.nodeDeadLettered();
+        }
+        if (deadLetterStore == null)
+        {
+            return;
+        }
+        try
+        {
+            deadLetterStore.add(deadLetterName, new DeadLetter(nodeId, message, System.currentTimeMillis(),
+                    batch.getRetries()));
+        }
+        catch (Throwable e)
+        {
+            logger.error("Unable to record the dead letter of node " + nodeId, e);
+        }
+    }
+
+    private void removeDeadLetters(CrawlBatch batch)
+    {
+        try
+        {
+            deadLetterStore.remove(deadLetterName, batch.getNodeIds());
+        }
+        catch (Throwable e)
+        {
+            logger.warn("Unable to remove the dead letters of " + batch + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Wait for the throttle to let the batch through.
+     * 
+     * @return <tt>false</tt> if the crawl was stopped meanwhile
+     */
+    private boolean awaitThrottle(CrawlBatch batch) throws InterruptedException
+    {
+        long wait;
+        while ((wait = throttle.reserve(batch.size())) < 0)
+        {
+            if (stopped || vmShutdownListener.isVmShuttingDown())
+            {
+                return false;
+            }
+            // paused
+            Thread.sleep(1000L);
+        }
+        long deadline = System.currentTimeMillis() + wait;
+        for (long left = wait; left > 0; left = deadline - System.currentTimeMillis())
+        {
+            if (stopped || vmShutdownListener.isVmShuttingDown())
+            {
+                return false;
+            }
+            Thread.sleep(Math.min(left, 1000L));
+        }
+        return true;
+    }
+
+    private CrawlBatch issue(CrawlBatch batch)
+    {
+        synchronized (lock)
+        {
+            unsettled++;
+            issued++;
+            holdingBatch = true;
+            return batch;
+        }
+    }
+
+    private int pending()
+    {
+        return holdingBatch ? unsettled - 1 : unsettled;
+    }
+
+    /**
+     * A node waiting for its retry.
+     */
+    private static class DelayedBatch implements Comparable<DelayedBatch>
+    {
+        private final CrawlBatch batch;
+        private final long due;
+
+        private DelayedBatch(CrawlBatch batch, long due)
+        {
+            this.batch = batch;
+            this.due = due;
+        }
+
+        @Override
+        public int compareTo(DelayedBatch other)
+        {
+            return due < other.due ? -1 : (due == other.due ? 0 : 1);
+        }
+    }
+
+    /**
+     * Reads the source page by page and queues its batches. The last fetcher to finish marks the end of the source.
+     */
+    private class Fetcher implements Runnable
+    {
+        private final RetryingTransactionCallback<NodePage> fetchPage = new RetryingTransactionCallback<NodePage>()
+            {
+                public NodePage execute() throws Throwable
+                {
+                    NodePage page = source.nextPage();
+                    if (page != null && processedNodes != null)
+                    {
+                        // repeat work is dropped before it costs a transaction
+                        page = new NodePage(page.getSeq(), page.getPosition(),
+                                processedNodes.filter(page.getNodeIds()));
+                    }
+                    if (page != null && affinity != null)
+                    {
+                        page = partition(page);
+                    }
+                    return page;
+                }
+            };
+
+        public void run()
+        {
+            AuthenticationUtil.runAsSystem(new RunAsWork<Void>()
+                {
+                    public Void doWork() throws Exception
+                    {
+                        fetch();
+                        return null;
+                    }
+                });
+        }
+
+        private void fetch()
+        {
+            try
+            {
+                while (!stopped && fetchError == null && !vmShutdownListener.isVmShuttingDown())
+                {
+                    long fetchStart = System.nanoTime();
+                    NodePage page = retryingTransactionHelper.doInTransaction(fetchPage, true, true);
+                    if (metrics != null)
+                    {
+                        metrics.pageFetched(fetchStart);
+                        metrics.threadBusy(fetchStart);
+                    }
+                    if (page == null)
+                    {
+                        break;
+                    }
+                    checkpointTracker.pageFetched(page);
+                    long[] pageNodeIds = page.getNodeIds();
+                    Object[] pageKeys = page.getAffinityKeys();
+                    int start = 0;
+                    while (start < pageNodeIds.length && !stopped)
+                    {
+                        // the batch size may be adjusted while the crawl runs
+                        int end = Math.min(start + batchSize, pageNodeIds.length);
+                        if (pageKeys != null)
+                        {
+                            end = groupEnd(pageKeys, start, end);
+                        }
+                        long[] nodeIds = Arrays.copyOfRange(pageNodeIds, start, end);
+                        Object[] keys = pageKeys == null ? null : Arrays.copyOfRange(pageKeys, start, end);
+                        queue.put(new CrawlBatch(nextBatchId.getAndIncrement(), page, nodeIds, keys, 0));
+                        start = end;
+                    }
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("Fetched " + pageNodeIds.length + " nodes from " + source);
+                    }
+                    if (source instanceof TrackingSource)
+                    {
+                        // caught up, outside of the fetch transaction
+                        long pollDelay = ((TrackingSource) source).getPollDelay();
+                        if (pollDelay > 0)
+                        {
+                            Thread.sleep(pollDelay);
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // stopped
+            }
+            catch (Throwable e)
+            {
+                if (stopped)
+                {
+                    // interrupted by the stop while the source was waiting, the crawl is over anyway
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("Fetcher of " + source + " stopped: " + e);
+                    }
+                }
+                else
+                {
+                    logger.error("Unable to fetch the next page from " + source, e);
+                    fetchError = e;
+                }
+            }
+            finally
+            {
+                if (vmShutdownListener.isVmShuttingDown())
+                {
+                    // let the workers waiting for a slot go as well
+                    stop();
+                }
+                if (activeFetchers.decrementAndGet() == 0)
+                {
+                    markEndOfSource();
+                }
+            }
+        }
+
+        /**
+         * @return the page with the nodes sharing an affinity key next to each other, in the order the keys first
+         *         appear
+         */
+        private NodePage partition(NodePage page)
+        {
+            long[] nodeIds = page.getNodeIds();
+            Object[] keys = affinity.getAffinityKeys(nodeIds);
+            Map<Object, List<Integer>> groups = new LinkedHashMap<Object, List<Integer>>();
+            List<Integer> unkeyed = new ArrayList<Integer>();
+            for (int i = 0; i < nodeIds.length; i++)
+            {
+                if (keys[i] == null)
+                {
+                    unkeyed.add(i);
+                    continue;
+                }
+                List<Integer> group = groups.get(keys[i]);
+                if (group == null)
+                {
+                    group = new ArrayList<Integer>();
+                    groups.put(keys[i], group);
+                }
+                group.add(i);
+            }
+            long[] groupedIds = new long[nodeIds.length];
+            Object[] groupedKeys = new Object[nodeIds.length];
+            int next = 0;
+            for (List<Integer> group : groups.values())
+            {
+                for (int i : group)
+                {
+                    groupedIds[next] = nodeIds[i];
+                    groupedKeys[next++] = keys[i];
+                }
+            }
+            for (int i : unkeyed)
+            {
+                groupedIds[next++] = nodeIds[i];
+            }
+            return new NodePage(page.getSeq(), page.getPosition(), groupedIds, groupedKeys);
+        }
+
+        /**
+         * @return where to end the batch starting at <tt>start</tt> so that it does not cut a group of nodes sharing a
+         *         key, unless the group is larger than a batch
+         */
+        private int groupEnd(Object[] keys, int start, int end)
+        {
+            int cut = end;
+            while (cut > start && cut < keys.length && keys[cut] != null && keys[cut].equals(keys[cut - 1]))
+            {
+                cut--;
+            }
+            return cut > start ? cut : end;
+        }
+
+        private void markEndOfSource()
+        {
+            try
+            {
+                while (!stopped && !queue.offer(END_OF_SOURCE, 1000L, TimeUnit.MILLISECONDS))
+                {
+                    // the consumer is still draining the queue
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // stopped
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.alfresco.crawler.demoamp;
+
+import javax.sql.DataSource;
+
+import org.alfresco.util.PropertyCheck;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Fails while too many of the connections of the repository pool are in use, the crawl would take the last ones from
+ * the interactive users.
+ * 
+ * @author Philippe
+ */
+public class DataSourceHealthCheck implements HealthCheck
+{
+    private static Log logger = LogFactory.getLog(DataSourceHealthCheck.class);
+
+    private DataSource dataSource;
+    private double maxUsage = 0.8;
+
+    public void setDataSource(DataSource dataSource)
+    {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * @param maxUsage
+     *            the share of the pool in use above which the check fails
+     */
+    public void setMaxUsage(double maxUsage)
+    {
+        this.maxUsage = maxUsage;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "dataSource", dataSource);
+        if (!(dataSource instanceof BasicDataSource))
+        {
+            logger.warn("Unable to watch the usage of " + dataSource + ", it is not a DBCP pool");
+        }
+    }
+
+    @Override
+    public String check()
+    {
+        if (!(dataSource instanceof BasicDataSource))
+        {
+            return null;
+        }
+        BasicDataSource pool = (BasicDataSource) dataSource;
+        int maxActive = pool.getMaxActive();
+        if (maxActive <= 0)
+        {
+            // unbounded pool
+            return null;
+        }
+        int active = pool.getNumActive();
+        if (active > maxActive * maxUsage)
+        {
+            return active + " of " + maxActive + " database connections in use";
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isSearchCheck()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,81 @@
+package org.alfresco.crawler.demoamp;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A node a crawl gave up on after retrying it, as kept by the {@link DeadLetterStore}.
+ * 
+ * @author Philippe
+ */
+public class DeadLetter
+{
+    private static final String ERROR = "error";
+    private static final String TIME = "time";
+    private static final String RETRIES = "retries";
+
+    private final long nodeId;
+    private final String error;
+    private final long time;
+    private final int retries;
+
+    /**
+     * @param nodeId
+     *            the database ID of the node
+     * @param error
+     *            the message of the last failure, <tt>null</tt> if the batch failed to commit
+     * @param time
+     *            when the crawl gave up on the node
+     * @param retries
+     *            the number of times the node was retried on its own
+     */
+    public DeadLetter(long nodeId, String error, long time, int retries)
+    {
+        this.nodeId = nodeId;
+        this.error = error;
+        this.time = time;
+        this.retries = retries;
+    }
+
+    public long getNodeId()
+    {
+        return nodeId;
+    }
+
+    public String getError()
+    {
+        return error;
+    }
+
+    public Date getTime()
+    {
+        return new Date(time);
+    }
+
+    public int getRetries()
+    {
+        return retries;
+    }
+
+    public HashMap<String, Serializable> toMap()
+    {
+        HashMap<String, Serializable> map = new HashMap<String, Serializable>();
+        map.put(ERROR, error);
+        map.put(TIME, time);
+        map.put(RETRIES, retries);
+        return map;
+    }
+
+    public static DeadLetter fromMap(long nodeId, Map<String, Serializable> map)
+    {
+        return new DeadLetter(nodeId, (String) map.get(ERROR), (Long) map.get(TIME), (Integer) map.get(RETRIES));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DeadLetter [nodeId=" + nodeId + ", retries=" + retries + ", error=" + error + "]";
+    }
+}
@@ -0,0 +1,76 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The nodes a job gave up on, read back from the {@link DeadLetterStore} in node ID order, so that they can be crawled
+ * again on their own once the cause of their failure is fixed. The list is read once when the crawl starts.
+ * 
+ * @author Philippe
+ */
+public class DeadLetterSource implements NodeSource
+{
+    private final DeadLetterStore deadLetterStore;
+    private final String jobName;
+    private final int pageSize;
+    private long[] nodeIds;
+    private int next = 0;
+    private long nextSeq = 0;
+    private long startAfter = -1L;
+
+    /**
+     * @param jobName
+     *            the job whose dead letters are crawled
+     * @param pageSize
+     *            the number of nodes per page
+     */
+    public DeadLetterSource(DeadLetterStore deadLetterStore, String jobName, int pageSize)
+    {
+        this.deadLetterStore = deadLetterStore;
+        this.jobName = jobName;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public synchronized NodePage nextPage()
+    {
+        if (nodeIds == null)
+        {
+            List<DeadLetter> deadLetters = deadLetterStore.list(jobName, -1);
+            nodeIds = new long[deadLetters.size()];
+            int count = 0;
+            for (DeadLetter deadLetter : deadLetters)
+            {
+                if (deadLetter.getNodeId() > startAfter)
+                {
+                    nodeIds[count++] = deadLetter.getNodeId();
+                }
+            }
+            nodeIds = Arrays.copyOf(nodeIds, count);
+        }
+        if (next >= nodeIds.length)
+        {
+            return null;
+        }
+        int end = Math.min(next + pageSize, nodeIds.length);
+        long[] page = Arrays.copyOfRange(nodeIds, next, end);
+        next = end;
+        return new NodePage(nextSeq++, page[page.length - 1], page);
+    }
+
+    /**
+     * The position is the last node ID of a page, the dead letters are sorted by node ID.
+     */
+    @Override
+    public synchronized void restore(long position)
+    {
+        startAfter = position;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DeadLetterSource [jobName=" + jobName + "]";
+    }
+}
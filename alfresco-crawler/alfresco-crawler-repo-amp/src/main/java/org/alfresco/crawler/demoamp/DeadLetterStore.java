@@ -0,0 +1,131 @@
+package org.alfresco.crawler.demoamp;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.PropertyCheck;
+
+/**
+ * Persists the nodes the crawl jobs gave up on with the attribute service, one attribute per node, so that they can
+ * be listed and crawled again on their own with {@link ParallelCrawler.SourceType#DEAD_LETTERS}. Each call runs in its
+ * own transaction.
+ * 
+ * @author Philippe
+ */
+public class DeadLetterStore
+{
+    private static final String KEY_APPLICATION = "ParallelCrawler.deadLetters";
+
+    private AttributeService attributeService;
+    private TransactionService transactionService;
+
+    public void setAttributeService(AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "attributeService", attributeService);
+        PropertyCheck.mandatory(this, "transactionService", transactionService);
+    }
+
+    /**
+     * Record a node the job gave up on, replacing the previous record of the node.
+     */
+    public void add(final String jobName, final DeadLetter deadLetter)
+    {
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    attributeService.setAttribute(deadLetter.toMap(), KEY_APPLICATION, jobName,
+                            deadLetter.getNodeId());
+                    return null;
+                }
+            }, false, true);
+    }
+
+    /**
+     * Forget the nodes that were processed after all.
+     */
+    public void remove(final String jobName, final long[] nodeIds)
+    {
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    for (long nodeId : nodeIds)
+                    {
+                        attributeService.removeAttribute(KEY_APPLICATION, jobName, nodeId);
+                    }
+                    return null;
+                }
+            }, false, true);
+    }
+
+    /**
+     * @param maxItems
+     *            the most dead letters to return, <tt>-1</tt> for all
+     * @return the dead letters of the job by node ID
+     */
+    public List<DeadLetter> list(final String jobName, final int maxItems)
+    {
+        List<DeadLetter> deadLetters = transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<List<DeadLetter>>()
+                    {
+                        public List<DeadLetter> execute() throws Throwable
+                        {
+                            final List<DeadLetter> deadLetters = new ArrayList<DeadLetter>();
+                            attributeService.getAttributes(new AttributeQueryCallback()
+                                {
+                                    @SuppressWarnings("unchecked")
+                                    public boolean handleAttribute(Long id, Serializable value, Serializable[] keys)
+                                    {
+                                        deadLetters.add(DeadLetter.fromMap((Long) keys[2],
+                                                (Map<String, Serializable>) value));
+                                        return true;
+                                    }
+                                }, KEY_APPLICATION, jobName);
+                            return deadLetters;
+                        }
+                    }, true, true);
+        Collections.sort(deadLetters, new Comparator<DeadLetter>()
+            {
+                public int compare(DeadLetter o1, DeadLetter o2)
+                {
+                    return o1.getNodeId() < o2.getNodeId() ? -1 : (o1.getNodeId() == o2.getNodeId() ? 0 : 1);
+                }
+            });
+        if (maxItems >= 0 && deadLetters.size() > maxItems)
+        {
+            return new ArrayList<DeadLetter>(deadLetters.subList(0, maxItems));
+        }
+        return deadLetters;
+    }
+
+    public void clear(final String jobName)
+    {
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    attributeService.removeAttributes(KEY_APPLICATION, jobName);
+                    return null;
+                }
+            }, false, true);
+    }
+}
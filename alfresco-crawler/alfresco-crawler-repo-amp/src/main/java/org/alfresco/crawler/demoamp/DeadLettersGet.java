@@ -0,0 +1,58 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.util.PropertyCheck;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Lists the nodes a crawl job gave up on: <tt>GET /crawler/jobs/{name}/deadletters?maxItems=100</tt>. The dead letters
+ * outlive the job, it does not need to be known to the job manager. Submit a job of the same name with the
+ * <tt>DEAD_LETTERS</tt> source type to crawl them again.
+ * 
+ * @author Philippe
+ */
+public class DeadLettersGet extends DeclarativeWebScript
+{
+    private static final int DEFAULT_MAX_ITEMS = 100;
+
+    private DeadLetterStore deadLetterStore;
+
+    public void setDeadLetterStore(DeadLetterStore deadLetterStore)
+    {
+        this.deadLetterStore = deadLetterStore;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "deadLetterStore", deadLetterStore);
+    }
+
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache)
+    {
+        String name = req.getServiceMatch().getTemplateVars().get("name");
+        int maxItems = DEFAULT_MAX_ITEMS;
+        String maxItemsParam = req.getParameter("maxItems");
+        if (maxItemsParam != null)
+        {
+            try
+            {
+                maxItems = Integer.parseInt(maxItemsParam);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid maxItems " + maxItemsParam);
+            }
+        }
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("name", name);
+        model.put("deadLetters", deadLetterStore.list(name, maxItems));
+        return model;
+    }
+}
@@ -0,0 +1,19 @@
+package org.alfresco.crawler.demoamp;
+
+/**
+ * A signal of the load of the repository, the crawl pauses while a check fails.
+ * 
+ * @author Philippe
+ */
+public interface HealthCheck
+{
+    /**
+     * @return why the repository is too busy for the crawl, <tt>null</tt> if it is not
+     */
+    String check();
+
+    /**
+     * @return <tt>true</tt> if the check times the search index, the crawls that do not query it do not wait for it
+     */
+    boolean isSearchCheck();
+}
@@ -0,0 +1,69 @@
+package org.alfresco.crawler.demoamp;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How far the repository had got when an incremental crawl started: the next run of the job only visits the nodes
+ * changed after it. The search source compares <tt>cm:modified</tt> with the time, the database source the
+ * transaction of the last change of the nodes with the transaction ID.
+ * 
+ * @author Philippe
+ */
+public class HighWaterMark
+{
+    private static final String TIME = "time";
+    private static final String TXN_ID = "txnId";
+
+    private final long time;
+    private final Long txnId;
+
+    /**
+     * @param time
+     *            the nodes modified from this time on have changed
+     * @param txnId
+     *            the nodes last changed by a later transaction have changed, <tt>null</tt> if unknown
+     */
+    public HighWaterMark(long time, Long txnId)
+    {
+        this.time = time;
+        this.txnId = txnId;
+    }
+
+    public long getTime()
+    {
+        return time;
+    }
+
+    public Long getTxnId()
+    {
+        return txnId;
+    }
+
+    public HashMap<String, Serializable> toMap()
+    {
+        HashMap<String, Serializable> map = new HashMap<String, Serializable>();
+        map.put(TIME, time);
+        map.put(TXN_ID, txnId);
+        return map;
+    }
+
+    /**
+     * @return the mark saved with {@link #toMap()}, <tt>null</tt> if there is none
+     */
+    public static HighWaterMark fromMap(Map<String, Serializable> map)
+    {
+        if (map == null)
+        {
+            return null;
+        }
+        return new HighWaterMark((Long) map.get(TIME), (Long) map.get(TXN_ID));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HighWaterMark[time " + time + ", txn " + txnId + "]";
+    }
+}
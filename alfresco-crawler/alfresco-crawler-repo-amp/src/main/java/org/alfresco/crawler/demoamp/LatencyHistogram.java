@@ -0,0 +1,84 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram with power of two buckets in microseconds, cheap enough to record every batch. The
+ * percentiles are the upper bounds of their buckets, so they are exact within a factor of two.
+ * 
+ * @author Philippe
+ */
+public class LatencyHistogram
+{
+    // up to 2^40 microseconds, about 12 days
+    private static final int BUCKETS = 41;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos
+     *            the duration to record, in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        long micros = Math.max(0L, nanos / 1000L);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long currentMax;
+        while (micros > (currentMax = max.get()) && !max.compareAndSet(currentMax, micros))
+        {
+            // raced with another thread
+        }
+    }
+
+    /**
+     * Record the time elapsed since <tt>startNanos</tt>.
+     */
+    public void recordSince(long startNanos)
+    {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public LatencySnapshot snapshot()
+    {
+        long[] counts = new long[BUCKETS];
+        long snapshotCount = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = buckets.get(i);
+            snapshotCount += counts[i];
+        }
+        double mean = snapshotCount == 0 ? 0 : total.get() / 1000.0 / snapshotCount;
+        return new LatencySnapshot(snapshotCount, mean, percentile(counts, snapshotCount, 0.5), percentile(counts,
+                snapshotCount, 0.95), percentile(counts, snapshotCount, 0.99), max.get() / 1000.0);
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the percentile, in milliseconds
+     */
+    private static double percentile(long[] counts, long total, double quantile)
+    {
+        if (total == 0)
+        {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * quantile);
+        long cumulated = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            cumulated += counts[i];
+            if (cumulated >= rank)
+            {
+                // bucket i holds [2^(i-1), 2^i[ microseconds
+                return (1L << i) / 1000.0;
+            }
+        }
+        return (1L << (counts.length - 1)) / 1000.0;
+    }
+}
@@ -0,0 +1,66 @@
+package org.alfresco.crawler.demoamp;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The state of a {@link LatencyHistogram} at a point in time, in milliseconds. Published over JMX as composite data.
+ * 
+ * @author Philippe
+ */
+public class LatencySnapshot
+{
+    private final long count;
+    private final double mean;
+    private final double p50;
+    private final double p95;
+    private final double p99;
+    private final double max;
+
+    @ConstructorProperties({ "count", "mean", "p50", "p95", "p99", "max" })
+    public LatencySnapshot(long count, double mean, double p50, double p95, double p99, double max)
+    {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p95 = p95;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    public double getMean()
+    {
+        return mean;
+    }
+
+    public double getP50()
+    {
+        return p50;
+    }
+
+    public double getP95()
+    {
+        return p95;
+    }
+
+    public double getP99()
+    {
+        return p99;
+    }
+
+    public double getMax()
+    {
+        return max;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("count=%d mean=%.1fms p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms", count, mean, p50,
+                p95, p99, max);
+    }
+}
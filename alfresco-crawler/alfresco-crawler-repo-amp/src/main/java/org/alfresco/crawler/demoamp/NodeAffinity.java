@@ -0,0 +1,21 @@
+package org.alfresco.crawler.demoamp;
+
+/**
+ * Tells which nodes are likely to conflict when processed by concurrent transactions, e.g. because the processor
+ * updates their common parent. The {@link CrawlWorkProvider} keeps the nodes sharing an affinity key in the same
+ * batches and never hands out two batches with a common key at the same time, so they do not collide and cost
+ * transaction retries.
+ * 
+ * @author Philippe
+ */
+public interface NodeAffinity
+{
+    /**
+     * Called by the fetcher threads in the read-only transaction of the page, as the system user.
+     * 
+     * @param nodeIds
+     *            the database IDs of the nodes of a page
+     * @return the key of each node in the same order, <tt>null</tt> for a node that conflicts with none
+     */
+    Object[] getAffinityKeys(long[] nodeIds);
+}
@@ -0,0 +1,155 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.util.Pair;
+
+/**
+ * Walks the node ID space straight from the node tables, without going through the search subsystem, so the crawl
+ * does not depend on the index being up to date.
+ * <p>
+ * The ID space is cut into ranges of <tt>rangeSize</tt> IDs which are claimed atomically, so several fetcher threads
+ * may walk the source concurrently. Each range is bulk loaded into the node caches and filtered by store, type and
+ * aspects.
+ * 
+ * @author Philippe
+ */
+public class NodeIdRangeSource implements NodeSource
+{
+    private final NodeDAO nodeDAO;
+    private final StoreRef storeRef;
+    private final NodeTypeFilter filter;
+    private final int rangeSize;
+    private final AtomicLong nextRangeStart;
+    private final AtomicLong nextSeq = new AtomicLong(0);
+    private final Long fromNodeId;
+    private final Long toNodeId;
+    private volatile long maxNodeId = -1L;
+
+    /**
+     * @param storeRef
+     *            the store the nodes must be in
+     * @param filter
+     *            the type and aspects the nodes must match
+     * @param rangeSize
+     *            the number of node IDs claimed at a time
+     */
+    public NodeIdRangeSource(NodeDAO nodeDAO, StoreRef storeRef, NodeTypeFilter filter, int rangeSize)
+    {
+        this(nodeDAO, storeRef, filter, rangeSize, null, null);
+    }
+
+    /**
+     * @param fromNodeId
+     *            the lowest node ID to walk, <tt>null</tt> to start from the lowest ID in the database
+     * @param toNodeId
+     *            the highest node ID to walk, <tt>null</tt> to stop at the highest ID in the database
+     */
+    public NodeIdRangeSource(
+            NodeDAO nodeDAO,
+            StoreRef storeRef,
+            NodeTypeFilter filter,
+            int rangeSize,
+            Long fromNodeId,
+            Long toNodeId)
+    {
+        this.nodeDAO = nodeDAO;
+        this.storeRef = storeRef;
+        this.filter = filter;
+        this.rangeSize = rangeSize;
+        this.fromNodeId = fromNodeId;
+        this.toNodeId = toNodeId;
+        this.nextRangeStart = new AtomicLong(-1L);
+    }
+
+    /**
+     * A page holds the matching nodes of one range and may be empty.
+     */
+    @Override
+    public NodePage nextPage()
+    {
+        initBounds();
+        long rangeStart;
+        long seq;
+        synchronized (this)
+        {
+            // the sequence must follow the ID order
+            rangeStart = nextRangeStart.getAndAdd(rangeSize);
+            if (rangeStart > maxNodeId)
+            {
+                return null;
+            }
+            seq = nextSeq.getAndIncrement();
+        }
+        long rangeEnd = Math.min(rangeStart + rangeSize, maxNodeId + 1);
+        return new NodePage(seq, rangeEnd, loadRange(rangeStart, rangeEnd));
+    }
+
+    /**
+     * @param position
+     *            the first node ID not walked yet
+     */
+    @Override
+    public void restore(long position)
+    {
+        nextRangeStart.set(position);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "NodeIdRangeSource[" + storeRef + ", " + filter + ", next id " + nextRangeStart.get() + " of "
+                + maxNodeId + "]";
+    }
+
+    /**
+     * The upper bound is read once, nodes created during the crawl are not visited.
+     */
+    private synchronized void initBounds()
+    {
+        if (maxNodeId >= 0)
+        {
+            return;
+        }
+        Long minId = fromNodeId != null ? fromNodeId : nodeDAO.getMinNodeId();
+        Long maxId = toNodeId != null ? toNodeId : nodeDAO.getMaxNodeId();
+        nextRangeStart.compareAndSet(-1L, minId == null ? 0L : minId);
+        maxNodeId = maxId == null ? 0L : maxId;
+    }
+
+    /**
+     * @return the IDs of the matching nodes in [<tt>fromId</tt>, <tt>toId</tt>[, in ID order
+     */
+    private long[] loadRange(long fromId, long toId)
+    {
+        List<Long> nodeIds = new ArrayList<Long>((int) (toId - fromId));
+        for (long nodeId = fromId; nodeId < toId; nodeId++)
+        {
+            nodeIds.add(nodeId);
+        }
+        nodeDAO.cacheNodesById(nodeIds);
+
+        long[] page = new long[nodeIds.size()];
+        int count = 0;
+        for (Long nodeId : nodeIds)
+        {
+            Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(nodeId);
+            if (nodePair == null || !storeRef.equals(nodePair.getSecond().getStoreRef()))
+            {
+                // gap in the ID space, deleted node or other store
+                continue;
+            }
+            if (filter.accept(nodeId))
+            {
+                page[count++] = nodeId;
+            }
+        }
+        return Arrays.copyOf(page, count);
+    }
+}
@@ -0,0 +1,322 @@
+package org.alfresco.crawler.demoamp;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.ISO8601DateFormat;
+import org.alfresco.util.PropertyCheck;
+
+/**
+ * A {@link NodePredicate} on the type, aspects, property values, dates, mimetype and size of the nodes, read from the
+ * node DAO caches. The conditions left unset always match, the node must match all the others.
+ * 
+ * @author Philippe
+ */
+public class NodeMetadataPredicate implements NodePredicate
+{
+    private NodeDAO nodeDAO;
+    private NamespaceService namespaceService;
+    private DictionaryService dictionaryService;
+    private List<String> types;
+    private List<String> aspects;
+    private List<String> excludedAspects;
+    private Map<String, String> properties;
+    private String dateProperty = "cm:modified";
+    private String minDate;
+    private String maxDate;
+    private String contentProperty = "cm:content";
+    private List<String> mimetypes;
+    private long minSize = -1;
+    private long maxSize = -1;
+
+    private Set<QName> typeQNames;
+    private Set<QName> aspectQNames;
+    private Set<QName> excludedAspectQNames;
+    private Map<QName, String> propertyValues;
+    private QName datePropertyQName;
+    private Date minDateValue;
+    private Date maxDateValue;
+    private QName contentPropertyQName;
+    private Set<String> mimetypeSet;
+
+    public void setNodeDAO(NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    public void setNamespaceService(NamespaceService namespaceService)
+    {
+        this.namespaceService = namespaceService;
+    }
+
+    /**
+     * @param dictionaryService
+     *            tells the subtypes apart, mandatory with <tt>types</tt>
+     */
+    public void setDictionaryService(DictionaryService dictionaryService)
+    {
+        this.dictionaryService = dictionaryService;
+    }
+
+    /**
+     * @param types
+     *            prefixed names of the types the nodes must be of one of, subtypes included
+     */
+    public void setTypes(List<String> types)
+    {
+        this.types = types;
+    }
+
+    /**
+     * @param aspects
+     *            prefixed names of the aspects the nodes must all have
+     */
+    public void setAspects(List<String> aspects)
+    {
+        this.aspects = aspects;
+    }
+
+    /**
+     * @param excludedAspects
+     *            prefixed names of the aspects the nodes must not have, e.g. the aspect the processor adds
+     */
+    public void setExcludedAspects(List<String> excludedAspects)
+    {
+        this.excludedAspects = excludedAspects;
+    }
+
+    /**
+     * @param properties
+     *            the values the properties must have by prefixed name, compared with the value converted to a string
+     */
+    public void setProperties(Map<String, String> properties)
+    {
+        this.properties = properties;
+    }
+
+    /**
+     * @param dateProperty
+     *            prefixed name of the date property compared with <tt>minDate</tt> and <tt>maxDate</tt>,
+     *            <tt>cm:modified</tt> by default
+     */
+    public void setDateProperty(String dateProperty)
+    {
+        this.dateProperty = dateProperty;
+    }
+
+    /**
+     * @param minDate
+     *            the earliest date in ISO 8601 format, e.g. <tt>2016-01-01T00:00:00.000Z</tt>, <tt>null</tt> for no
+     *            limit
+     */
+    public void setMinDate(String minDate)
+    {
+        this.minDate = minDate;
+    }
+
+    /**
+     * @param maxDate
+     *            the latest date in ISO 8601 format, <tt>null</tt> for no limit
+     */
+    public void setMaxDate(String maxDate)
+    {
+        this.maxDate = maxDate;
+    }
+
+    /**
+     * @param contentProperty
+     *            prefixed name of the content property the mimetype and the size are read from, <tt>cm:content</tt>
+     *            by default
+     */
+    public void setContentProperty(String contentProperty)
+    {
+        this.contentProperty = contentProperty;
+    }
+
+    /**
+     * @param mimetypes
+     *            the mimetypes the content must have one of
+     */
+    public void setMimetypes(List<String> mimetypes)
+    {
+        this.mimetypes = mimetypes;
+    }
+
+    /**
+     * @param minSize
+     *            the smallest content size in bytes, <tt>-1</tt> for no limit
+     */
+    public void setMinSize(long minSize)
+    {
+        this.minSize = minSize;
+    }
+
+    /**
+     * @param maxSize
+     *            the largest content size in bytes, <tt>-1</tt> for no limit
+     */
+    public void setMaxSize(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "nodeDAO", nodeDAO);
+        PropertyCheck.mandatory(this, "namespaceService", namespaceService);
+        if (types != null)
+        {
+            PropertyCheck.mandatory(this, "dictionaryService", dictionaryService);
+        }
+        typeQNames = createQNames(types);
+        aspectQNames = createQNames(aspects);
+        excludedAspectQNames = createQNames(excludedAspects);
+        propertyValues = new HashMap<QName, String>();
+        if (properties != null)
+        {
+            for (Map.Entry<String, String> property : properties.entrySet())
+            {
+                propertyValues.put(QName.createQName(property.getKey(), namespaceService), property.getValue());
+            }
+        }
+        datePropertyQName = dateProperty == null ? ContentModel.PROP_MODIFIED : QName.createQName(dateProperty,
+                namespaceService);
+        minDateValue = minDate == null ? null : ISO8601DateFormat.parse(minDate);
+        maxDateValue = maxDate == null ? null : ISO8601DateFormat.parse(maxDate);
+        contentPropertyQName = contentProperty == null ? ContentModel.PROP_CONTENT : QName.createQName(
+                contentProperty, namespaceService);
+        mimetypeSet = mimetypes == null ? Collections.<String> emptySet() : new HashSet<String>(mimetypes);
+    }
+
+    private Set<QName> createQNames(List<String> names)
+    {
+        Set<QName> qnames = new HashSet<QName>();
+        if (names != null)
+        {
+            for (String name : names)
+            {
+                qnames.add(QName.createQName(name, namespaceService));
+            }
+        }
+        return qnames;
+    }
+
+    @Override
+    public boolean accept(Long nodeId, NodeRef nodeRef)
+    {
+        if (!typeQNames.isEmpty() && !acceptType(nodeDAO.getNodeType(nodeId)))
+        {
+            return false;
+        }
+        if (!aspectQNames.isEmpty() || !excludedAspectQNames.isEmpty())
+        {
+            Set<QName> nodeAspects = nodeDAO.getNodeAspects(nodeId);
+            if (!nodeAspects.containsAll(aspectQNames) || !Collections.disjoint(nodeAspects, excludedAspectQNames))
+            {
+                return false;
+            }
+        }
+        for (Map.Entry<QName, String> property : propertyValues.entrySet())
+        {
+            Serializable value = nodeDAO.getNodeProperty(nodeId, property.getKey());
+            if (!property.getValue().equals(DefaultTypeConverter.INSTANCE.convert(String.class, value)))
+            {
+                return false;
+            }
+        }
+        if (minDateValue != null || maxDateValue != null)
+        {
+            Serializable value = nodeDAO.getNodeProperty(nodeId, datePropertyQName);
+            if (!(value instanceof Date))
+            {
+                return false;
+            }
+            Date date = (Date) value;
+            if ((minDateValue != null && date.before(minDateValue))
+                    || (maxDateValue != null && date.after(maxDateValue)))
+            {
+                return false;
+            }
+        }
+        if (!mimetypeSet.isEmpty() || minSize >= 0 || maxSize >= 0)
+        {
+            Serializable value = nodeDAO.getNodeProperty(nodeId, contentPropertyQName);
+            if (!(value instanceof ContentData))
+            {
+                return false;
+            }
+            ContentData content = (ContentData) value;
+            if (!mimetypeSet.isEmpty() && !mimetypeSet.contains(content.getMimetype()))
+            {
+                return false;
+            }
+            if ((minSize >= 0 && content.getSize() < minSize) || (maxSize >= 0 && content.getSize() > maxSize))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean acceptType(QName type)
+    {
+        for (QName typeQName : typeQNames)
+        {
+            if (type.equals(typeQName) || dictionaryService.isSubClass(type, typeQName))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        List<String> conditions = new ArrayList<String>();
+        if (types != null)
+        {
+            conditions.add("types " + types);
+        }
+        if (aspects != null)
+        {
+            conditions.add("aspects " + aspects);
+        }
+        if (excludedAspects != null)
+        {
+            conditions.add("not aspects " + excludedAspects);
+        }
+        if (properties != null)
+        {
+            conditions.add("properties " + properties);
+        }
+        if (minDate != null || maxDate != null)
+        {
+            conditions.add(dateProperty + " " + minDate + ".." + maxDate);
+        }
+        if (mimetypes != null)
+        {
+            conditions.add("mimetypes " + mimetypes);
+        }
+        if (minSize >= 0 || maxSize >= 0)
+        {
+            conditions.add("size " + minSize + ".." + maxSize);
+        }
+        return "NodeMetadataPredicate" + conditions;
+    }
+}
@@ -0,0 +1,87 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A page of candidates read from a {@link NodeSource}, with the position of the source just after it. The nodes are
+ * held as their database IDs, a page of tens of thousands of nodes only costs a few hundred KB; the workers turn them
+ * into <tt>NodeRef</tt>s in the transaction that processes them.
+ * 
+ * @author Philippe
+ */
+public class NodePage
+{
+    private final long seq;
+    private final long position;
+    private final long[] nodeIds;
+    private final Object[] affinityKeys;
+    private final AtomicInteger remaining;
+
+    /**
+     * @param seq
+     *            the rank of the page in the source, <tt>0</tt> for the first page read by a run and without gaps
+     * @param position
+     *            the position to {@link NodeSource#restore(long) restore} the source to in order to resume after the
+     *            page
+     * @param nodeIds
+     *            the database IDs of the nodes of the page, possibly none
+     */
+    public NodePage(long seq, long position, long[] nodeIds)
+    {
+        this(seq, position, nodeIds, null);
+    }
+
+    /**
+     * @param affinityKeys
+     *            the {@link NodeAffinity affinity key} of each node, the nodes sharing a key next to each other
+     */
+    public NodePage(long seq, long position, long[] nodeIds, Object[] affinityKeys)
+    {
+        this.seq = seq;
+        this.position = position;
+        this.nodeIds = nodeIds;
+        this.affinityKeys = affinityKeys;
+        this.remaining = new AtomicInteger(nodeIds.length);
+    }
+
+    public long getSeq()
+    {
+        return seq;
+    }
+
+    public long getPosition()
+    {
+        return position;
+    }
+
+    public long[] getNodeIds()
+    {
+        return nodeIds;
+    }
+
+    /**
+     * @return the affinity key of each node, <tt>null</tt> if the page was not partitioned
+     */
+    public Object[] getAffinityKeys()
+    {
+        return affinityKeys;
+    }
+
+    public int size()
+    {
+        return nodeIds.length;
+    }
+
+    /**
+     * @return <tt>true</tt> if these were the last nodes of the page to be done with
+     */
+    boolean nodesDone(int count)
+    {
+        return remaining.addAndGet(-count) == 0;
+    }
+
+    boolean isDone()
+    {
+        return remaining.get() <= 0;
+    }
+}
@@ -0,0 +1,26 @@
+package org.alfresco.crawler.demoamp;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Decides whether a node is handed to the {@link NodeProcessor}, plugged into {@link ParallelCrawler} as a Spring bean
+ * to drop the candidates the processor would leave alone without paying for it. A predicate is shared by all the
+ * worker threads and must be thread safe.
+ * <p>
+ * It runs as the system user in the transaction of the batch, once the nodes of the batch were loaded into the caches
+ * of the node DAO: reading their type, aspects and properties through the <tt>NodeDAO</tt> costs no query.
+ * {@link NodeMetadataPredicate} covers the common conditions.
+ * 
+ * @author Philippe
+ */
+public interface NodePredicate
+{
+    /**
+     * @param nodeId
+     *            the database ID of the node
+     * @param nodeRef
+     *            the same node
+     * @return <tt>true</tt> to process the node, <tt>false</tt> to skip it
+     */
+    boolean accept(Long nodeId, NodeRef nodeRef);
+}
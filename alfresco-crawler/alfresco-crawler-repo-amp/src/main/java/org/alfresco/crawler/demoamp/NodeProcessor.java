@@ -0,0 +1,51 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.List;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * The unit of work of a crawl, plugged into {@link ParallelCrawler} as a Spring bean. A processor is shared by all the
+ * worker threads and must be thread safe. The worker threads belong to the batch processor and are not reused from a
+ * crawl to the next, so there is no hook per thread: what a batch needs outside of its transaction is set up in
+ * {@link #beforeTransaction()} and released in {@link #afterTransaction()}.
+ * <p>
+ * The batch and node hooks run as the system user in the transaction of the batch: an exception fails the batch, whose
+ * nodes are then retried one by one. {@link NodeProcessorAdapter} provides empty hooks.
+ * 
+ * @author Philippe
+ */
+public interface NodeProcessor
+{
+    /**
+     * Called on the worker thread before each batch, outside of its transaction. Runs once per batch, however many
+     * times its transaction is retried.
+     */
+    void beforeTransaction() throws Exception;
+
+    /**
+     * Called in the transaction of a batch, before its nodes are processed.
+     * 
+     * @param nodeRefs
+     *            the nodes of the batch
+     */
+    void beforeBatch(List<NodeRef> nodeRefs) throws Exception;
+
+    /**
+     * Process one node, in the transaction of its batch.
+     */
+    void process(NodeRef nodeRef) throws Exception;
+
+    /**
+     * Called in the transaction of a batch, once its nodes were processed.
+     * 
+     * @param nodeRefs
+     *            the nodes of the batch
+     */
+    void afterBatch(List<NodeRef> nodeRefs) throws Exception;
+
+    /**
+     * Called on the worker thread after each batch, outside of its transaction, whether the batch succeeded or not.
+     */
+    void afterTransaction() throws Exception;
+}
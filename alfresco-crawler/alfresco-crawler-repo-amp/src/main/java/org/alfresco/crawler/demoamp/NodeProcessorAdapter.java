@@ -0,0 +1,33 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.List;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * A {@link NodeProcessor} with empty hooks, to extend when only some of them are needed.
+ * 
+ * @author Philippe
+ */
+public abstract class NodeProcessorAdapter implements NodeProcessor
+{
+    @Override
+    public void beforeTransaction() throws Exception
+    {
+    }
+
+    @Override
+    public void beforeBatch(List<NodeRef> nodeRefs) throws Exception
+    {
+    }
+
+    @Override
+    public void afterBatch(List<NodeRef> nodeRefs) throws Exception
+    {
+    }
+
+    @Override
+    public void afterTransaction() throws Exception
+    {
+    }
+}
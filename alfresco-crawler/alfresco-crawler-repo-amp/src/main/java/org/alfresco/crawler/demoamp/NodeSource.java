@@ -0,0 +1,23 @@
+package org.alfresco.crawler.demoamp;
+
+/**
+ * Supplies the candidate nodes of a crawl, one page at a time.
+ * 
+ * @author Philippe
+ */
+public interface NodeSource
+{
+    /**
+     * Fetch the next page of candidates. Called from the fetcher threads of the {@link CrawlWorkProvider}, inside a
+     * read-only transaction, authenticated as system.
+     * 
+     * @return the next page, possibly empty, or <tt>null</tt> once the source is exhausted
+     */
+    NodePage nextPage();
+
+    /**
+     * Move the source to a position taken from a page read by a previous run, so that it continues after that page.
+     * Must be called before the first page is read.
+     */
+    void restore(long position);
+}
@@ -0,0 +1,59 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.namespace.QName;
+
+/**
+ * Type and aspect filter evaluated against the node DAO, for the sources that do not go through a query.
+ * 
+ * @author Philippe
+ */
+public class NodeTypeFilter
+{
+    private final NodeDAO nodeDAO;
+    private final DictionaryService dictionaryService;
+    private final QName nodeType;
+    private final Set<QName> aspects;
+
+    /**
+     * @param nodeType
+     *            the type the nodes must be of, subtypes included; <tt>null</tt> for any type
+     * @param aspects
+     *            the aspects the nodes must all have; <tt>null</tt> or empty for none
+     */
+    public NodeTypeFilter(NodeDAO nodeDAO, DictionaryService dictionaryService, QName nodeType, Set<QName> aspects)
+    {
+        this.nodeDAO = nodeDAO;
+        this.dictionaryService = dictionaryService;
+        this.nodeType = nodeType;
+        this.aspects = aspects == null ? Collections.<QName> emptySet() : aspects;
+    }
+
+    /**
+     * Must be called inside a transaction.
+     * 
+     * @return <tt>true</tt> if the node matches the type and has all the aspects
+     */
+    public boolean accept(Long nodeId)
+    {
+        if (nodeType != null)
+        {
+            QName type = nodeDAO.getNodeType(nodeId);
+            if (!type.equals(nodeType) && !dictionaryService.isSubClass(type, nodeType))
+            {
+                return false;
+            }
+        }
+        return aspects.isEmpty() || nodeDAO.getNodeAspects(nodeId).containsAll(aspects);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "type " + nodeType + ", aspects " + aspects;
+    }
+}
@@ -3,38 +3,55 @@ package org.alfresco.crawler.demoamp;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
 
+import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.alfresco.model.ContentModel;
-import org.alfresco.repo.action.executer.ScriptActionExecuter;
+import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.repo.batch.BatchProcessor;
 import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorker;
+import org.alfresco.repo.domain.node.NodeDAO;
 import org.alfresco.repo.lock.JobLockService;
 import org.alfresco.repo.lock.JobLockService.JobLockRefreshCallback;
 import org.alfresco.repo.nodelocator.NodeLocatorService;
 import org.alfresco.repo.lock.LockAcquisitionException;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.solr.SOLRTrackingComponent;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
-import org.alfresco.service.cmr.action.Action;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
 import org.alfresco.service.cmr.action.ActionService;
-import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ContentService;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.ScriptService;
 import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.cmr.search.ResultSet;
 import org.alfresco.service.cmr.search.SearchParameters;
 import org.alfresco.service.cmr.search.SearchService;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
-import org.alfresco.service.namespace.RegexQNamePattern;
 import org.alfresco.service.transaction.TransactionService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.alfresco.util.ISO8601DateFormat;
+import org.alfresco.util.Pair;
 import org.alfresco.util.PropertyCheck;
 import org.alfresco.util.VmShutdownListener;
 import org.alfresco.util.VmShutdownListener.VmShutdownException;
@@ -46,11 +63,76 @@ import org.alfresco.util.VmShutdownListener.VmShutdownException;
  */
 public class ParallelCrawler implements ApplicationEventPublisherAware
 {
+    /**
+     * Where the crawl candidates come from.
+     */
+    public enum SourceType
+    {
+        /** the result of the FTS <tt>query</tt> */
+        SEARCH,
+        /** the node tables, filtered by <tt>nodeType</tt> and <tt>aspects</tt>, bypassing the index */
+        DATABASE,
+        /**
+         * the nodes changed by the transactions as they commit, filtered like {@link #DATABASE}; the crawl runs until
+         * it is cancelled and always continues from its checkpoint
+         */
+        TRACKING,
+        /**
+         * the nodes the job gave up on, see {@link DeadLetterStore}; they leave the dead letters once processed, and
+         * the crawl keeps its checkpoints apart from those of the job
+         */
+        DEAD_LETTERS,
+        /**
+         * the nodes under the <tt>roots</tt> folders, walked in parallel through the child associations and filtered
+         * like {@link #DATABASE}; a walk cannot be resumed, it starts over
+         */
+        SUBTREE
+    }
+
+    /**
+     * How a run of the crawler ended.
+     */
+    public enum Outcome
+    {
+        /** every node of the source was crawled */
+        COMPLETED,
+        /** cancelled or interrupted, the checkpoint allows to resume */
+        STOPPED,
+        /** ended by an error */
+        FAILED,
+        /** not started, the job is already running or the repository is read-only */
+        NOT_RUN
+    }
+
     private static VmShutdownListener vmShutdownListener = new VmShutdownListener("ParralelCrawler");
     private final static String baseScriptPath = "/app:company_home/app:dictionary/app:scripts/";
+    // keyset pages the dry run of a search takes its sample from
+    private final static int SAMPLE_PAGES = 4;
     private long LOCK_TIME_TO_LIVE = 10000;
     private long LOCK_REFRESH_TIME = 5000;
     private int bigPageLen = 5000;
+    private boolean keysetPaging = false;
+    private int batchSize = 300;
+    private int queueDepth = 20;
+    private int loggingInterval = 500;
+    private SourceType sourceType = SourceType.SEARCH;
+    private String store = "workspace://SpacesStore";
+    private List<CrawlSource> sources;
+    private String nodeType;
+    private List<String> aspects;
+    private int idRangeSize = 5000;
+    private int fetcherThreads = 2;
+    private List<String> roots;
+    private int walkerThreads = 0;
+    private String jobName = "crawl";
+    private long checkpointInterval = 30000;
+    private CheckpointStore checkpointStore;
+    private DeadLetterStore deadLetterStore;
+    private int maxRetries = 3;
+    private long retryDelay = 1000;
+    private long maxRetryDelay = 60000;
+    private int shardCount = 0;
+    private ShardRegistry shardRegistry;
     private static Log logger = LogFactory.getLog(ParallelCrawler.class);
     private ApplicationEventPublisher applicationEventPublisher;
     private SearchService searchService;
@@ -67,8 +149,35 @@ public class ParallelCrawler implements ApplicationEventPublisherAware
     private ActionService actionService;
     private NodeLocatorService nodeLocatorService;
     private NodeService nodeService;
-    private NodeRef script = null;
-    private Action action = null;
+    private NodeDAO nodeDAO;
+    private SOLRTrackingComponent solrTrackingComponent;
+    private DictionaryService dictionaryService;
+    private NamespaceService namespaceService;
+    private ScriptService scriptService;
+    private ContentService contentService;
+    private ServiceRegistry serviceRegistry;
+    private boolean cacheScript = false;
+    private boolean scriptBatchMode = false;
+    private NodeProcessor processor;
+    private NodePredicate filter;
+    private NodeAffinity affinity;
+    private BatchPreloader preloader;
+    private AdaptiveController adaptiveController;
+    private WorkerBudget workerBudget;
+    private boolean incremental = false;
+    private long trackingCommitLag = 2000;
+    private long trackingPollInterval = 1000;
+    private long incrementalOverlap = 60000;
+    private int weight = 1;
+    private boolean skipProcessed = false;
+    private int sampleSize = 100;
+    private CrawlThrottle throttle;
+    private boolean publishMetrics = true;
+    private volatile CrawlMetrics metrics;
+    private volatile CrawlWorkProvider currentProvider;
+    private volatile boolean paused = false;
+    private volatile boolean cancelled = false;
+    private volatile Throwable lastError;
     
     public long getExecTimeMs()
     {
@@ -83,6 +192,86 @@ public class ParallelCrawler implements ApplicationEventPublisherAware
         }
     }
 
+    /**
+     * @return the metrics of the running or last crawl, <tt>null</tt> before the first one
+     */
+    public CrawlMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public boolean isRunning()
+    {
+        return isRunning;
+    }
+
+    public String getJobName()
+    {
+        return jobName;
+    }
+
+    /**
+     * @return the error that ended the last run, <tt>null</tt> if it did not fail
+     */
+    public Throwable getLastError()
+    {
+        return lastError;
+    }
+
+    /**
+     * Stop handing out batches until {@link #resume()}, the batches in progress complete.
+     */
+    public void pause()
+    {
+        paused = true;
+        CrawlWorkProvider provider = currentProvider;
+        if (provider != null)
+        {
+            provider.setPaused(true);
+        }
+    }
+
+    public void resume()
+    {
+        paused = false;
+        CrawlWorkProvider provider = currentProvider;
+        if (provider != null)
+        {
+            provider.setPaused(false);
+        }
+    }
+
+    public boolean isPaused()
+    {
+        return paused;
+    }
+
+    /**
+     * Stop the running crawl gracefully: the batches in progress complete and the checkpoint is saved, so the crawl can
+     * be resumed later. Called before the crawl starts, it stops the next run at once.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        CrawlWorkProvider provider = currentProvider;
+        if (provider != null)
+        {
+            provider.stop();
+        }
+    }
+
+    /**
+     * Forget the nodes the job processed, so that its next run visits them all again. The shards of a sharded job
+     * start each round with an empty set anyway.
+     */
+    public void clearProcessedNodes()
+    {
+        checkpointStore.clearProcessedNodes(jobName);
+    }
+
+    /**
+     * @return the nodes the processor ran on, without the nodes the filter rejected or deleted since they were fetched
+     */
     public AtomicInteger getNumOfProcessedNodes()
     {
         return numOfProcessedNodes;
@@ -98,334 +287,1877 @@ public class ParallelCrawler implements ApplicationEventPublisherAware
         this.bigPageLen = bigPageLen;
     }
 
-    public void setNodeLocatorService(NodeLocatorService nodeLocatorService)
+    /**
+     * @param keysetPaging
+     *            <tt>true</tt> to page through the query results by <tt>sys:node-dbid</tt> instead of by skip count
+     */
+    public void setKeysetPaging(boolean keysetPaging)
     {
-        this.nodeLocatorService = nodeLocatorService;
+        this.keysetPaging = keysetPaging;
     }
 
-    public void setActionService(ActionService actionService)
+    public boolean isKeysetPaging()
     {
-        this.actionService = actionService;
+        return keysetPaging;
     }
 
-    public void setScriptName(String scriptName)
+    /**
+     * @param batchSize
+     *            the number of nodes processed in one transaction
+     */
+    public void setBatchSize(int batchSize)
     {
-        this.scriptName = scriptName;
+        this.batchSize = batchSize;
     }
 
-    private int threadNumber = 4;
-
-    public void setThreadNumber(int threadNumber)
+    /**
+     * @param queueDepth
+     *            the number of batches fetched ahead of the workers
+     */
+    public void setQueueDepth(int queueDepth)
     {
-        this.threadNumber = threadNumber;
+        this.queueDepth = queueDepth;
     }
 
-    public void setQuery(String query)
+    /**
+     * @param sourceType
+     *            where the crawl candidates come from, {@link SourceType#SEARCH} by default
+     */
+    public void setSourceType(SourceType sourceType)
     {
-        this.query = query;
+        this.sourceType = sourceType;
     }
 
-    public void setJobLockService(JobLockService jobLockService)
+    /**
+     * @param store
+     *            the store the candidates are taken from, <tt>workspace://SpacesStore</tt> by default
+     */
+    public void setStore(String store)
     {
-        this.jobLockService = jobLockService;
+        this.store = store;
     }
 
     /**
-     * Perform basic checks to ensure that the necessary dependencies were injected.
+     * @param sources
+     *            the stores and queries crawled together in {@link SourceType#SEARCH} mode, instead of the
+     *            <tt>query</tt> on the <tt>store</tt>; their pages are interleaved by weight, see
+     *            {@link RoundRobinSource}, and such a crawl cannot be resumed
      */
-    private void checkProperties()
+    public void setSources(List<CrawlSource> sources)
     {
-
-        PropertyCheck.mandatory(this, "transactionService", transactionService);
-        PropertyCheck.mandatory(this, "searchService", searchService);
-        PropertyCheck.mandatory(this, "nodeLocatorService", nodeLocatorService);
-        PropertyCheck.mandatory(this, "actionService", actionService);
-        PropertyCheck.mandatory(this, "scriptName", scriptName);
-        PropertyCheck.mandatory(this, "query", query);
-        PropertyCheck.mandatory(this, "jobLockService", jobLockService);
+        this.sources = sources;
     }
 
     /**
-     * @param queryService used to retrieve older versions
+     * @param nodeType
+     *            prefixed type of the nodes to crawl in {@link SourceType#DATABASE} mode, e.g. <tt>cm:content</tt>
      */
-    public void setSearchService(SearchService searchService)
+    public void setNodeType(String nodeType)
     {
-        this.searchService = searchService;
+        this.nodeType = nodeType;
     }
 
     /**
-     * @param transactionService the component to ensure proper transactional wrapping
+     * @param aspects
+     *            prefixed aspects the nodes must have in {@link SourceType#DATABASE} mode
      */
-    public void setTransactionService(TransactionService transactionService)
+    public void setAspects(List<String> aspects)
     {
-        this.transactionService = transactionService;
+        this.aspects = aspects;
     }
 
-    public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher)
+    /**
+     * @param idRangeSize
+     *            the number of node IDs claimed at a time in {@link SourceType#DATABASE} mode, of transaction IDs
+     *            when following the transactions
+     */
+    public void setIdRangeSize(int idRangeSize)
     {
-        this.applicationEventPublisher = applicationEventPublisher;
+        this.idRangeSize = idRangeSize;
     }
 
-    public void execute()
+    /**
+     * @param fetcherThreads
+     *            the number of threads walking the node ID ranges in {@link SourceType#DATABASE} mode, or paging
+     *            the <tt>sources</tt> of a search crawl
+     */
+    public void setFetcherThreads(int fetcherThreads)
     {
-        checkProperties();
-
-        // Bypass if the system is in read-only mode
-        if (transactionService.isReadOnly())
-        {
-            logger.debug("Version store cleaner bypassed; the system is read-only.");
-            return;
-        }
-
-        if (logger.isDebugEnabled())
-        {
-            logger.debug("Starting version store cleanup.");
-        }
-        numOfProcessedNodes = new AtomicInteger(0);
-        try
-        {
-            QName lockQName = QName.createQName("pc", "crawl");
-            String lockToken = jobLockService.getLock(lockQName, LOCK_TIME_TO_LIVE, 0, 1);
-            TrackerJobLockRefreshCallback callback = new TrackerJobLockRefreshCallback();
+        this.fetcherThreads = fetcherThreads;
+    }
 
-            jobLockService.refreshLock(lockToken, lockQName, LOCK_REFRESH_TIME, callback);
-            try
-            {
-                if (logger.isTraceEnabled())
-                {
-                    logger.trace("ParralelCrawler: job lock held");
-                }
+    /**
+     * @param roots
+     *            the folders whose subtrees are crawled in {@link SourceType#SUBTREE} mode, as node references
+     */
+    public void setRoots(List<String> roots)
+    {
+        this.roots = roots;
+    }
 
-                try
-                {
-                    AuthenticationUtil.runAsSystem(new RunAsWork<Void>()
-                        {
-                            public Void doWork() throws Exception
-                            {
-                                startTime = System.currentTimeMillis();
-                                isRunning = true;
-                                executeInternal();
-                                return null;
-                            }
-                        });
-                }
-                catch (Exception e)
-                {
-                    // This is where push comms failure is logged on the first time
-                    logger.error("ParralelCrawler: unable to push:" + e.getMessage());
-                }
-                finally
-                {
-                    endTime = System.currentTimeMillis();
-                    isRunning = false;
-                }
-            }
-            finally
-            {
-                if (logger.isTraceEnabled())
-                {
-                    logger.trace("ParralelCrawler: job finished");
-                }
+    /**
+     * @param walkerThreads
+     *            the number of threads walking the subtrees in {@link SourceType#SUBTREE} mode, <tt>0</tt> for one per
+     *            core
+     */
+    public void setWalkerThreads(int walkerThreads)
+    {
+        this.walkerThreads = walkerThreads;
+    }
 
-                // Release the locks on the job and stop refreshing
-                callback.isActive = false;
-                jobLockService.releaseLock(lockToken, lockQName);
-            }
-        }
-        catch (LockAcquisitionException e)
-        {
-            if (logger.isDebugEnabled())
-            {
-                // probably already running - or repo could be read only
-                logger.debug("ParralelCrawler: unable to obtain job lock - probably already running");
-            }
-        }
+    /**
+     * @param jobName
+     *            the name the checkpoints of the job are saved under
+     */
+    public void setJobName(String jobName)
+    {
+        this.jobName = jobName;
+    }
 
+    /**
+     * @param checkpointInterval
+     *            the number of milliseconds between two checkpoints
+     */
+    public void setCheckpointInterval(long checkpointInterval)
+    {
+        this.checkpointInterval = checkpointInterval;
     }
 
-    protected void executeInternal()
+    public void setCheckpointStore(CheckpointStore checkpointStore)
     {
-        int startingElement = 0;
-        int lot = 0;
-        while (true)
-        {
-            lot++;
-            // search by page
-            final int staticStartingElement = startingElement;
-            // execute in READ-WRITE txn
-            RetryingTransactionCallback<Collection<NodeRef>> executeCallback = new RetryingTransactionCallback<Collection<NodeRef>>()
-                {
-                    public Collection<NodeRef> execute() throws Exception
-                    {
-                        StoreRef storeRef = new StoreRef(StoreRef.PROTOCOL_WORKSPACE, "SpacesStore");
-                        // Get VersionableNodes
-                        Collection<NodeRef> bigPageNodes = executeQuery(storeRef, searchService, query,
-                                staticStartingElement, bigPageLen);
-                        return bigPageNodes;
-                    };
-                };
+        this.checkpointStore = checkpointStore;
+    }
 
-            try
-            {
-                if (vmShutdownListener.isVmShuttingDown())
-                {
-                    throw new VmShutdownException();
-                }
-                Collection<NodeRef> nodesToCleaned = transactionService.getRetryingTransactionHelper()
-                        .doInTransaction(executeCallback, true);
-                /**
-                 * Instantiates a new batch processor.
-                 * 
-                 * @param processName
-                 *            the process name
-                 * @param retryingTransactionHelper
-                 *            the retrying transaction helper
-                 * @param collection
-                 *            the collection
-                 * @param workerThreads
-                 *            the number of worker threads
-                 * @param batchSize
-                 *            the number of entries we process at a time in a transaction
-                 * @param applicationEventPublisher
-                 *            the application event publisher (may be <tt>null</tt>)
-                 * @param logger
-                 *            the logger to use (may be <tt>null</tt>)
-                 * @param loggingInterval
-                 *            the number of entries to process before reporting progress
-                 *            
-                 * @deprecated Since 3.4, use the {@link BatchProcessWorkProvider} instead of the <tt>Collection</tt>
-                 */
-                final BatchProcessor<NodeRef> groupProcessor = new BatchProcessor<NodeRef>("VersionCleaner",
-                        this.transactionService.getRetryingTransactionHelper(), nodesToCleaned, threadNumber, 300,
-                        this.applicationEventPublisher, logger, 500);
-
-                class NodeVersionCleaner implements BatchProcessWorker<NodeRef>
-                {
-                    public String getIdentifier(NodeRef entry)
-                    {
-                        return entry.toString();
-                    }
+    /**
+     * @param deadLetterStore
+     *            records the nodes the crawl gave up on, <tt>null</tt> to only log them
+     */
+    public void setDeadLetterStore(DeadLetterStore deadLetterStore)
+    {
+        this.deadLetterStore = deadLetterStore;
+    }
 
-                    public void process(NodeRef currentNode) throws Throwable
-                    {
-                        final NodeRef fCurrentNode = currentNode;
-                        AuthenticationUtil.runAsSystem(new RunAsWork<Void>()
-                            {
-                                public Void doWork() throws Exception
-                                {
-                                    // execute the script action on the node
-                                    // see line 800 ActionServiceImplTest
-                                    if (script == null)
-                                    {
-                                        NodeRef home = getCompanyHome();
-                                        List<ChildAssociationRef> associationRefs = nodeService.getChildAssocs(home,
-                                                ContentModel.ASSOC_CONTAINS, new RegexQNamePattern(
-                                                        NamespaceService.APP_MODEL_1_0_URI, "dictionary"));
-                                        NodeRef dico = associationRefs.get(0).getChildRef();
-                                        associationRefs = nodeService.getChildAssocs(dico, ContentModel.ASSOC_CONTAINS,
-                                                new RegexQNamePattern(NamespaceService.APP_MODEL_1_0_URI, "scripts"));
-                                        NodeRef scriptsFolder = associationRefs.get(0).getChildRef();
-                                        script = nodeService.getChildAssocs(scriptsFolder,
-                                                ContentModel.ASSOC_CONTAINS, QName.createQName(
-                                                        NamespaceService.CONTENT_MODEL_1_0_URI, "TestScript.js"))
-                                                .get(0).getChildRef();
-                                        action = actionService.createAction(ScriptActionExecuter.NAME);
-                                        
-                                    }
-                                    
-                                    action.setParameterValue(ScriptActionExecuter.PARAM_SCRIPTREF, script);
-                                    // Execute the action
-                                    numOfProcessedNodes.addAndGet(1);
-                                    actionService.executeAction(action, fCurrentNode);
-                                    return null;
-                                }
-                            });
+    /**
+     * @param maxRetries
+     *            the number of times a node failing on its own is retried before it is given up on
+     */
+    public void setMaxRetries(int maxRetries)
+    {
+        this.maxRetries = maxRetries;
+    }
 
-                    }
+    /**
+     * @param retryDelay
+     *            the milliseconds before the first retry of a failed node, doubled for each following retry
+     */
+    public void setRetryDelay(long retryDelay)
+    {
+        this.retryDelay = retryDelay;
+    }
 
-                    @Override
-                    public void beforeProcess() throws Throwable
-                    {
-                        // TODO Auto-generated method stub
-                        String threadName = Thread.currentThread().getName();
-                        if (logger.isDebugEnabled())
-                        {
-                            logger.debug(" Thread name= " + threadName);
-                        }
+    /**
+     * @param maxRetryDelay
+     *            the longest milliseconds between two retries of a failed node
+     */
+    public void setMaxRetryDelay(long maxRetryDelay)
+    {
+        this.maxRetryDelay = maxRetryDelay;
+    }
 
-                    }
+    /**
+     * @param shardCount
+     *            the number of node ID shards the cluster members share the crawl out in, <tt>0</tt> for a crawl run by
+     *            a single member
+     */
+    public void setShardCount(int shardCount)
+    {
+        this.shardCount = shardCount;
+    }
 
-                    @Override
-                    public void afterProcess() throws Throwable
-                    {
-                        // TODO Auto-generated method stub
+    public void setShardRegistry(ShardRegistry shardRegistry)
+    {
+        this.shardRegistry = shardRegistry;
+    }
 
-                    }
-                }
+    public void setNodeDAO(NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
 
-                NodeVersionCleaner unitOfWork = new NodeVersionCleaner();
+    /**
+     * @param solrTrackingComponent
+     *            reads the nodes changed by ranges of transactions, mandatory for the crawls following the
+     *            transactions
+     */
+    public void setSolrTrackingComponent(SOLRTrackingComponent solrTrackingComponent)
+    {
+        this.solrTrackingComponent = solrTrackingComponent;
+    }
 
-                groupProcessor.process(unitOfWork, true);
+    public void setDictionaryService(DictionaryService dictionaryService)
+    {
+        this.dictionaryService = dictionaryService;
+    }
 
-                startingElement += bigPageLen;
-                // Done
-                if (logger.isDebugEnabled())
-                {
-                    logger.debug("  Cleaning iteration:" + staticStartingElement);
-                }
-                if (nodesToCleaned.size() < bigPageLen)
-                    break;
-            }
-            catch (VmShutdownException e)
-            {
-                // Aborted
-                if (logger.isDebugEnabled())
-                {
-                    logger.debug("Version cleanup aborted.");
-                }
-                throw e;
-            }
-            catch (Throwable e)
-            {
-                e.printStackTrace();
-                logger.warn("System shutting down during version cleaning at:" + staticStartingElement);
-                break;
-            }
-        }
+    public void setNamespaceService(NamespaceService namespaceService)
+    {
+        this.namespaceService = namespaceService;
     }
 
-    private Collection<NodeRef> executeQuery(
-            StoreRef storeRef,
-            SearchService searchService,
-            String query,
-            int startingElement,
-            int pageLen)
+    public void setNodeLocatorService(NodeLocatorService nodeLocatorService)
     {
+        this.nodeLocatorService = nodeLocatorService;
+    }
 
-        SearchParameters sp = new SearchParameters();
-        sp.addStore(storeRef);
-        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
-        sp.setSkipCount(startingElement);
-        // -1 unlimited result size
-        sp.setMaxItems(-1);
-        sp.setQuery(query);
-        ResultSet results = searchService.query(sp);
-        Collection<NodeRef> nodeToClean = new ArrayList<NodeRef>(pageLen);
-        int i;
-        for (i = startingElement; i < startingElement + pageLen; i++)
-        {
-            if (i - startingElement >= results.length())
-                break;
-            NodeRef nodeRef = results.getNodeRef(i - startingElement);
-            nodeToClean.add(nodeRef);
-        }
-        results.close();
-        return nodeToClean;
+    public void setActionService(ActionService actionService)
+    {
+        this.actionService = actionService;
     }
 
-    private class TrackerJobLockRefreshCallback implements JobLockRefreshCallback
+    /**
+     * @param scriptName
+     *            prefixed name of the script in the scripts folder of the data dictionary, e.g. <tt>cm:TestScript.js</tt>
+     */
+    public void setScriptName(String scriptName)
     {
-        public boolean isActive = true;
+        this.scriptName = scriptName;
+    }
+
+    /**
+     * @param cacheScript
+     *            <tt>true</tt> to run the script through the script service, compiled once and cached until it changes,
+     *            rather than through the script action
+     */
+    public void setCacheScript(boolean cacheScript)
+    {
+        this.cacheScript = cacheScript;
+    }
+
+    public boolean isCacheScript()
+    {
+        return cacheScript;
+    }
+
+    /**
+     * @param scriptBatchMode
+     *            <tt>true</tt> to call the cached script once per transaction with the nodes of the batch as
+     *            <tt>documents</tt>, rather than once per node as <tt>document</tt>
+     */
+    public void setScriptBatchMode(boolean scriptBatchMode)
+    {
+        this.scriptBatchMode = scriptBatchMode;
+    }
+
+    /**
+     * @param processor
+     *            the Java unit of work run on the nodes, replaces the script when set
+     */
+    public void setProcessor(NodeProcessor processor)
+    {
+        this.processor = processor;
+    }
+
+    /**
+     * @param filter
+     *            the nodes it rejects are counted and skipped without running the processor, <tt>null</tt> to process
+     *            every node
+     */
+    public void setFilter(NodePredicate filter)
+    {
+        this.filter = filter;
+    }
+
+    /**
+     * @param affinity
+     *            keeps the nodes likely to conflict in the same batches and out of concurrent transactions,
+     *            <tt>null</tt> to batch the nodes in the order of the source
+     */
+    public void setAffinity(NodeAffinity affinity)
+    {
+        this.affinity = affinity;
+    }
+
+    /**
+     * @param preloader
+     *            bulk loads the metadata of each batch before it is processed, <tt>null</tt> to load the nodes lazily
+     */
+    public void setPreloader(BatchPreloader preloader)
+    {
+        this.preloader = preloader;
+    }
+
+    /**
+     * @param adaptiveController
+     *            adjusts the worker count and the batch size while the crawl runs, starting from
+     *            <tt>threadNumber</tt> and <tt>batchSize</tt>; <tt>null</tt> to keep them fixed
+     */
+    public void setAdaptiveController(AdaptiveController adaptiveController)
+    {
+        this.adaptiveController = adaptiveController;
+    }
+
+    /**
+     * @param incremental
+     *            <tt>true</tt> to only visit the nodes changed since the start of the last complete run of the job,
+     *            the first run visits them all
+     */
+    public void setIncremental(boolean incremental)
+    {
+        this.incremental = incremental;
+    }
+
+    /**
+     * @param incrementalOverlap
+     *            the milliseconds before the start of a run that the next incremental run visits again, to catch the
+     *            transactions that were still committing and the clock skew between the servers
+     */
+    public void setIncrementalOverlap(long incrementalOverlap)
+    {
+        this.incrementalOverlap = incrementalOverlap;
+    }
+
+    /**
+     * @param trackingCommitLag
+     *            the milliseconds a {@link SourceType#TRACKING} crawl stays behind the last commit, a transaction
+     *            taking longer to commit may be missed
+     */
+    public void setTrackingCommitLag(long trackingCommitLag)
+    {
+        this.trackingCommitLag = trackingCommitLag;
+    }
+
+    /**
+     * @param trackingPollInterval
+     *            the milliseconds a {@link SourceType#TRACKING} crawl waits for new transactions once caught up
+     */
+    public void setTrackingPollInterval(long trackingPollInterval)
+    {
+        this.trackingPollInterval = trackingPollInterval;
+    }
+
+    /**
+     * @param workerBudget
+     *            the threads shared with the other crawls running in this server, <tt>null</tt> for no limit but
+     *            <tt>threadNumber</tt>
+     */
+    public void setWorkerBudget(WorkerBudget workerBudget)
+    {
+        this.workerBudget = workerBudget;
+    }
+
+    /**
+     * @param weight
+     *            the share of the worker budget taken by this crawl relative to the others, 1 by default
+     */
+    public void setWeight(int weight)
+    {
+        this.weight = weight;
+    }
+
+    /**
+     * @param skipProcessed
+     *            <tt>true</tt> to remember the nodes the job processed from one run to the next and drop them before
+     *            they reach a worker, until the parameters of the job change or {@link #clearProcessedNodes()} is
+     *            called
+     */
+    public void setSkipProcessed(boolean skipProcessed)
+    {
+        this.skipProcessed = skipProcessed;
+    }
+
+    /**
+     * @param sampleSize
+     *            the number of candidates {@link #estimate()} runs the processor on
+     */
+    public void setSampleSize(int sampleSize)
+    {
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @param throttle
+     *            limits the rate of each crawl and pauses it while the repository is busy, <tt>null</tt> to run flat
+     *            out
+     */
+    public void setThrottle(CrawlThrottle throttle)
+    {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @param publishMetrics
+     *            <tt>true</tt> to publish the metrics of each crawl as a JMX MBean
+     */
+    public void setPublishMetrics(boolean publishMetrics)
+    {
+        this.publishMetrics = publishMetrics;
+    }
+
+    public void setScriptService(ScriptService scriptService)
+    {
+        this.scriptService = scriptService;
+    }
+
+    public void setContentService(ContentService contentService)
+    {
+        this.contentService = contentService;
+    }
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry)
+    {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    private int threadNumber = 4;
+
+    public void setThreadNumber(int threadNumber)
+    {
+        this.threadNumber = threadNumber;
+    }
+
+    public void setQuery(String query)
+    {
+        this.query = query;
+    }
+
+    public void setJobLockService(JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    /**
+     * Perform basic checks to ensure that the necessary dependencies were injected.
+     */
+    private void checkProperties()
+    {
+
+        PropertyCheck.mandatory(this, "transactionService", transactionService);
+        PropertyCheck.mandatory(this, "searchService", searchService);
+        PropertyCheck.mandatory(this, "nodeLocatorService", nodeLocatorService);
+        PropertyCheck.mandatory(this, "sourceType", sourceType);
+        if (processor == null)
+        {
+            PropertyCheck.mandatory(this, "actionService", actionService);
+            PropertyCheck.mandatory(this, "scriptName", scriptName);
+        }
+        if (processor == null && cacheScript)
+        {
+            PropertyCheck.mandatory(this, "scriptService", scriptService);
+            PropertyCheck.mandatory(this, "contentService", contentService);
+            PropertyCheck.mandatory(this, "serviceRegistry", serviceRegistry);
+        }
+        PropertyCheck.mandatory(this, "store", store);
+        if (isMultiSource())
+        {
+            if (sourceType != SourceType.SEARCH)
+            {
+                throw new AlfrescoRuntimeException("Only a search crawl can have several sources");
+            }
+            for (CrawlSource source : sources)
+            {
+                PropertyCheck.mandatory(source, "store", source.getStore());
+                PropertyCheck.mandatory(source, "query", source.getQuery());
+            }
+        }
+        else if (sourceType == SourceType.SEARCH)
+        {
+            PropertyCheck.mandatory(this, "query", query);
+        }
+        if (sourceType != SourceType.SEARCH)
+        {
+            PropertyCheck.mandatory(this, "dictionaryService", dictionaryService);
+        }
+        // the crawl carries the nodes by their IDs
+        PropertyCheck.mandatory(this, "nodeDAO", nodeDAO);
+        if (sourceType == SourceType.TRACKING || (sourceType == SourceType.DATABASE && incremental))
+        {
+            PropertyCheck.mandatory(this, "solrTrackingComponent", solrTrackingComponent);
+        }
+        PropertyCheck.mandatory(this, "nodeService", nodeService);
+        PropertyCheck.mandatory(this, "namespaceService", namespaceService);
+        PropertyCheck.mandatory(this, "jobLockService", jobLockService);
+        PropertyCheck.mandatory(this, "jobName", jobName);
+        PropertyCheck.mandatory(this, "checkpointStore", checkpointStore);
+        if (shardCount > 0)
+        {
+            PropertyCheck.mandatory(this, "shardRegistry", shardRegistry);
+            if (incremental)
+            {
+                throw new AlfrescoRuntimeException("A sharded crawl cannot be incremental");
+            }
+        }
+        if (sourceType == SourceType.TRACKING && (incremental || shardCount > 0))
+        {
+            throw new AlfrescoRuntimeException("A tracking crawl can be neither incremental nor sharded");
+        }
+        if (sourceType == SourceType.DEAD_LETTERS)
+        {
+            PropertyCheck.mandatory(this, "deadLetterStore", deadLetterStore);
+            if (incremental || shardCount > 0)
+            {
+                throw new AlfrescoRuntimeException("A dead-letter crawl can be neither incremental nor sharded");
+            }
+        }
+        if (sourceType == SourceType.SUBTREE)
+        {
+            PropertyCheck.mandatory(this, "roots", roots);
+            if (roots.isEmpty())
+            {
+                throw new AlfrescoRuntimeException("A subtree crawl needs at least one root");
+            }
+            if (incremental || shardCount > 0)
+            {
+                // the walk knows neither the modification dates nor the ID ranges
+                throw new AlfrescoRuntimeException("A subtree crawl can be neither incremental nor sharded");
+            }
+        }
+        if (sourceType == SourceType.TRACKING && skipProcessed)
+        {
+            // a tracker must visit a node again each time it changes
+            throw new AlfrescoRuntimeException("A tracking crawl cannot skip the processed nodes");
+        }
+    }
+
+    /**
+     * @param queryService used to retrieve older versions
+     */
+    public void setSearchService(SearchService searchService)
+    {
+        this.searchService = searchService;
+    }
+
+    /**
+     * @param transactionService the component to ensure proper transactional wrapping
+     */
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher)
+    {
+        this.applicationEventPublisher = applicationEventPublisher;
+    }
+
+    public void execute()
+    {
+        execute(false);
+    }
+
+    /**
+     * @param resume
+     *            <tt>true</tt> to continue from the checkpoint saved by an interrupted run of the job, if it was taken
+     *            with the same parameters; <tt>false</tt> to start from scratch
+     */
+    public Outcome execute(final boolean resume)
+    {
+        checkProperties();
+
+        // Bypass if the system is in read-only mode
+        if (transactionService.isReadOnly())
+        {
+            logger.debug("Version store cleaner bypassed; the system is read-only.");
+            return Outcome.NOT_RUN;
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Starting version store cleanup.");
+        }
+        numOfProcessedNodes = new AtomicInteger(0);
+        lastError = null;
+        if (shardCount > 0)
+        {
+            // every cluster member takes part, each shard has its own lock
+            return executeTimed(resume, null);
+        }
+        try
+        {
+            // each job has its own lock, several jobs may run at the same time
+            QName lockQName = QName.createQName("pc", jobName);
+            String lockToken = jobLockService.getLock(lockQName, LOCK_TIME_TO_LIVE, 0, 1);
+            TrackerJobLockRefreshCallback callback = new TrackerJobLockRefreshCallback();
+
+            jobLockService.refreshLock(lockToken, lockQName, LOCK_REFRESH_TIME, callback);
+            try
+            {
+                if (logger.isTraceEnabled())
+                {
+                    logger.trace("ParralelCrawler: job lock held");
+                }
+
+                return executeTimed(resume, callback);
+            }
+            finally
+            {
+                if (logger.isTraceEnabled())
+                {
+                    logger.trace("ParralelCrawler: job finished");
+                }
+
+                // Release the locks on the job and stop refreshing
+                callback.isActive = false;
+                jobLockService.releaseLock(lockToken, lockQName);
+            }
+        }
+        catch (LockAcquisitionException e)
+        {
+            if (logger.isDebugEnabled())
+            {
+                // probably already running - or repo could be read only
+                logger.debug("ParralelCrawler: unable to obtain job lock - probably already running");
+            }
+            return Outcome.NOT_RUN;
+        }
+
+    }
+
+    /**
+     * Dry run of the job: count the candidates and time the processor on a random sample of them, in transactions that
+     * are rolled back. Neither the job lock nor the checkpoints are touched, and an incremental or sharded job is
+     * estimated as a full crawl. A subtree is walked to its end to be counted. What the processor does outside the
+     * database, such as writing content, is not undone.
+     * 
+     * @return the number of candidates and the projected duration of the crawl
+     */
+    public CrawlEstimate estimate()
+    {
+        checkProperties();
+        if (sourceType == SourceType.TRACKING)
+        {
+            throw new AlfrescoRuntimeException("A tracking crawl has no end to estimate");
+        }
+        return AuthenticationUtil.runAsSystem(new RunAsWork<CrawlEstimate>()
+            {
+                public CrawlEstimate doWork() throws Exception
+                {
+                    return estimateInternal();
+                }
+            });
+    }
+
+    private CrawlEstimate estimateInternal() throws Exception
+    {
+        final StoreRef storeRef = new StoreRef(store);
+        final Random random = new Random();
+        final Set<Long> sample = new LinkedHashSet<Long>();
+        RetryingTransactionHelper txnHelper = transactionService.getRetryingTransactionHelper();
+        long candidates;
+        boolean exact = true;
+        if (sourceType == SourceType.DEAD_LETTERS)
+        {
+            List<Long> nodeIds = new ArrayList<Long>();
+            for (DeadLetter deadLetter : deadLetterStore.list(jobName, -1))
+            {
+                nodeIds.add(deadLetter.getNodeId());
+            }
+            candidates = nodeIds.size();
+            Collections.shuffle(nodeIds, random);
+            sample.addAll(nodeIds.subList(0, Math.min(sampleSize, nodeIds.size())));
+        }
+        else if (sourceType == SourceType.SUBTREE)
+        {
+            candidates = walkSubtreeCandidates(storeRef, random, sample);
+        }
+        else
+        {
+            candidates = txnHelper.doInTransaction(new RetryingTransactionCallback<Long>()
+                {
+                    public Long execute() throws Throwable
+                    {
+                        sample.clear();
+                        if (sourceType != SourceType.SEARCH)
+                        {
+                            return sampleDatabaseCandidates(storeRef, random, sample);
+                        }
+                        if (!isMultiSource())
+                        {
+                            return countSearchCandidates(storeRef, query, sampleSize, random, sample);
+                        }
+                        // the sample is spread evenly, whatever the weights
+                        long count = 0;
+                        int sourceSampleSize = (sampleSize + sources.size() - 1) / sources.size();
+                        for (CrawlSource source : sources)
+                        {
+                            count += countSearchCandidates(new StoreRef(source.getStore()), source.getQuery(),
+                                    sourceSampleSize, random, sample);
+                        }
+                        return count;
+                    }
+                }, true);
+            exact = sourceType == SourceType.SEARCH;
+        }
+        if (skipProcessed && !sample.isEmpty())
+        {
+            // the share of the sample already processed is left out of the count
+            String checkpointName = sourceType == SourceType.DEAD_LETTERS ? jobName + "-deadLetters" : jobName;
+            long[] sampleIds = toArray(sample);
+            long[] remaining = checkpointStore.loadProcessedNodes(checkpointName, getJobParameters()).filter(
+                    sampleIds);
+            candidates = candidates * remaining.length / sampleIds.length;
+            exact = false;
+            sample.clear();
+            for (long nodeId : remaining)
+            {
+                sample.add(nodeId);
+            }
+        }
+
+        // one page of the source, as the fetchers read it
+        NodeSource source = createNodeSource(storeRef, null, null, null);
+        long fetchStart = System.nanoTime();
+        NodePage page;
+        try
+        {
+            page = fetchPage(source);
+        }
+        finally
+        {
+            closeSource(source);
+        }
+        long pageNanos = System.nanoTime() - fetchStart;
+        int pageSize = page != null && page.size() > 0 ? page.size() : bigPageLen;
+
+        NodeProcessor nodeProcessor = processor != null ? processor : new ScriptNodeProcessor(actionService,
+                createScript(), cacheScript, scriptBatchMode);
+        List<Long> sampleIds = new ArrayList<Long>(sample);
+        long processNanos = 0;
+        int processed = 0;
+        int failures = 0;
+        for (int from = 0; from < sampleIds.size(); from += batchSize)
+        {
+            List<Long> batch = sampleIds.subList(from, Math.min(from + batchSize, sampleIds.size()));
+            try
+            {
+                processNanos += processSample(batch, nodeProcessor);
+                processed += batch.size();
+            }
+            catch (RuntimeException e)
+            {
+                failures += batch.size();
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Sample of " + jobName + " failed: " + e.getMessage());
+                }
+            }
+        }
+
+        CrawlEstimate estimate = new CrawlEstimate(candidates, exact, processed, failures, processed == 0 ? 0
+                : processNanos / processed, pageNanos, pageSize, getFetcherThreads(),
+                threadNumber);
+        if (logger.isInfoEnabled())
+        {
+            logger.info("Dry run of " + jobName + ": " + estimate);
+        }
+        return estimate;
+    }
+
+    /**
+     * Count the results of the query without loading them, and take the sample from a few keyset pages starting at
+     * random node IDs: one query per page rather than one deep skip count per sampled node. Must be called in a
+     * transaction.
+     */
+    private long countSearchCandidates(StoreRef storeRef, String query, int sampleSize, Random random, Set<Long> sample)
+    {
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(storeRef);
+        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+        sp.setQuery(query);
+        sp.setMaxItems(1);
+        ResultSet results = searchService.query(sp);
+        long count;
+        try
+        {
+            count = results.getNumberFound();
+        }
+        finally
+        {
+            results.close();
+        }
+        Long minId = nodeDAO.getMinNodeId();
+        Long maxId = nodeDAO.getMaxNodeId();
+        if (count == 0 || minId == null || maxId == null)
+        {
+            return count;
+        }
+        int pageLen = (sampleSize + SAMPLE_PAGES - 1) / SAMPLE_PAGES;
+        int sampled = 0;
+        for (int i = 0; i < SAMPLE_PAGES && sampled < sampleSize; i++)
+        {
+            long fromId = minId + (long) (random.nextDouble() * (maxId - minId + 1));
+            NodePage page = new SearchNodeSource(searchService, nodeDAO, storeRef, query, pageLen, true, fromId, null)
+                    .nextPage();
+            if (page == null)
+            {
+                // past the last hit, start again from the first one
+                page = new SearchNodeSource(searchService, nodeDAO, storeRef, query, pageLen, true, minId, null)
+                        .nextPage();
+            }
+            for (long nodeId : page == null ? new long[0] : page.getNodeIds())
+            {
+                if (sampled < sampleSize && sample.add(nodeId))
+                {
+                    sampled++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Draw node IDs at random between the lowest and the highest, keeping the matching ones as the sample, and
+     * extrapolate the number of candidates from the share of IDs that matched. Must be called in a transaction.
+     */
+    private long sampleDatabaseCandidates(StoreRef storeRef, Random random, Set<Long> sample)
+    {
+        Long minId = nodeDAO.getMinNodeId();
+        Long maxId = nodeDAO.getMaxNodeId();
+        if (minId == null || maxId == null)
+        {
+            return 0;
+        }
+        NodeTypeFilter nodeTypeFilter = createNodeTypeFilter();
+        long span = maxId - minId + 1;
+        long maxDraws = Math.min(span, sampleSize * 100L);
+        long draws = 0;
+        long hits = 0;
+        while (hits < sampleSize && draws < maxDraws)
+        {
+            draws++;
+            long nodeId = minId + (long) (random.nextDouble() * span);
+            Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(nodeId);
+            if (nodePair != null && storeRef.equals(nodePair.getSecond().getStoreRef())
+                    && nodeTypeFilter.accept(nodeId))
+            {
+                hits++;
+                sample.add(nodeId);
+            }
+        }
+        return draws == 0 ? 0 : span * hits / draws;
+    }
+
+    /**
+     * Walk the whole subtree to count the candidates, keeping a uniform sample of them.
+     */
+    private long walkSubtreeCandidates(StoreRef storeRef, Random random, Set<Long> sample)
+    {
+        NodeSource source = createNodeSource(storeRef, null, null, null);
+        List<Long> reservoir = new ArrayList<Long>(sampleSize);
+        long count = 0;
+        try
+        {
+            NodePage page;
+            while ((page = fetchPage(source)) != null)
+            {
+                for (long nodeId : page.getNodeIds())
+                {
+                    count++;
+                    long slot = reservoir.size() < sampleSize ? -1 : (long) (random.nextDouble() * count);
+                    if (slot < 0)
+                    {
+                        reservoir.add(nodeId);
+                    }
+                    else if (slot < sampleSize)
+                    {
+                        reservoir.set((int) slot, nodeId);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            closeSource(source);
+        }
+        sample.addAll(reservoir);
+        return count;
+    }
+
+    /**
+     * Read the next page of the source as the fetchers read it, in a read-only transaction of its own.
+     */
+    private NodePage fetchPage(final NodeSource source)
+    {
+        return transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<NodePage>()
+                    {
+                        public NodePage execute() throws Throwable
+                        {
+                            return source.nextPage();
+                        }
+                    }, true, true);
+    }
+
+    /**
+     * Stop whatever the source still runs in the background.
+     */
+    private static void closeSource(NodeSource source)
+    {
+        if (source instanceof SubtreeSource)
+        {
+            ((SubtreeSource) source).close();
+        }
+        else if (source instanceof RoundRobinSource)
+        {
+            ((RoundRobinSource) source).close();
+        }
+    }
+
+    /**
+     * Run the processor on sampled nodes the way a worker runs it on a batch, in a transaction that is rolled back.
+     * 
+     * @return the nanoseconds spent on the nodes
+     */
+    private long processSample(final List<Long> nodeIds, final NodeProcessor nodeProcessor) throws Exception
+    {
+        final long[] elapsed = new long[1];
+        nodeProcessor.beforeTransaction();
+        try
+        {
+            transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+                {
+                    public Void execute() throws Throwable
+                    {
+                        long start = System.nanoTime();
+                        if (preloader != null)
+                        {
+                            preloader.preload(nodeIds);
+                        }
+                        else
+                        {
+                            nodeDAO.cacheNodesById(nodeIds);
+                        }
+                        List<NodeRef> nodeRefs = new ArrayList<NodeRef>(nodeIds.size());
+                        for (Long nodeId : nodeIds)
+                        {
+                            Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(nodeId);
+                            if (nodePair != null && (filter == null || filter.accept(nodeId, nodePair.getSecond())))
+                            {
+                                nodeRefs.add(nodePair.getSecond());
+                            }
+                        }
+                        nodeProcessor.beforeBatch(nodeRefs);
+                        for (NodeRef nodeRef : nodeRefs)
+                        {
+                            nodeProcessor.process(nodeRef);
+                        }
+                        nodeProcessor.afterBatch(nodeRefs);
+                        elapsed[0] = System.nanoTime() - start;
+                        throw new SampleRollbackException();
+                    }
+                }, false, true);
+        }
+        catch (SampleRollbackException e)
+        {
+            // the work of the sample is undone
+        }
+        finally
+        {
+            nodeProcessor.afterTransaction();
+        }
+        return elapsed[0];
+    }
+
+    private static long[] toArray(Set<Long> nodeIds)
+    {
+        long[] array = new long[nodeIds.size()];
+        int i = 0;
+        for (Long nodeId : nodeIds)
+        {
+            array[i++] = nodeId;
+        }
+        return array;
+    }
+
+    /**
+     * Thrown at the end of a sample transaction to roll it back.
+     */
+    private static class SampleRollbackException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private Outcome executeTimed(final boolean resume, final TrackerJobLockRefreshCallback lockCallback)
+    {
+        try
+        {
+            boolean completed = AuthenticationUtil.runAsSystem(new RunAsWork<Boolean>()
+                {
+                    public Boolean doWork() throws Exception
+                    {
+                        startTime = System.currentTimeMillis();
+                        isRunning = true;
+                        return executeInternal(resume, lockCallback);
+                    }
+                });
+            return completed ? Outcome.COMPLETED : Outcome.STOPPED;
+        }
+        catch (VmShutdownException e)
+        {
+            return Outcome.STOPPED;
+        }
+        catch (Exception e)
+        {
+            // This is where push comms failure is logged on the first time
+            logger.error("ParralelCrawler: unable to push:" + e.getMessage());
+            lastError = e;
+            return Outcome.FAILED;
+        }
+        finally
+        {
+            endTime = System.currentTimeMillis();
+            isRunning = false;
+            cancelled = false;
+        }
+    }
+
+    /**
+     * @param lockCallback
+     *            the callback refreshing the job lock, <tt>null</tt> in sharded mode
+     * @return <tt>true</tt> if the crawl completed
+     */
+    protected boolean executeInternal(boolean resume, TrackerJobLockRefreshCallback lockCallback)
+    {
+        if (shardCount > 0)
+        {
+            return executeShards();
+        }
+        if (incremental)
+        {
+            return crawlIncremental(resume, lockCallback);
+        }
+        if (sourceType == SourceType.DEAD_LETTERS)
+        {
+            return crawl(jobName + "-deadLetters", getJobParameters(), null, null, null, resume, lockCallback);
+        }
+        // a tracker always goes on from where it stopped
+        return crawl(jobName, getJobParameters(), null, null, null, resume || sourceType == SourceType.TRACKING,
+                lockCallback);
+    }
+
+    /**
+     * Crawl the nodes changed since the high-water mark of the last complete run, and move the mark to the start of
+     * this run once it completes. A resumed run keeps the mark it was started with, the nodes it already passed may
+     * have changed again since.
+     * 
+     * @return <tt>true</tt> if the crawl completed
+     */
+    private boolean crawlIncremental(boolean resume, TrackerJobLockRefreshCallback lockCallback)
+    {
+        HashMap<String, Serializable> parameters = getJobParameters();
+        Map<String, Serializable> marks = checkpointStore.loadHighWaterMarks(jobName);
+        HighWaterMark since = null;
+        HighWaterMark next = null;
+        if (marks != null && parameters.equals(marks.get(CheckpointStore.PARAMETERS)))
+        {
+            since = getHighWaterMark(marks, CheckpointStore.MARK);
+            if (resume)
+            {
+                next = getHighWaterMark(marks, CheckpointStore.PENDING_MARK);
+            }
+        }
+        else if (marks != null)
+        {
+            logger.info("High-water mark of " + jobName + " was taken with other parameters "
+                    + marks.get(CheckpointStore.PARAMETERS) + ", crawling every node");
+        }
+        if (since != null && sourceType == SourceType.DATABASE && since.getTxnId() == null)
+        {
+            // a mark saved before the transactions were recorded, no transaction to start from
+            since = null;
+        }
+        if (next == null)
+        {
+            next = captureHighWaterMark();
+            checkpointStore.saveHighWaterMarks(jobName, createHighWaterMarks(parameters, since, next));
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Crawling " + jobName + " from " + since + " up to " + next);
+        }
+
+        // a checkpoint is only valid for the same starting mark
+        HashMap<String, Serializable> crawlParameters = new HashMap<String, Serializable>(parameters);
+        crawlParameters.put("changedSince", since == null ? null : since.toMap());
+        boolean completed = crawl(jobName, crawlParameters, null, null, since, resume, lockCallback);
+        if (completed)
+        {
+            checkpointStore.saveHighWaterMarks(jobName, createHighWaterMarks(parameters, next, null));
+        }
+        return completed;
+    }
+
+    private HighWaterMark captureHighWaterMark()
+    {
+        final long time = System.currentTimeMillis() - incrementalOverlap;
+        Long txnId = transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<Long>()
+                    {
+                        public Long execute() throws Throwable
+                        {
+                            return nodeDAO.getMaxTxnIdByCommitTime(time);
+                        }
+                    }, true);
+        // no transaction committed before the time yet, the next run walks them all
+        return new HighWaterMark(time, txnId == null ? 0L : txnId);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static HighWaterMark getHighWaterMark(Map<String, Serializable> marks, String key)
+    {
+        return HighWaterMark.fromMap((Map<String, Serializable>) marks.get(key));
+    }
+
+    private static HashMap<String, Serializable> createHighWaterMarks(
+            HashMap<String, Serializable> parameters,
+            HighWaterMark mark,
+            HighWaterMark pendingMark)
+    {
+        HashMap<String, Serializable> marks = new HashMap<String, Serializable>();
+        marks.put(CheckpointStore.PARAMETERS, parameters);
+        marks.put(CheckpointStore.MARK, mark == null ? null : mark.toMap());
+        marks.put(CheckpointStore.PENDING_MARK, pendingMark == null ? null : pendingMark.toMap());
+        return marks;
+    }
+
+    /**
+     * Take part in the current round of a sharded crawl: claim the shards nobody holds through their job locks and
+     * crawl them one after the other. A shard whose lock is lost is stopped and left to the other members, its
+     * checkpoint lets whoever claims it next continue where it was left.
+     * 
+     * @return <tt>true</tt> if every shard of the round is done
+     */
+    private boolean executeShards()
+    {
+        final HashMap<String, Serializable> parameters = getJobParameters();
+        Pair<Long, Long> nodeIdBounds = transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<Pair<Long, Long>>()
+                    {
+                        public Pair<Long, Long> execute() throws Throwable
+                        {
+                            Long minId = nodeDAO.getMinNodeId();
+                            Long maxId = nodeDAO.getMaxNodeId();
+                            return new Pair<Long, Long>(minId == null ? 0L : minId, maxId == null ? 0L : maxId);
+                        }
+                    }, true);
+        ShardRound round = shardRegistry.joinRound(jobName, parameters, shardCount, nodeIdBounds.getFirst(),
+                nodeIdBounds.getSecond());
+
+        boolean allDone = true;
+        int firstShard = new Random().nextInt(round.getShardCount());
+        for (int i = 0; i < round.getShardCount(); i++)
+        {
+            if (cancelled || vmShutdownListener.isVmShuttingDown())
+            {
+                allDone = false;
+                break;
+            }
+            int shard = (firstShard + i) % round.getShardCount();
+            if (shardRegistry.isShardDone(round, shard))
+            {
+                continue;
+            }
+            QName shardLockQName = QName.createQName("pc", jobName + "-shard-" + shard);
+            String lockToken;
+            try
+            {
+                lockToken = jobLockService.getLock(shardLockQName, LOCK_TIME_TO_LIVE);
+            }
+            catch (LockAcquisitionException e)
+            {
+                // another member is on it
+                allDone = false;
+                continue;
+            }
+            TrackerJobLockRefreshCallback callback = new TrackerJobLockRefreshCallback();
+            jobLockService.refreshLock(lockToken, shardLockQName, LOCK_REFRESH_TIME, callback);
+            try
+            {
+                // it may have been completed between the check and the lock
+                if (shardRegistry.isShardDone(round, shard))
+                {
+                    continue;
+                }
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Crawling shard " + shard + " of round " + round);
+                }
+                HashMap<String, Serializable> shardParameters = new HashMap<String, Serializable>(parameters);
+                shardParameters.put("round", round.getId());
+                // shards always continue from their checkpoint, they may have been given back by another member
+                boolean completed = crawl(jobName + "-shard-" + shard, shardParameters, round.getShardStart(shard),
+                        round.getShardEnd(shard), null, true, callback);
+                if (completed)
+                {
+                    shardRegistry.markShardDone(round, shard);
+                }
+                else
+                {
+                    allDone = false;
+                }
+            }
+            finally
+            {
+                callback.isActive = false;
+                jobLockService.releaseLock(lockToken, shardLockQName);
+            }
+        }
+        if (allDone)
+        {
+            shardRegistry.completeRound(jobName, round);
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Round " + round + " completed");
+            }
+        }
+        return allDone;
+    }
+
+    /**
+     * Crawl the nodes of the source, saving checkpoints along the way.
+     * 
+     * @param checkpointName
+     *            the name the checkpoints are saved under
+     * @param parameters
+     *            the parameters a checkpoint must have been taken with to be resumed
+     * @param fromNodeId
+     *            the lowest node ID to crawl, <tt>null</tt> for no bound
+     * @param toNodeId
+     *            the highest node ID to crawl, <tt>null</tt> for no bound
+     * @param changedSince
+     *            only crawl the nodes changed after this mark, <tt>null</tt> to crawl them all
+     * @param lockCallback
+     *            stops the crawl if the lock it runs under is lost, may be <tt>null</tt>
+     * @return <tt>true</tt> if the source was crawled to its end
+     */
+    private boolean crawl(
+            final String checkpointName,
+            final HashMap<String, Serializable> parameters,
+            Long fromNodeId,
+            Long toNodeId,
+            HighWaterMark changedSince,
+            boolean resume,
+            TrackerJobLockRefreshCallback lockCallback)
+    {
+        Long startPosition = null;
+        int resumedProcessed = 0;
+        if (resume && (sourceType == SourceType.SUBTREE || isMultiSource()))
+        {
+            // neither a walk nor interleaved sources have a position to go on from
+            logger.info(checkpointName + " cannot be resumed, it starts over"
+                    + (skipProcessed ? " skipping the processed nodes" : ""));
+            resume = false;
+        }
+        if (resume)
+        {
+            Map<String, Serializable> checkpoint = checkpointStore.load(checkpointName);
+            if (checkpoint == null)
+            {
+                logger.info("No checkpoint to resume " + checkpointName + " from, starting from scratch");
+            }
+            else if (!parameters.equals(checkpoint.get(CheckpointStore.PARAMETERS)))
+            {
+                logger.warn("Checkpoint of " + checkpointName + " was taken with other parameters "
+                        + checkpoint.get(CheckpointStore.PARAMETERS) + ", starting from scratch");
+            }
+            else
+            {
+                startPosition = (Long) checkpoint.get(CheckpointStore.POSITION);
+                resumedProcessed = (Integer) checkpoint.get(CheckpointStore.PROCESSED);
+                numOfProcessedNodes.addAndGet(resumedProcessed);
+                logger.info("Resuming " + checkpointName + " from position " + startPosition + " after "
+                        + resumedProcessed + " nodes");
+            }
+        }
+        if (startPosition == null)
+        {
+            checkpointStore.clear(checkpointName);
+        }
+
+        StoreRef storeRef = new StoreRef(store);
+        NodeSource source = createNodeSource(storeRef, fromNodeId, toNodeId, changedSince);
+        if (startPosition != null)
+        {
+            source.restore(startPosition);
+        }
+        final CheckpointTracker checkpointTracker = new CheckpointTracker(startPosition);
+        int workerThreads = threadNumber;
+        if (adaptiveController != null)
+        {
+            // the gate keeps the threads above the current limit of the controller waiting
+            adaptiveController.start(threadNumber, batchSize);
+            workerThreads = adaptiveController.getMaxThreads();
+        }
+        final WorkerGate workerGate = new WorkerGate(workerThreads);
+        final WorkerBudget.Allocation[] allocation = new WorkerBudget.Allocation[1];
+        if (workerBudget != null)
+        {
+            allocation[0] = workerBudget.join(checkpointName, weight, workerThreads, new Runnable()
+                {
+                    public void run()
+                    {
+                        updateWorkerLimit(workerGate, allocation[0]);
+                    }
+                });
+        }
+        updateWorkerLimit(workerGate, allocation[0]);
+        final CrawlWorkProvider workProvider = new CrawlWorkProvider(source, checkpointTracker,
+                transactionService.getRetryingTransactionHelper(), batchSize, queueDepth, workerThreads * 2,
+                getFetcherThreads(), vmShutdownListener);
+        workProvider.setThrottle(throttle == null ? null : throttle.forCrawl(sourceType == SourceType.SEARCH));
+        workProvider.setPaused(paused);
+        workProvider.setRetries(maxRetries, retryDelay, maxRetryDelay);
+        workProvider.setAffinity(affinity);
+        workProvider.setDeadLetters(deadLetterStore, jobName, sourceType == SourceType.DEAD_LETTERS);
+        // a new incremental run or shard round has other parameters, it starts with an empty set
+        final ProcessedNodeSet processedNodes = skipProcessed ? checkpointStore.loadProcessedNodes(checkpointName,
+                parameters) : null;
+        workProvider.setProcessedNodes(processedNodes);
+        final CrawlMetrics crawlMetrics = new CrawlMetrics(checkpointName);
+        if (publishMetrics)
+        {
+            crawlMetrics.register();
+        }
+        metrics = crawlMetrics;
+        workProvider.setMetrics(crawlMetrics);
+        workProvider.setWorkerGate(workerGate);
+        NodeProcessor nodeProcessor = processor != null ? processor : new ScriptNodeProcessor(actionService,
+                createScript(), cacheScript, scriptBatchMode);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Crawling " + source + " with " + nodeProcessor);
+        }
+        CrawlWorker worker = new CrawlWorker(workProvider, nodeProcessor, filter, crawlMetrics, workerGate);
+        if (lockCallback != null)
+        {
+            lockCallback.workProvider = workProvider;
+        }
+
+        // nodes processed by this crawl, on top of the ones of the run it resumes
+        final int processedBase = numOfProcessedNodes.get() - resumedProcessed;
+        final Long[] lastSavedPosition = new Long[] { startPosition };
+        Runnable checkpointer = new Runnable()
+            {
+                public void run()
+                {
+                    lastSavedPosition[0] = saveCheckpoint(checkpointName, checkpointTracker, parameters,
+                            numOfProcessedNodes.get() - processedBase, lastSavedPosition[0]);
+                    if (processedNodes != null)
+                    {
+                        checkpointStore.saveProcessedNodes(checkpointName, parameters, processedNodes);
+                    }
+                }
+            };
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(checkpointer, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+        if (adaptiveController != null)
+        {
+            scheduler.scheduleWithFixedDelay(new Runnable()
+                {
+                    private long lastAdjusted = System.currentTimeMillis();
+
+                    public void run()
+                    {
+                        long now = System.currentTimeMillis();
+                        adaptiveController.adjust(now - lastAdjusted);
+                        lastAdjusted = now;
+                        updateWorkerLimit(workerGate, allocation[0]);
+                        workProvider.setBatchSize(adaptiveController.getBatchSize());
+                    }
+                }, adaptiveController.getInterval(), adaptiveController.getInterval(), TimeUnit.MILLISECONDS);
+        }
+
+        boolean completed = false;
+        currentProvider = workProvider;
+        if (cancelled)
+        {
+            // cancelled before the provider could be reached
+            workProvider.stop();
+        }
+        workProvider.start();
+        try
+        {
+            // run again as long as failed batches were split after the last batch had been handed out
+            do
+            {
+                BatchProcessor<CrawlBatch> batchProcessor = new BatchProcessor<CrawlBatch>("ParallelCrawler",
+                        transactionService.getRetryingTransactionHelper(), workProvider, workerThreads, 1,
+                        applicationEventPublisher, logger, Math.max(1, loggingInterval / batchSize));
+                batchProcessor.process(worker, true);
+            }
+            while (workProvider.hasRequeuedWork());
+            completed = !workProvider.isStopped() && !vmShutdownListener.isVmShuttingDown()
+                    && workProvider.getFetchError() == null;
+        }
+        finally
+        {
+            workProvider.stop();
+            closeSource(source);
+            currentProvider = null;
+            scheduler.shutdownNow();
+            if (allocation[0] != null)
+            {
+                workerBudget.leave(allocation[0]);
+            }
+            crawlMetrics.finished();
+            if (completed)
+            {
+                checkpointStore.clear(checkpointName);
+                if (processedNodes != null)
+                {
+                    checkpointStore.saveProcessedNodes(checkpointName, parameters, processedNodes);
+                }
+            }
+            else
+            {
+                // keep what was done for the next resume
+                checkpointer.run();
+            }
+        }
+
+        if (vmShutdownListener.isVmShuttingDown())
+        {
+            // Aborted
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Crawl aborted.");
+            }
+            throw new VmShutdownException();
+        }
+        if (processedNodes != null && logger.isDebugEnabled())
+        {
+            logger.debug("Skipped " + processedNodes.getSkipped() + " nodes already processed by " + checkpointName);
+        }
+        if (workProvider.getFetchError() != null)
+        {
+            logger.warn("Crawl stopped early, unable to fetch from " + source + ": "
+                    + workProvider.getFetchError().getMessage());
+        }
+        return completed;
+    }
+
+    /**
+     * @return the parameters a checkpoint must have been taken with to be resumed by this job
+     */
+    private HashMap<String, Serializable> getJobParameters()
+    {
+        HashMap<String, Serializable> parameters = new HashMap<String, Serializable>();
+        parameters.put("sourceType", sourceType.name());
+        if (isMultiSource())
+        {
+            ArrayList<String> sourceNames = new ArrayList<String>(sources.size());
+            for (CrawlSource source : sources)
+            {
+                sourceNames.add(source.toString());
+            }
+            parameters.put("sources", sourceNames);
+        }
+        else
+        {
+            parameters.put("store", store);
+        }
+        if (sourceType == SourceType.SEARCH)
+        {
+            parameters.put("query", query);
+            parameters.put("keysetPaging", keysetPaging);
+        }
+        else if (sourceType != SourceType.DEAD_LETTERS)
+        {
+            if (sourceType == SourceType.SUBTREE)
+            {
+                parameters.put("roots", new ArrayList<String>(roots));
+            }
+            parameters.put("nodeType", nodeType);
+            parameters.put("aspects", aspects == null ? null : new ArrayList<String>(aspects));
+            parameters.put("idRangeSize", idRangeSize);
+        }
+        return parameters;
+    }
+
+    /**
+     * Save the committed position of the crawl, if it moved since the last save. Failures are logged, a checkpoint is
+     * only ever an optimisation.
+     * 
+     * @return the last position saved
+     */
+    private Long saveCheckpoint(
+            String checkpointName,
+            CheckpointTracker checkpointTracker,
+            HashMap<String, Serializable> parameters,
+            int processed,
+            Long lastSavedPosition)
+    {
+        Long position = checkpointTracker.getCommittedPosition();
+        if (position == null || position.equals(lastSavedPosition))
+        {
+            return lastSavedPosition;
+        }
+        HashMap<String, Serializable> checkpoint = new HashMap<String, Serializable>();
+        checkpoint.put(CheckpointStore.POSITION, position);
+        checkpoint.put(CheckpointStore.PROCESSED, processed);
+        checkpoint.put(CheckpointStore.PARAMETERS, parameters);
+        checkpoint.put(CheckpointStore.TIME, System.currentTimeMillis());
+        try
+        {
+            checkpointStore.save(checkpointName, checkpoint);
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Checkpoint of " + checkpointName + " saved at position " + position);
+            }
+            return position;
+        }
+        catch (Throwable e)
+        {
+            logger.warn("Unable to save the checkpoint of " + checkpointName + ": " + e.getMessage());
+            return lastSavedPosition;
+        }
+    }
+
+    /**
+     * @param fromNodeId
+     *            the lowest node ID to crawl, <tt>null</tt> for no bound
+     * @param toNodeId
+     *            the highest node ID to crawl, <tt>null</tt> for no bound
+     * @param changedSince
+     *            only return the nodes changed after this mark, <tt>null</tt> for all of them
+     */
+    private NodeSource createNodeSource(StoreRef storeRef, Long fromNodeId, Long toNodeId, HighWaterMark changedSince)
+    {
+        switch (sourceType)
+        {
+            case DATABASE:
+            case TRACKING:
+                NodeTypeFilter filter = createNodeTypeFilter();
+                if (sourceType == SourceType.TRACKING)
+                {
+                    // from the checkpoint if there is one, otherwise from the next commit
+                    return new TransactionChangeSource(nodeDAO, solrTrackingComponent, storeRef, filter, idRangeSize,
+                            bigPageLen, null, trackingCommitLag, trackingPollInterval);
+                }
+                if (changedSince != null)
+                {
+                    // follow the transactions rather than walk every node
+                    return new TransactionChangeSource(nodeDAO, solrTrackingComponent, storeRef, filter, idRangeSize,
+                            bigPageLen, changedSince.getTxnId() + 1, null);
+                }
+                return new NodeIdRangeSource(nodeDAO, storeRef, filter, idRangeSize, fromNodeId, toNodeId);
+            case SUBTREE:
+                List<NodeRef> rootRefs = new ArrayList<NodeRef>(roots.size());
+                for (String root : roots)
+                {
+                    rootRefs.add(new NodeRef(root));
+                }
+                return new SubtreeSource(nodeDAO, dictionaryService, transactionService.getRetryingTransactionHelper(),
+                        createNodeTypeFilter(), rootRefs, bigPageLen, walkerThreads);
+            case DEAD_LETTERS:
+                return new DeadLetterSource(deadLetterStore, jobName, bigPageLen);
+            default:
+                if (!isMultiSource())
+                {
+                    return new SearchNodeSource(searchService, nodeDAO, storeRef, changedQuery(query, changedSince),
+                            bigPageLen, keysetPaging, fromNodeId, toNodeId);
+                }
+                List<NodeSource> searchSources = new ArrayList<NodeSource>(sources.size());
+                List<Integer> weights = new ArrayList<Integer>(sources.size());
+                for (CrawlSource source : sources)
+                {
+                    searchSources.add(new SearchNodeSource(searchService, nodeDAO, new StoreRef(source.getStore()),
+                            changedQuery(source.getQuery(), changedSince), bigPageLen, keysetPaging, fromNodeId,
+                            toNodeId));
+                    weights.add(source.getWeight());
+                }
+                return new RoundRobinSource(searchSources, weights);
+        }
+    }
+
+    /**
+     * @return the query restricted to the nodes modified after the mark, if there is one
+     */
+    private static String changedQuery(String query, HighWaterMark changedSince)
+    {
+        if (changedSince == null)
+        {
+            return query;
+        }
+        return "(" + query + ") AND cm:modified:[\"" + ISO8601DateFormat.format(new Date(changedSince.getTime()))
+                + "\" TO MAX]";
+    }
+
+    private boolean isMultiSource()
+    {
+        return sources != null && !sources.isEmpty();
+    }
+
+    /**
+     * @return the number of threads that may read the source concurrently: a query is paged by a single thread, the
+     *         interleaved queries by one thread each at most
+     */
+    private int getFetcherThreads()
+    {
+        if (sourceType != SourceType.SEARCH)
+        {
+            return fetcherThreads;
+        }
+        return isMultiSource() ? Math.max(1, Math.min(fetcherThreads, sources.size())) : 1;
+    }
+
+    /**
+     * @return the filter matching the <tt>nodeType</tt> and <tt>aspects</tt> of a database source
+     */
+    private NodeTypeFilter createNodeTypeFilter()
+    {
+        QName typeQName = nodeType == null ? null : QName.createQName(nodeType, namespaceService);
+        Set<QName> aspectQNames = new HashSet<QName>();
+        if (aspects != null)
+        {
+            for (String aspect : aspects)
+            {
+                aspectQNames.add(QName.createQName(aspect, namespaceService));
+            }
+        }
+        return new NodeTypeFilter(nodeDAO, dictionaryService, typeQName, aspectQNames);
+    }
+
+    /**
+     * Let as many workers in as both the adaptive controller and the share of the worker budget allow.
+     */
+    private void updateWorkerLimit(WorkerGate workerGate, WorkerBudget.Allocation allocation)
+    {
+        // the allocation is not known yet while the budget calls back from join
+        int limit = adaptiveController != null ? adaptiveController.getThreads() : threadNumber;
+        if (allocation != null)
+        {
+            limit = Math.min(limit, allocation.getThreads());
+        }
+        workerGate.setLimit(limit);
+    }
+
+    /**
+     * Runs the script action on each node of a batch, in the transaction of the batch.
+     */
+    private class CrawlWorker implements BatchProcessWorker<CrawlBatch>
+    {
+        private final CrawlWorkProvider workProvider;
+        private final NodeProcessor processor;
+        private final NodePredicate filter;
+        private final CrawlMetrics metrics;
+        private final WorkerGate workerGate;
+        private final ThreadLocal<CrawlBatch> currentBatch = new ThreadLocal<CrawlBatch>();
+        private final ThreadLocal<Boolean> admitted = new ThreadLocal<Boolean>();
+        private final ThreadLocal<Long> busySince = new ThreadLocal<Long>();
+
+        private CrawlWorker(CrawlWorkProvider workProvider, NodeProcessor processor, NodePredicate filter,
+                CrawlMetrics metrics, WorkerGate workerGate)
+        {
+            this.workProvider = workProvider;
+            this.processor = processor;
+            this.filter = filter;
+            this.metrics = metrics;
+            this.workerGate = workerGate;
+        }
+
+        public String getIdentifier(CrawlBatch entry)
+        {
+            return entry.toString();
+        }
+
+        @Override
+        public void beforeProcess() throws Throwable
+        {
+            String threadName = Thread.currentThread().getName();
+            if (logger.isDebugEnabled())
+            {
+                logger.debug(" Thread name= " + threadName);
+            }
+            if (!workerGate.acquire())
+            {
+                // stopped while waiting for a slot, the batch is skipped
+                return;
+            }
+            admitted.set(Boolean.TRUE);
+            busySince.set(System.nanoTime());
+            processor.beforeTransaction();
+        }
+
+        public void process(final CrawlBatch batch) throws Throwable
+        {
+            if (admitted.get() == null)
+            {
+                workProvider.drop(batch);
+                return;
+            }
+            currentBatch.set(batch);
+            if (batch.attempt() > 1)
+            {
+                metrics.transactionRetried();
+                if (adaptiveController != null)
+                {
+                    adaptiveController.batchRetried();
+                }
+            }
+            try
+            {
+                final BatchCommitListener commitListener = new BatchCommitListener(batch, workProvider, metrics);
+                AlfrescoTransactionSupport.bindListener(commitListener);
+                AuthenticationUtil.runAsSystem(new RunAsWork<Void>()
+                    {
+                        public Void doWork() throws Exception
+                        {
+                            List<Long> nodeIds = batch.getNodeIdList();
+                            long preloadStart = System.nanoTime();
+                            if (preloader != null)
+                            {
+                                preloader.preload(nodeIds);
+                            }
+                            else
+                            {
+                                nodeDAO.cacheNodesById(nodeIds);
+                            }
+                            List<NodeRef> nodeRefs = getNodeRefs(nodeIds, commitListener);
+                            commitListener.nodesProcessed = nodeRefs.size();
+                            metrics.batchPreloaded(preloadStart);
+                            long processStart = System.nanoTime();
+                            processor.beforeBatch(nodeRefs);
+                            for (NodeRef nodeRef : nodeRefs)
+                            {
+                                processor.process(nodeRef);
+                            }
+                            processor.afterBatch(nodeRefs);
+                            metrics.batchProcessed(processStart);
+                            return null;
+                        }
+                    });
+                commitListener.workDone();
+            }
+            catch (Throwable e)
+            {
+                batch.setError(e);
+                // the transaction will not be retried, no need to wait for afterProcess to split the batch
+                if (RetryingTransactionHelper.extractRetryCause(e) == null)
+                {
+                    metrics.batchFailed();
+                    workProvider.settle(batch);
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * @return the nodes still there and accepted by the filter, the others were deleted since they were fetched
+         *         or are counted as filtered out
+         */
+        private List<NodeRef> getNodeRefs(List<Long> nodeIds, BatchCommitListener commitListener)
+        {
+            List<NodeRef> nodeRefs = new ArrayList<NodeRef>(nodeIds.size());
+            for (Long nodeId : nodeIds)
+            {
+                Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(nodeId);
+                if (nodePair == null)
+                {
+                    continue;
+                }
+                if (filter != null && !filter.accept(nodeId, nodePair.getSecond()))
+                {
+                    commitListener.nodesFiltered++;
+                    continue;
+                }
+                nodeRefs.add(nodePair.getSecond());
+            }
+            return nodeRefs;
+        }
+
+        @Override
+        public void afterProcess() throws Throwable
+        {
+            CrawlBatch batch = currentBatch.get();
+            currentBatch.remove();
+            try
+            {
+                if (batch != null)
+                {
+                    // no-op if the batch was committed
+                    workProvider.settle(batch);
+                }
+            }
+            finally
+            {
+                Long busyStart = busySince.get();
+                if (busyStart != null)
+                {
+                    busySince.remove();
+                    metrics.threadBusy(busyStart);
+                }
+                if (admitted.get() != null)
+                {
+                    admitted.remove();
+                    workerGate.release();
+                    processor.afterTransaction();
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the nodes of a batch and releases its in-flight slot once its transaction is committed.
+     */
+    private class BatchCommitListener extends TransactionListenerAdapter
+    {
+        private final CrawlBatch batch;
+        private final CrawlWorkProvider workProvider;
+        private final CrawlMetrics metrics;
+        private final long startNanos = System.nanoTime();
+        private boolean workDone = false;
+        private long workDoneNanos;
+        /** nodes of the batch handed to the processor */
+        private int nodesProcessed = 0;
+        /** nodes of the batch the filter rejected */
+        private int nodesFiltered = 0;
+
+        private BatchCommitListener(CrawlBatch batch, CrawlWorkProvider workProvider, CrawlMetrics metrics)
+        {
+            this.batch = batch;
+            this.workProvider = workProvider;
+            this.metrics = metrics;
+        }
+
+        /**
+         * The nodes were processed, what follows is the commit.
+         */
+        private void workDone()
+        {
+            workDoneNanos = System.nanoTime();
+            workDone = true;
+        }
+
+        @Override
+        public void afterCommit()
+        {
+            batch.setCommitted();
+            if (batch.getAttempts() > 1 && logger.isDebugEnabled())
+            {
+                logger.debug(batch + " committed after " + batch.getAttempts() + " attempts");
+            }
+            numOfProcessedNodes.addAndGet(nodesProcessed);
+            if (workDone)
+            {
+                long commitNanos = System.nanoTime() - workDoneNanos;
+                metrics.batchCommitted(nodesProcessed, commitNanos);
+                metrics.nodesFiltered(nodesFiltered);
+                if (adaptiveController != null)
+                {
+                    adaptiveController.batchCommitted(batch.size(), (workDoneNanos - startNanos) / 1000000L,
+                            commitNanos / 1000000L);
+                }
+            }
+            workProvider.settle(batch);
+        }
+    }
+
+    private class TrackerJobLockRefreshCallback implements JobLockRefreshCallback
+    {
+        public boolean isActive = true;
+
+        /** stopped if the lock is lost while crawling */
+        public volatile CrawlWorkProvider workProvider;
 
         @Override
         public boolean isActive()
@@ -440,9 +2172,41 @@ public class ParallelCrawler implements ApplicationEventPublisherAware
             {
                 logger.trace("lock released");
             }
+            CrawlWorkProvider provider = workProvider;
+            if (isActive && provider != null)
+            {
+                // another member may take over, do not keep crawling unprotected
+                logger.warn("Job lock lost, stopping the crawl");
+                provider.stop();
+            }
         }
     };
 
+    /**
+     * Look up the script named by <tt>scriptName</tt> in the scripts folder of the data dictionary.
+     */
+    private CrawlScript createScript()
+    {
+        return transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<CrawlScript>()
+                    {
+                        public CrawlScript execute() throws Throwable
+                        {
+                            NodeRef companyHome = getCompanyHome();
+                            NodeRef root = nodeService.getRootNode(companyHome.getStoreRef());
+                            List<NodeRef> scripts = searchService.selectNodes(root, baseScriptPath + scriptName, null,
+                                    namespaceService, false);
+                            if (scripts.isEmpty())
+                            {
+                                throw new AlfrescoRuntimeException("Script " + scriptName + " not found in "
+                                        + baseScriptPath);
+                            }
+                            return new CrawlScript(serviceRegistry, scriptService, nodeService, contentService,
+                                    scripts.get(0), companyHome);
+                        }
+                    }, true);
+    }
+
     /**
      * Returns the NodeRef of "Company Home"
      *
@@ -0,0 +1,59 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.util.Pair;
+import org.alfresco.util.PropertyCheck;
+
+/**
+ * Groups the nodes by their primary parent, for the processors that update the folder of the nodes or the nodes of a
+ * folder together.
+ * 
+ * @author Philippe
+ */
+public class PrimaryParentAffinity implements NodeAffinity
+{
+    private NodeDAO nodeDAO;
+
+    public void setNodeDAO(NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "nodeDAO", nodeDAO);
+    }
+
+    @Override
+    public Object[] getAffinityKeys(long[] nodeIds)
+    {
+        List<Long> nodeIdList = new ArrayList<Long>(nodeIds.length);
+        for (long nodeId : nodeIds)
+        {
+            nodeIdList.add(nodeId);
+        }
+        // one bulk load rather than a query per node
+        nodeDAO.cacheNodesById(nodeIdList);
+        Object[] keys = new Object[nodeIds.length];
+        for (int i = 0; i < nodeIds.length; i++)
+        {
+            Pair<Long, ChildAssociationRef> parentAssoc = nodeDAO.getNodePair(nodeIds[i]) == null ? null : nodeDAO
+                    .getPrimaryParentAssoc(nodeIds[i]);
+            if (parentAssoc != null)
+            {
+                keys[i] = parentAssoc.getSecond().getParentRef();
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PrimaryParentAffinity";
+    }
+}
@@ -0,0 +1,155 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The database IDs of the nodes a job already processed, as a bitmap. The bitmap is cut into segments of
+ * {@link #SEGMENT_SIZE} IDs that are only allocated once one of their nodes is added, and only the segments changed
+ * since the last save need to be written again.
+ * <p>
+ * The set takes 128 KB per segment touched, however many of its IDs were added: a job whose nodes all fall within a
+ * range of ten million IDs takes at most 11 segments, about 1.4 MB. Nodes scattered over a large ID range may each
+ * take a segment of their own, up to 128 KB per node.
+ *
+ * @author Philippe
+ */
+public class ProcessedNodeSet
+{
+    /** the number of node IDs covered by a segment, a segment takes 128 KB */
+    public static final int SEGMENT_SIZE = 1 << 20;
+
+    private static final int SEGMENT_SHIFT = 20;
+    private static final int WORDS_PER_SEGMENT = SEGMENT_SIZE / 64;
+
+    private final Map<Integer, long[]> segments = new HashMap<Integer, long[]>();
+    private final Set<Integer> dirty = new HashSet<Integer>();
+    private long skipped = 0;
+
+    public synchronized boolean contains(long nodeId)
+    {
+        long[] words = segments.get(segment(nodeId));
+        return words != null && (words[word(nodeId)] & bit(nodeId)) != 0;
+    }
+
+    public synchronized void add(long nodeId)
+    {
+        Integer segment = segment(nodeId);
+        long[] words = segments.get(segment);
+        if (words == null)
+        {
+            words = new long[WORDS_PER_SEGMENT];
+            segments.put(segment, words);
+        }
+        words[word(nodeId)] |= bit(nodeId);
+        dirty.add(segment);
+    }
+
+    public synchronized void addAll(long[] nodeIds)
+    {
+        for (long nodeId : nodeIds)
+        {
+            add(nodeId);
+        }
+    }
+
+    /**
+     * @return the IDs that are not in the set, in their original order
+     */
+    public synchronized long[] filter(long[] nodeIds)
+    {
+        long[] kept = new long[nodeIds.length];
+        int count = 0;
+        for (long nodeId : nodeIds)
+        {
+            if (!contains(nodeId))
+            {
+                kept[count++] = nodeId;
+            }
+        }
+        skipped += nodeIds.length - count;
+        return count == nodeIds.length ? nodeIds : Arrays.copyOf(kept, count);
+    }
+
+    /**
+     * @return the number of IDs dropped by {@link #filter(long[])} so far
+     */
+    public synchronized long getSkipped()
+    {
+        return skipped;
+    }
+
+    /**
+     * @return the number of IDs in the set
+     */
+    public synchronized long size()
+    {
+        long size = 0;
+        for (long[] words : segments.values())
+        {
+            for (long word : words)
+            {
+                size += Long.bitCount(word);
+            }
+        }
+        return size;
+    }
+
+    public synchronized Set<Integer> getSegmentNumbers()
+    {
+        return new TreeSet<Integer>(segments.keySet());
+    }
+
+    /**
+     * @return a copy of the segments changed since the last call, by segment number
+     */
+    public synchronized Map<Integer, long[]> takeDirtySegments()
+    {
+        Map<Integer, long[]> changed = new HashMap<Integer, long[]>();
+        for (Integer segment : dirty)
+        {
+            changed.put(segment, segments.get(segment).clone());
+        }
+        dirty.clear();
+        return changed;
+    }
+
+    /**
+     * Mark segments dirty again, when they could not be saved.
+     */
+    public synchronized void markDirty(Set<Integer> segmentNumbers)
+    {
+        dirty.addAll(segmentNumbers);
+    }
+
+    /**
+     * Put back a segment that was saved, replacing its current content.
+     */
+    synchronized void restoreSegment(int segment, long[] words)
+    {
+        if (words.length != WORDS_PER_SEGMENT)
+        {
+            throw new IllegalArgumentException("Segment " + segment + " has " + words.length + " words");
+        }
+        segments.put(segment, words);
+    }
+
+    private static int segment(long nodeId)
+    {
+        return (int) (nodeId >>> SEGMENT_SHIFT);
+    }
+
+    private static int word(long nodeId)
+    {
+        return (int) (nodeId & (SEGMENT_SIZE - 1)) >>> 6;
+    }
+
+    private static long bit(long nodeId)
+    {
+        return 1L << (nodeId & 63);
+    }
+}
@@ -0,0 +1,78 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.PropertyCheck;
+
+/**
+ * Groups the nodes by the value of a property, e.g. the identifier of the case or of the customer the processor
+ * updates along with the nodes. The nodes without a value conflict with none.
+ * 
+ * @author Philippe
+ */
+public class PropertyAffinity implements NodeAffinity
+{
+    private NodeDAO nodeDAO;
+    private NamespaceService namespaceService;
+    private String property;
+
+    private QName propertyQName;
+
+    public void setNodeDAO(NodeDAO nodeDAO)
+    {
+        this.nodeDAO = nodeDAO;
+    }
+
+    public void setNamespaceService(NamespaceService namespaceService)
+    {
+        this.namespaceService = namespaceService;
+    }
+
+    /**
+     * @param property
+     *            prefixed name of the property holding the affinity key
+     */
+    public void setProperty(String property)
+    {
+        this.property = property;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "nodeDAO", nodeDAO);
+        PropertyCheck.mandatory(this, "namespaceService", namespaceService);
+        PropertyCheck.mandatory(this, "property", property);
+        propertyQName = QName.createQName(property, namespaceService);
+    }
+
+    @Override
+    public Object[] getAffinityKeys(long[] nodeIds)
+    {
+        List<Long> nodeIdList = new ArrayList<Long>(nodeIds.length);
+        for (long nodeId : nodeIds)
+        {
+            nodeIdList.add(nodeId);
+        }
+        // one bulk load rather than a query per node
+        nodeDAO.cacheNodesById(nodeIdList);
+        Object[] keys = new Object[nodeIds.length];
+        for (int i = 0; i < nodeIds.length; i++)
+        {
+            if (nodeDAO.getNodePair(nodeIds[i]) != null)
+            {
+                keys[i] = nodeDAO.getNodeProperty(nodeIds[i], propertyQName);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PropertyAffinity[" + property + "]";
+    }
+}
@@ -0,0 +1,196 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+/**
+ * Interleaves the pages of several sources by weighted round robin, so that they share the workers of one crawl. The
+ * scheduling is by stride: every source is charged the nodes of its pages divided by its weight, and the next page is
+ * read from the source charged the least. A source with twice the weight of another thus gets twice as many of its
+ * nodes crawled while both have candidates, whatever the size of their pages, and a large source cannot starve a small
+ * one.
+ * <p>
+ * Several fetcher threads may read the source concurrently, each from a different source. The pages are numbered in
+ * the order they are handed out. The interleaving has no position to resume from: the position of a page is its rank.
+ *
+ * @author Philippe
+ */
+public class RoundRobinSource implements NodeSource
+{
+    private final List<Entry> entries;
+    private long nextSeq = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * @param sources
+     *            the sources to interleave, none of them read yet
+     * @param weights
+     *            the weight of each source, at least <tt>1</tt>
+     */
+    public RoundRobinSource(List<NodeSource> sources, List<Integer> weights)
+    {
+        if (sources.size() != weights.size())
+        {
+            throw new IllegalArgumentException(sources.size() + " sources for " + weights.size() + " weights");
+        }
+        entries = new ArrayList<Entry>(sources.size());
+        for (int i = 0; i < sources.size(); i++)
+        {
+            entries.add(new Entry(sources.get(i), Math.max(1, weights.get(i))));
+        }
+    }
+
+    /**
+     * A page holds the nodes of one page of the chosen source and may be empty.
+     */
+    @Override
+    public NodePage nextPage()
+    {
+        Entry entry;
+        while ((entry = claim()) != null)
+        {
+            NodePage page = null;
+            boolean read = false;
+            try
+            {
+                page = entry.source.nextPage();
+                read = true;
+            }
+            finally
+            {
+                release(entry, page, read);
+            }
+            if (page != null)
+            {
+                synchronized (this)
+                {
+                    long seq = nextSeq++;
+                    return new NodePage(seq, seq + 1, page.getNodeIds());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @throws AlfrescoRuntimeException
+     *             always, the interleaving starts over
+     */
+    @Override
+    public void restore(long position)
+    {
+        throw new AlfrescoRuntimeException("Interleaved sources cannot be resumed");
+    }
+
+    /**
+     * Stop handing out pages, the fetchers waiting for a source see the end. Called once the crawl is over, whether
+     * the sources were exhausted or not.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "RoundRobinSource" + entries;
+    }
+
+    /**
+     * Wait for a source to be free if the ones with candidates left are all being read.
+     *
+     * @return the free source charged the least, <tt>null</tt> once they are all exhausted or the source is closed
+     */
+    private synchronized Entry claim()
+    {
+        while (!closed)
+        {
+            Entry next = null;
+            boolean pending = false;
+            for (Entry entry : entries)
+            {
+                if (entry.exhausted)
+                {
+                    continue;
+                }
+                pending = true;
+                if (!entry.busy && (next == null || entry.pass < next.pass))
+                {
+                    next = entry;
+                }
+            }
+            if (next != null)
+            {
+                next.busy = true;
+                return next;
+            }
+            if (!pending)
+            {
+                return null;
+            }
+            try
+            {
+                wait(1000L);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                if (closed)
+                {
+                    return null;
+                }
+                throw new AlfrescoRuntimeException("Interrupted while waiting for a source", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param read
+     *            <tt>false</tt> if the read failed, the source may be read again if the transaction is retried
+     */
+    private synchronized void release(Entry entry, NodePage page, boolean read)
+    {
+        entry.busy = false;
+        if (read && page == null)
+        {
+            entry.exhausted = true;
+        }
+        else if (page != null)
+        {
+            // an empty page still costs a read
+            entry.pass += (double) Math.max(1, page.size()) / entry.weight;
+            entry.pages++;
+            entry.nodes += page.size();
+        }
+        notifyAll();
+    }
+
+    private static class Entry
+    {
+        private final NodeSource source;
+        private final int weight;
+        private double pass = 0;
+        private boolean busy = false;
+        private boolean exhausted = false;
+        private long pages = 0;
+        private long nodes = 0;
+
+        private Entry(NodeSource source, int weight)
+        {
+            this.source = source;
+            this.weight = weight;
+        }
+
+        @Override
+        public String toString()
+        {
+            return weight + "x " + source + ": " + nodes + " nodes in " + pages + " pages"
+                    + (exhausted ? ", exhausted" : "");
+        }
+    }
+}
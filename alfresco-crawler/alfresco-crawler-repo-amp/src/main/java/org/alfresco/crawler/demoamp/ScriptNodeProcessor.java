@@ -0,0 +1,77 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.List;
+
+import org.alfresco.repo.action.executer.ScriptActionExecuter;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.action.ActionService;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Runs the crawl script on the nodes, through the script action or through the {@link CrawlScript compiled script},
+ * once per node or once per batch. This is what the crawler does when no other processor is configured.
+ * 
+ * @author Philippe
+ */
+public class ScriptNodeProcessor extends NodeProcessorAdapter
+{
+    private final ActionService actionService;
+    private final CrawlScript script;
+    private final boolean cacheScript;
+    private final boolean batchMode;
+    private final Action action;
+
+    /**
+     * @param cacheScript
+     *            <tt>true</tt> to run the compiled script, <tt>false</tt> to run the script action
+     * @param batchMode
+     *            <tt>true</tt> to run the compiled script once per batch
+     */
+    public ScriptNodeProcessor(ActionService actionService, CrawlScript script, boolean cacheScript, boolean batchMode)
+    {
+        this.actionService = actionService;
+        this.script = script;
+        this.cacheScript = cacheScript;
+        this.batchMode = cacheScript && batchMode;
+        this.action = actionService.createAction(ScriptActionExecuter.NAME);
+        this.action.setParameterValue(ScriptActionExecuter.PARAM_SCRIPTREF, script.getScriptRef());
+    }
+
+    @Override
+    public void beforeBatch(List<NodeRef> nodeRefs)
+    {
+        if (cacheScript)
+        {
+            script.refresh();
+        }
+        if (batchMode)
+        {
+            script.execute(nodeRefs);
+        }
+    }
+
+    @Override
+    public void process(NodeRef nodeRef)
+    {
+        if (batchMode)
+        {
+            // done for the whole batch
+            return;
+        }
+        if (cacheScript)
+        {
+            script.execute(nodeRef);
+            return;
+        }
+        // execute the script action on the node
+        // see line 800 ActionServiceImplTest
+        actionService.executeAction(action, nodeRef);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ScriptNodeProcessor[" + script.getScriptRef() + (cacheScript ? ", compiled" : ", action")
+                + (batchMode ? ", per batch" : "") + "]";
+    }
+}
@@ -0,0 +1,73 @@
+package org.alfresco.crawler.demoamp;
+
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.util.PropertyCheck;
+
+/**
+ * Times a small query, a repository answering slowly is already busy serving the users.
+ * 
+ * @author Philippe
+ */
+public class SearchLatencyHealthCheck implements HealthCheck
+{
+    private SearchService searchService;
+    private String query = "PATH:\"/app:company_home\"";
+    private long maxLatency = 1000;
+
+    public void setSearchService(SearchService searchService)
+    {
+        this.searchService = searchService;
+    }
+
+    /**
+     * @param query
+     *            the FTS query to time, cheap to run
+     */
+    public void setQuery(String query)
+    {
+        this.query = query;
+    }
+
+    /**
+     * @param maxLatency
+     *            the number of milliseconds above which the check fails
+     */
+    public void setMaxLatency(long maxLatency)
+    {
+        this.maxLatency = maxLatency;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "searchService", searchService);
+        PropertyCheck.mandatory(this, "query", query);
+    }
+
+    @Override
+    public String check()
+    {
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+        sp.setQuery(query);
+        sp.setMaxItems(1);
+        long start = System.currentTimeMillis();
+        ResultSet results = searchService.query(sp);
+        results.close();
+        long latency = System.currentTimeMillis() - start;
+        if (latency > maxLatency)
+        {
+            return "query took " + latency + " ms";
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isSearchCheck()
+    {
+        return true;
+    }
+}
@@ -0,0 +1,243 @@
+package org.alfresco.crawler.demoamp;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.repository.datatype.DefaultTypeConverter;
+import org.alfresco.service.cmr.search.LimitBy;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.util.Pair;
+
+/**
+ * Pages through the result of an FTS query, either by skip count or by <tt>sys:node-dbid</tt> keyset.
+ * 
+ * @author Philippe
+ */
+public class SearchNodeSource implements NodeSource
+{
+    private final SearchService searchService;
+    private final NodeDAO nodeDAO;
+    private final StoreRef storeRef;
+    private final String query;
+    private final int pageLen;
+    private final boolean keysetPaging;
+    private final Long fromDbid;
+    private final Long toDbid;
+
+    // skip count cursor
+    private int startingElement = 0;
+    // keyset cursor: DBID of the last node of the previous page
+    private long lastDbid = -1L;
+    private long seq = 0;
+
+    public SearchNodeSource(
+            SearchService searchService,
+            NodeDAO nodeDAO,
+            StoreRef storeRef,
+            String query,
+            int pageLen,
+            boolean keysetPaging)
+    {
+        this(searchService, nodeDAO, storeRef, query, pageLen, keysetPaging, null, null);
+    }
+
+    /**
+     * @param fromDbid
+     *            the lowest <tt>sys:node-dbid</tt> to return, <tt>null</tt> for no bound
+     * @param toDbid
+     *            the highest <tt>sys:node-dbid</tt> to return, <tt>null</tt> for no bound
+     */
+    public SearchNodeSource(
+            SearchService searchService,
+            NodeDAO nodeDAO,
+            StoreRef storeRef,
+            String query,
+            int pageLen,
+            boolean keysetPaging,
+            Long fromDbid,
+            Long toDbid)
+    {
+        this.searchService = searchService;
+        this.nodeDAO = nodeDAO;
+        this.storeRef = storeRef;
+        this.query = query;
+        this.pageLen = pageLen;
+        this.keysetPaging = keysetPaging;
+        this.fromDbid = fromDbid;
+        this.toDbid = toDbid;
+        if (fromDbid != null)
+        {
+            lastDbid = fromDbid - 1;
+        }
+    }
+
+    @Override
+    public NodePage nextPage()
+    {
+        // the paging follows the hits, the nodes deleted since they were indexed are only left out of the page
+        if (keysetPaging)
+        {
+            Hits hits = executeKeysetQuery(lastDbid);
+            if (hits.count == 0)
+            {
+                return null;
+            }
+            if (hits.lastDbid <= lastDbid)
+            {
+                throw new AlfrescoRuntimeException("Unable to read the DBID of any hit of " + query + " after "
+                        + lastDbid);
+            }
+            lastDbid = hits.lastDbid;
+            return new NodePage(seq++, lastDbid, hits.nodeIds);
+        }
+        Hits hits = executeQuery(startingElement);
+        if (hits.count == 0)
+        {
+            return null;
+        }
+        startingElement += hits.count;
+        return new NodePage(seq++, startingElement, hits.nodeIds);
+    }
+
+    /**
+     * In skip count mode the position is an offset in the result, which is only as reliable as the result is stable
+     * between the runs.
+     */
+    @Override
+    public void restore(long position)
+    {
+        if (keysetPaging)
+        {
+            lastDbid = position;
+        }
+        else
+        {
+            startingElement = (int) position;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SearchNodeSource[" + storeRef + ", " + query + ", "
+                + (keysetPaging ? "dbid " + lastDbid : "skip " + startingElement) + "]";
+    }
+
+    private Hits executeQuery(int startingElement)
+    {
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(storeRef);
+        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+        sp.setSkipCount(startingElement);
+        // -1 unlimited result size
+        sp.setMaxItems(-1);
+        if (fromDbid == null && toDbid == null)
+        {
+            sp.setQuery(query);
+        }
+        else
+        {
+            sp.setQuery("(" + query + ") AND sys:node-dbid:[" + (fromDbid == null ? "MIN" : fromDbid) + " TO "
+                    + (toDbid == null ? "MAX" : toDbid) + "]");
+        }
+        return getHits(searchService.query(sp));
+    }
+
+    /**
+     * Fetch the page of nodes following <tt>lastDbid</tt>, ordered by <tt>sys:node-dbid</tt>. Unlike skip count paging
+     * the cost of a page does not depend on how deep the crawl is, and nodes created or deleted during the crawl do not
+     * shift the following pages.
+     *
+     * @param lastDbid
+     *            DBID of the last node of the previous page, <tt>-1</tt> for the first page
+     * @return the hits of the page, in ascending DBID order
+     */
+    private Hits executeKeysetQuery(long lastDbid)
+    {
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(storeRef);
+        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+        sp.setQuery("(" + query + ") AND sys:node-dbid:[" + (lastDbid + 1) + " TO "
+                + (toDbid == null ? "MAX" : toDbid) + "]");
+        sp.addSort("@" + ContentModel.PROP_NODE_DBID, true);
+        sp.setLimitBy(LimitBy.FINAL_SIZE);
+        sp.setLimit(pageLen);
+        sp.setMaxItems(pageLen);
+        return getHits(searchService.query(sp));
+    }
+
+    /**
+     * Keep the DBIDs of the result rather than its <tt>NodeRef</tt>s, which cost a few hundred bytes each. The result
+     * set resolves its nodes through the node caches, so the IDs are looked up from memory.
+     * 
+     * @return the first <tt>pageLen</tt> hits of the result, in the order of the result
+     */
+    private Hits getHits(ResultSet results)
+    {
+        try
+        {
+            Hits hits = new Hits();
+            hits.count = Math.min(results.length(), pageLen);
+            long[] page = new long[hits.count];
+            int resolved = 0;
+            for (int i = 0; i < hits.count; i++)
+            {
+                Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(results.getNodeRef(i));
+                if (nodePair != null)
+                {
+                    page[resolved++] = nodePair.getFirst();
+                    hits.lastDbid = nodePair.getFirst();
+                }
+                else
+                {
+                    // deleted but still indexed, the index may still tell its DBID
+                    Long dbid = getIndexedDbid(results, i);
+                    if (dbid != null)
+                    {
+                        hits.lastDbid = dbid;
+                    }
+                }
+            }
+            hits.nodeIds = resolved == page.length ? page : Arrays.copyOf(page, resolved);
+            return hits;
+        }
+        finally
+        {
+            results.close();
+        }
+    }
+
+    /**
+     * @return the DBID the index holds for a hit, <tt>null</tt> if it cannot be read
+     */
+    private static Long getIndexedDbid(ResultSet results, int i)
+    {
+        try
+        {
+            Serializable dbid = results.getRow(i).getValue(ContentModel.PROP_NODE_DBID);
+            return dbid == null ? null : DefaultTypeConverter.INSTANCE.convert(Long.class, dbid);
+        }
+        catch (RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * A page of the result: how many hits it had and the DBIDs of those still in the repository.
+     */
+    private static class Hits
+    {
+        private int count;
+        private long[] nodeIds;
+        // DBID of the last hit whose DBID could be read, -1 if none
+        private long lastDbid = -1L;
+    }
+}
@@ -0,0 +1,168 @@
+package org.alfresco.crawler.demoamp;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.PropertyCheck;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the state of the sharded crawls in the attribute service, shared by all the members of the cluster: the round
+ * in progress for each job and the shards of the round that are done. Which member crawls a shard is decided by the
+ * shard job locks, not here.
+ * 
+ * @author Philippe
+ */
+public class ShardRegistry
+{
+    private static Log logger = LogFactory.getLog(ShardRegistry.class);
+
+    private static final String KEY_APPLICATION = "ParallelCrawler";
+    private static final String KEY_ROUND = "round";
+    private static final String KEY_SHARDS = "shards";
+    private static final long LOCK_TIME_TO_LIVE = 10000;
+    private static final long LOCK_RETRY_WAIT = 500;
+    private static final int LOCK_RETRY_COUNT = 20;
+
+    private AttributeService attributeService;
+    private TransactionService transactionService;
+    private JobLockService jobLockService;
+
+    public void setAttributeService(AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    public void setJobLockService(JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    public void init()
+    {
+        PropertyCheck.mandatory(this, "attributeService", attributeService);
+        PropertyCheck.mandatory(this, "transactionService", transactionService);
+        PropertyCheck.mandatory(this, "jobLockService", jobLockService);
+    }
+
+    /**
+     * Join the round in progress for the job, or start a new one if the last round completed or was started with other
+     * parameters. Only one member at a time may start a round.
+     * 
+     * @param minId
+     *            the lowest node ID of a new round
+     * @param maxId
+     *            the highest node ID of a new round
+     */
+    public ShardRound joinRound(
+            final String jobName,
+            final HashMap<String, Serializable> parameters,
+            final int shardCount,
+            final long minId,
+            final long maxId)
+    {
+        QName lockQName = QName.createQName("pc", jobName + "-round");
+        String lockToken = jobLockService.getLock(lockQName, LOCK_TIME_TO_LIVE, LOCK_RETRY_WAIT, LOCK_RETRY_COUNT);
+        try
+        {
+            return transactionService.getRetryingTransactionHelper().doInTransaction(
+                    new RetryingTransactionCallback<ShardRound>()
+                        {
+                            @SuppressWarnings("unchecked")
+                            public ShardRound execute() throws Throwable
+                            {
+                                Map<String, Serializable> current = (Map<String, Serializable>) attributeService
+                                        .getAttribute(KEY_APPLICATION, jobName, KEY_ROUND);
+                                if (current != null && !Boolean.TRUE.equals(current.get(ShardRound.COMPLETED))
+                                        && parameters.equals(current.get(ShardRound.PARAMETERS))
+                                        && Integer.valueOf(shardCount).equals(current.get(ShardRound.SHARD_COUNT)))
+                                {
+                                    return ShardRound.fromMap(current);
+                                }
+                                if (current != null)
+                                {
+                                    // forget the shards of the previous round
+                                    attributeService.removeAttributes(KEY_APPLICATION, KEY_SHARDS,
+                                            current.get(ShardRound.ID));
+                                }
+                                ShardRound round = new ShardRound(UUID.randomUUID().toString(), shardCount, minId,
+                                        maxId);
+                                attributeService.setAttribute(round.toMap(parameters, false), KEY_APPLICATION,
+                                        jobName, KEY_ROUND);
+                                if (logger.isDebugEnabled())
+                                {
+                                    logger.debug("Started " + round + " of " + jobName);
+                                }
+                                return round;
+                            }
+                        }, false, true);
+        }
+        finally
+        {
+            jobLockService.releaseLock(lockToken, lockQName);
+        }
+    }
+
+    public boolean isShardDone(final ShardRound round, final int shard)
+    {
+        return transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<Boolean>()
+                    {
+                        public Boolean execute() throws Throwable
+                        {
+                            return attributeService.exists(KEY_APPLICATION, KEY_SHARDS, round.getId(), shard);
+                        }
+                    }, true, true);
+    }
+
+    public void markShardDone(final ShardRound round, final int shard)
+    {
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+                public Void execute() throws Throwable
+                {
+                    attributeService.setAttribute(System.currentTimeMillis(), KEY_APPLICATION, KEY_SHARDS,
+                            round.getId(), shard);
+                    return null;
+                }
+            }, false, true);
+    }
+
+    /**
+     * Mark the round of the job completed if it still is the current one, the next run starts a new round.
+     */
+    public void completeRound(final String jobName, final ShardRound round)
+    {
+        transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+                @SuppressWarnings("unchecked")
+                public Void execute() throws Throwable
+                {
+                    Map<String, Serializable> current = (Map<String, Serializable>) attributeService.getAttribute(
+                            KEY_APPLICATION, jobName, KEY_ROUND);
+                    if (current == null || !round.getId().equals(current.get(ShardRound.ID)))
+                    {
+                        return null;
+                    }
+                    HashMap<String, Serializable> completed = new HashMap<String, Serializable>(current);
+                    completed.put(ShardRound.COMPLETED, Boolean.TRUE);
+                    attributeService.setAttribute(completed, KEY_APPLICATION, jobName, KEY_ROUND);
+                    attributeService.removeAttributes(KEY_APPLICATION, KEY_SHARDS, round.getId());
+                    return null;
+                }
+            }, false, true);
+    }
+}
@@ -0,0 +1,85 @@
+package org.alfresco.crawler.demoamp;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pass of a sharded crawl over the node ID space [<tt>minId</tt>, <tt>maxId</tt>], cut into <tt>shardCount</tt>
+ * shards of the same width. The bounds are frozen when the round starts so that every cluster member cuts the same
+ * shards, nodes created during the round are left to the next one.
+ * 
+ * @author Philippe
+ */
+public class ShardRound
+{
+    static final String ID = "id";
+    static final String SHARD_COUNT = "shardCount";
+    static final String MIN_ID = "minId";
+    static final String MAX_ID = "maxId";
+    static final String PARAMETERS = "parameters";
+    static final String COMPLETED = "completed";
+
+    private final String id;
+    private final int shardCount;
+    private final long minId;
+    private final long maxId;
+
+    public ShardRound(String id, int shardCount, long minId, long maxId)
+    {
+        this.id = id;
+        this.shardCount = shardCount;
+        this.minId = minId;
+        this.maxId = maxId;
+    }
+
+    static ShardRound fromMap(Map<String, Serializable> round)
+    {
+        return new ShardRound((String) round.get(ID), (Integer) round.get(SHARD_COUNT), (Long) round.get(MIN_ID),
+                (Long) round.get(MAX_ID));
+    }
+
+    HashMap<String, Serializable> toMap(HashMap<String, Serializable> parameters, boolean completed)
+    {
+        HashMap<String, Serializable> round = new HashMap<String, Serializable>();
+        round.put(ID, id);
+        round.put(SHARD_COUNT, shardCount);
+        round.put(MIN_ID, minId);
+        round.put(MAX_ID, maxId);
+        round.put(PARAMETERS, parameters);
+        round.put(COMPLETED, completed);
+        return round;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public int getShardCount()
+    {
+        return shardCount;
+    }
+
+    /**
+     * @return the lowest node ID of the shard
+     */
+    public long getShardStart(int shard)
+    {
+        return minId + (maxId - minId + 1) * shard / shardCount;
+    }
+
+    /**
+     * @return the highest node ID of the shard, lower than its start if the shard is empty
+     */
+    public long getShardEnd(int shard)
+    {
+        return minId + (maxId - minId + 1) * (shard + 1) / shardCount - 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ShardRound[" + id + ", " + shardCount + " shards of " + minId + ".." + maxId + "]";
+    }
+}
@@ -0,0 +1,436 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.node.NodeDAO.ChildAssocRefQueryCallback;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Walks the primary children of one or more root folders with a fork/join pool, without going through the search
+ * subsystem. Each folder is a task that streams its children from the child association table and cuts them into
+ * chunks of <tt>pageLen</tt> nodes; each chunk is a task of its own that keeps the matching nodes as a page and forks a
+ * folder task for every sub-folder, so a huge folder is spread over the pool as it is read and idle workers steal the
+ * folders of the busy ones. Only the subtypes of <tt>cm:folder</tt> are descended into.
+ * <p>
+ * The pages are handed over in the order the walk finds them through a bounded queue, which holds the walk back when
+ * the crawl falls behind. A page waited for in vain for a second is returned empty, so that a fetcher does not sit in
+ * its transaction. The walk has no position to resume from: the position of a page is its rank.
+ *
+ * @author Philippe
+ */
+public class SubtreeSource implements NodeSource
+{
+    private static Log logger = LogFactory.getLog(SubtreeSource.class);
+
+    private static final long[] END = new long[0];
+
+    private final NodeDAO nodeDAO;
+    private final DictionaryService dictionaryService;
+    private final RetryingTransactionHelper txnHelper;
+    private final NodeTypeFilter filter;
+    private final List<NodeRef> roots;
+    private final int pageLen;
+    private final int parallelism;
+    private final BlockingQueue<long[]> pages;
+    private final AtomicLong pendingTasks = new AtomicLong(0);
+    private final AtomicLong foldersWalked = new AtomicLong(0);
+    private long nextSeq = 0;
+    private ForkJoinPool pool;
+    private volatile boolean ended = false;
+    private volatile boolean closed = false;
+    private volatile Throwable walkError;
+
+    /**
+     * @param txnHelper
+     *            the helper the walking tasks open their read-only transactions with
+     * @param filter
+     *            the type and aspects the nodes must match to be crawled, the folders are walked regardless
+     * @param roots
+     *            the folders to walk, crawled themselves if they match
+     * @param pageLen
+     *            the number of children read from a folder before they are handed to a task of their own
+     * @param parallelism
+     *            the number of walking threads, <tt>0</tt> for one per core
+     */
+    public SubtreeSource(
+            NodeDAO nodeDAO,
+            DictionaryService dictionaryService,
+            RetryingTransactionHelper txnHelper,
+            NodeTypeFilter filter,
+            List<NodeRef> roots,
+            int pageLen,
+            int parallelism)
+    {
+        this.nodeDAO = nodeDAO;
+        this.dictionaryService = dictionaryService;
+        this.txnHelper = txnHelper;
+        this.filter = filter;
+        this.roots = new ArrayList<NodeRef>(roots);
+        this.pageLen = pageLen;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        // the walk may run a few pages ahead of each walking thread
+        this.pages = new ArrayBlockingQueue<long[]>(this.parallelism * 4);
+    }
+
+    /**
+     * A page holds the matching nodes of one chunk of children and may be empty.
+     */
+    @Override
+    public NodePage nextPage()
+    {
+        start();
+        long[] nodeIds;
+        try
+        {
+            nodeIds = ended ? END : pages.poll(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while walking " + roots, e);
+        }
+        if (nodeIds == END)
+        {
+            ended = true;
+            // the other fetchers see the end as well
+            pages.offer(END);
+            if (walkError != null)
+            {
+                throw new AlfrescoRuntimeException("Unable to walk " + roots, walkError);
+            }
+            return null;
+        }
+        synchronized (this)
+        {
+            long seq = nextSeq++;
+            return new NodePage(seq, seq + 1, nodeIds == null ? new long[0] : nodeIds);
+        }
+    }
+
+    /**
+     * @throws AlfrescoRuntimeException
+     *             always, a walk starts over
+     */
+    @Override
+    public void restore(long position)
+    {
+        throw new AlfrescoRuntimeException("A subtree walk cannot be resumed");
+    }
+
+    /**
+     * Stop the walk, the tasks not started yet are dropped. Called once the crawl is over, whether the walk ended or
+     * not.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        if (pool != null)
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SubtreeSource[" + roots + ", " + filter + ", " + foldersWalked.get() + " folders walked, "
+                + pendingTasks.get() + " tasks pending]";
+    }
+
+    private synchronized void start()
+    {
+        if (pool != null || closed)
+        {
+            return;
+        }
+        pool = new ForkJoinPool(parallelism);
+        pendingTasks.incrementAndGet();
+        pool.execute(new RootsTask());
+    }
+
+    private void submit(RecursiveAction task)
+    {
+        pendingTasks.incrementAndGet();
+        task.fork();
+    }
+
+    /**
+     * Called by every task once it is done, the last one marks the end of the walk.
+     */
+    private void taskDone()
+    {
+        if (pendingTasks.decrementAndGet() == 0)
+        {
+            offer(END);
+        }
+    }
+
+    private void taskFailed(Throwable e)
+    {
+        if (walkError == null)
+        {
+            walkError = e;
+        }
+        logger.error("Unable to walk " + roots, e);
+        // no point in walking on, the crawl stops at the error
+        offer(END);
+    }
+
+    /**
+     * Queue a page, blocking the walking thread until the crawl takes it. The pool is told so it may start another
+     * thread in the meantime.
+     */
+    private void offer(final long[] nodeIds)
+    {
+        try
+        {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker()
+                {
+                    private boolean queued = false;
+
+                    public boolean block() throws InterruptedException
+                    {
+                        queued = closed || pages.offer(nodeIds, 1, TimeUnit.SECONDS);
+                        return queued;
+                    }
+
+                    public boolean isReleasable()
+                    {
+                        return queued || closed || (queued = pages.offer(nodeIds));
+                    }
+                });
+        }
+        catch (InterruptedException e)
+        {
+            // closed
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <R> R doInTransaction(final RetryingTransactionCallback<R> callback)
+    {
+        return AuthenticationUtil.runAsSystem(new RunAsWork<R>()
+            {
+                public R doWork() throws Exception
+                {
+                    return txnHelper.doInTransaction(callback, true, true);
+                }
+            });
+    }
+
+    /**
+     * A task of the walk, done or failed whatever it throws.
+     */
+    private abstract class WalkTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected final void compute()
+        {
+            try
+            {
+                if (!closed)
+                {
+                    walk();
+                }
+            }
+            catch (Throwable e)
+            {
+                if (!closed)
+                {
+                    taskFailed(e);
+                }
+            }
+            finally
+            {
+                taskDone();
+            }
+        }
+
+        protected abstract void walk();
+    }
+
+    /**
+     * Resolves the roots and handles them as the first chunk.
+     */
+    private class RootsTask extends WalkTask
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void walk()
+        {
+            List<Long> rootIds = doInTransaction(new RetryingTransactionCallback<List<Long>>()
+                {
+                    public List<Long> execute() throws Throwable
+                    {
+                        List<Long> rootIds = new ArrayList<Long>(roots.size());
+                        for (NodeRef root : roots)
+                        {
+                            Pair<Long, NodeRef> rootPair = nodeDAO.getNodePair(root);
+                            if (rootPair == null)
+                            {
+                                logger.warn("Root " + root + " does not exist, it is not walked");
+                                continue;
+                            }
+                            rootIds.add(rootPair.getFirst());
+                        }
+                        return rootIds;
+                    }
+                });
+            new ChunkTask(rootIds).walk();
+        }
+    }
+
+    /**
+     * Streams the children of a folder, a chunk at a time. The chunks already forked are skipped if the transaction is
+     * retried, the children come in a stable order.
+     */
+    private class FolderTask extends WalkTask
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Long folderId;
+        private int forkedChildren = 0;
+
+        private FolderTask(Long folderId)
+        {
+            this.folderId = folderId;
+        }
+
+        @Override
+        protected void walk()
+        {
+            foldersWalked.incrementAndGet();
+            doInTransaction(new RetryingTransactionCallback<Void>()
+                {
+                    public Void execute() throws Throwable
+                    {
+                        nodeDAO.getChildAssocs(folderId, null, null, null, Boolean.TRUE, null,
+                                new ChildAssocRefQueryCallback()
+                                    {
+                                        private List<Long> chunk = new ArrayList<Long>(pageLen);
+                                        private int index = 0;
+
+                                        public boolean preLoadNodes()
+                                        {
+                                            return false;
+                                        }
+
+                                        public boolean orderResults()
+                                        {
+                                            return true;
+                                        }
+
+                                        public boolean handle(
+                                                Pair<Long, ChildAssociationRef> childAssocPair,
+                                                Pair<Long, NodeRef> parentNodePair,
+                                                Pair<Long, NodeRef> childNodePair)
+                                        {
+                                            if (index++ < forkedChildren)
+                                            {
+                                                return !closed;
+                                            }
+                                            chunk.add(childNodePair.getFirst());
+                                            if (chunk.size() >= pageLen)
+                                            {
+                                                forkChunk();
+                                            }
+                                            return !closed;
+                                        }
+
+                                        public void done()
+                                        {
+                                            if (!chunk.isEmpty())
+                                            {
+                                                forkChunk();
+                                            }
+                                        }
+
+                                        private void forkChunk()
+                                        {
+                                            submit(new ChunkTask(chunk));
+                                            forkedChildren += chunk.size();
+                                            chunk = new ArrayList<Long>(pageLen);
+                                        }
+                                    });
+                        return null;
+                    }
+                });
+        }
+    }
+
+    /**
+     * Keeps the matching nodes of a chunk as a page and forks the walk of its folders.
+     */
+    private class ChunkTask extends WalkTask
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Long> nodeIds;
+
+        private ChunkTask(List<Long> nodeIds)
+        {
+            this.nodeIds = nodeIds;
+        }
+
+        @Override
+        protected void walk()
+        {
+            final List<Long> folderIds = new ArrayList<Long>();
+            long[] page = doInTransaction(new RetryingTransactionCallback<long[]>()
+                {
+                    public long[] execute() throws Throwable
+                    {
+                        folderIds.clear();
+                        nodeDAO.cacheNodesById(nodeIds);
+                        long[] page = new long[nodeIds.size()];
+                        int count = 0;
+                        for (Long nodeId : nodeIds)
+                        {
+                            QName type = nodeDAO.getNodeType(nodeId);
+                            if (dictionaryService.isSubClass(type, ContentModel.TYPE_FOLDER))
+                            {
+                                folderIds.add(nodeId);
+                            }
+                            if (filter.accept(nodeId))
+                            {
+                                page[count++] = nodeId;
+                            }
+                        }
+                        return Arrays.copyOf(page, count);
+                    }
+                });
+            for (Long folderId : folderIds)
+            {
+                submit(new FolderTask(folderId));
+            }
+            if (page.length > 0)
+            {
+                offer(page);
+            }
+        }
+    }
+}
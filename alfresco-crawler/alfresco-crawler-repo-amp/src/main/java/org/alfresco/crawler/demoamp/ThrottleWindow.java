@@ -0,0 +1,97 @@
+package org.alfresco.crawler.demoamp;
+
+/**
+ * The limits of a crawl during a time of the day, e.g. business hours. A window ending before it starts runs over
+ * midnight.
+ * 
+ * @author Philippe
+ */
+public class ThrottleWindow
+{
+    private int start;
+    private int end;
+    private double nodesPerSecond = -1;
+    private double transactionsPerSecond = -1;
+
+    /**
+     * @param start
+     *            the time the window opens, <tt>HH:mm</tt>
+     */
+    public void setStart(String start)
+    {
+        this.start = parseMinuteOfDay(start);
+    }
+
+    /**
+     * @param end
+     *            the time the window closes, <tt>HH:mm</tt>
+     */
+    public void setEnd(String end)
+    {
+        this.end = parseMinuteOfDay(end);
+    }
+
+    /**
+     * @param nodesPerSecond
+     *            the node rate in the window, <tt>0</tt> to pause the crawl, less than <tt>0</tt> for no limit
+     */
+    public void setNodesPerSecond(double nodesPerSecond)
+    {
+        this.nodesPerSecond = nodesPerSecond;
+    }
+
+    /**
+     * @param transactionsPerSecond
+     *            the transaction rate in the window, <tt>0</tt> to pause the crawl, less than <tt>0</tt> for no limit
+     */
+    public void setTransactionsPerSecond(double transactionsPerSecond)
+    {
+        this.transactionsPerSecond = transactionsPerSecond;
+    }
+
+    public double getNodesPerSecond()
+    {
+        return nodesPerSecond;
+    }
+
+    public double getTransactionsPerSecond()
+    {
+        return transactionsPerSecond;
+    }
+
+    /**
+     * @param minuteOfDay
+     *            minutes since midnight
+     */
+    public boolean contains(int minuteOfDay)
+    {
+        if (start <= end)
+        {
+            return minuteOfDay >= start && minuteOfDay < end;
+        }
+        return minuteOfDay >= start || minuteOfDay < end;
+    }
+
+    private static int parseMinuteOfDay(String time)
+    {
+        String[] parts = time.trim().split(":");
+        if (parts.length != 2)
+        {
+            throw new IllegalArgumentException("Time of day must be HH:mm: " + time);
+        }
+        int hours = Integer.parseInt(parts[0]);
+        int minutes = Integer.parseInt(parts[1]);
+        if (hours < 0 || hours > 24 || minutes < 0 || minutes > 59)
+        {
+            throw new IllegalArgumentException("Time of day must be HH:mm: " + time);
+        }
+        return hours * 60 + minutes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%02d:%02d-%02d:%02d %s nodes/s %s txn/s", start / 60, start % 60, end / 60, end % 60,
+                nodesPerSecond, transactionsPerSecond);
+    }
+}
@@ -0,0 +1,68 @@
+package org.alfresco.crawler.demoamp;
+
+/**
+ * Hands out permits at a steady rate with a burst of one second worth of permits. A request larger than the bucket
+ * is granted and pays for itself by delaying the following ones, so a big batch is never starved.
+ * 
+ * @author Philippe
+ */
+public class TokenBucket
+{
+    private double rate;
+    private double tokens;
+    private long lastRefill = -1;
+
+    /**
+     * @param rate
+     *            permits per second, <tt>0</tt> or less for no limit
+     */
+    public TokenBucket(double rate)
+    {
+        setRate(rate);
+    }
+
+    public synchronized double getRate()
+    {
+        return rate;
+    }
+
+    public synchronized void setRate(double rate)
+    {
+        if (rate != this.rate)
+        {
+            this.rate = rate;
+            tokens = Math.min(tokens, capacity());
+        }
+    }
+
+    /**
+     * Take permits.
+     * 
+     * @param now
+     *            the current time in milliseconds
+     * @return the number of milliseconds to wait before using them
+     */
+    public synchronized long reserve(int permits, long now)
+    {
+        if (rate <= 0)
+        {
+            return 0;
+        }
+        if (lastRefill < 0)
+        {
+            tokens = capacity();
+        }
+        else
+        {
+            tokens = Math.min(capacity(), tokens + (now - lastRefill) * rate / 1000.0);
+        }
+        lastRefill = now;
+        tokens -= permits;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1000.0 / rate);
+    }
+
+    private double capacity()
+    {
+        return Math.max(1.0, rate);
+    }
+}
@@ -0,0 +1,15 @@
+package org.alfresco.crawler.demoamp;
+
+/**
+ * A {@link NodeSource} that is never exhausted: once it has returned every node available it keeps returning empty
+ * pages, and the fetchers wait {@link #getPollDelay()} between two reads.
+ * 
+ * @author Philippe
+ */
+public interface TrackingSource extends NodeSource
+{
+    /**
+     * @return the number of milliseconds to wait before reading the next page, <tt>0</tt> if more nodes are ready
+     */
+    long getPollDelay();
+}
@@ -0,0 +1,301 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.domain.node.Node;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.solr.NodeParameters;
+import org.alfresco.repo.solr.SOLRTrackingComponent;
+import org.alfresco.repo.solr.SOLRTrackingComponent.NodeQueryCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.util.Pair;
+
+/**
+ * Walks the repository transactions in ID order and returns the nodes they left changed, the way the index tracker
+ * does. A node belongs to the transaction of its last change only, so it is returned once however often it changed.
+ * Deleted nodes are skipped.
+ * <p>
+ * The transaction IDs are cut into ranges of <tt>rangeSize</tt> IDs which are claimed atomically, so several fetcher
+ * threads may walk the source concurrently. The changes of a range are read with the node queries of the index
+ * tracking, a chunk of at most <tt>maxResults</tt> nodes at a time, rather than with one query per transaction.
+ * <p>
+ * A following source never ends: once it has caught up it polls for the transactions committed since. It only goes
+ * up to the transactions committed <tt>commitLag</tt> milliseconds ago, as a transaction gets its ID before it
+ * commits; a transaction taking longer than that to commit may be passed before it is visible.
+ * 
+ * @author Philippe
+ */
+public class TransactionChangeSource implements TrackingSource
+{
+    private final NodeDAO nodeDAO;
+    private final SOLRTrackingComponent trackingComponent;
+    private final StoreRef storeRef;
+    private final NodeTypeFilter filter;
+    private final int rangeSize;
+    private final int maxResults;
+    private final Long fromTxnId;
+    private final Long toTxnId;
+    private final boolean follow;
+    private final long commitLag;
+    private final long pollInterval;
+    private volatile boolean caughtUp = false;
+    private final AtomicLong nextRangeStart = new AtomicLong(-1L);
+    private final AtomicLong nextSeq = new AtomicLong(0);
+    private volatile long maxTxnId = -1L;
+
+    /**
+     * @param trackingComponent
+     *            reads the nodes changed by a range of transactions
+     * @param filter
+     *            the type and aspects the nodes must match
+     * @param rangeSize
+     *            the number of transaction IDs claimed at a time
+     * @param maxResults
+     *            the number of changed nodes read in one query
+     * @param fromTxnId
+     *            the first transaction to walk, <tt>null</tt> to start from the first one in the database
+     * @param toTxnId
+     *            the last transaction to walk, <tt>null</tt> to stop at the last one when the walk starts
+     */
+    public TransactionChangeSource(
+            NodeDAO nodeDAO,
+            SOLRTrackingComponent trackingComponent,
+            StoreRef storeRef,
+            NodeTypeFilter filter,
+            int rangeSize,
+            int maxResults,
+            Long fromTxnId,
+            Long toTxnId)
+    {
+        this.nodeDAO = nodeDAO;
+        this.trackingComponent = trackingComponent;
+        this.storeRef = storeRef;
+        this.filter = filter;
+        this.rangeSize = rangeSize;
+        this.maxResults = maxResults;
+        this.fromTxnId = fromTxnId;
+        this.toTxnId = toTxnId;
+        this.follow = false;
+        this.commitLag = 0;
+        this.pollInterval = 0;
+    }
+
+    /**
+     * Create a source following the transactions as they are committed.
+     * 
+     * @param fromTxnId
+     *            the first transaction to walk, <tt>null</tt> to start after the last one committed
+     * @param commitLag
+     *            the milliseconds the source stays behind the last commit
+     * @param pollInterval
+     *            the milliseconds to wait for new transactions once caught up
+     */
+    public TransactionChangeSource(
+            NodeDAO nodeDAO,
+            SOLRTrackingComponent trackingComponent,
+            StoreRef storeRef,
+            NodeTypeFilter filter,
+            int rangeSize,
+            int maxResults,
+            Long fromTxnId,
+            long commitLag,
+            long pollInterval)
+    {
+        this.nodeDAO = nodeDAO;
+        this.trackingComponent = trackingComponent;
+        this.storeRef = storeRef;
+        this.filter = filter;
+        this.rangeSize = rangeSize;
+        this.maxResults = maxResults;
+        this.fromTxnId = fromTxnId;
+        this.toTxnId = null;
+        this.follow = true;
+        this.commitLag = commitLag;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * A page holds the changed nodes of one range of transactions and may be empty.
+     */
+    @Override
+    public NodePage nextPage()
+    {
+        initBounds();
+        long rangeStart;
+        long rangeEnd;
+        long seq;
+        synchronized (this)
+        {
+            // the sequence must follow the transaction order
+            rangeStart = nextRangeStart.get();
+            if (rangeStart > maxTxnId && follow)
+            {
+                maxTxnId = Math.max(maxTxnId, getLastCommittedTxnId());
+            }
+            if (rangeStart > maxTxnId)
+            {
+                if (!follow)
+                {
+                    return null;
+                }
+                caughtUp = true;
+                return new NodePage(nextSeq.getAndIncrement(), rangeStart, new long[0]);
+            }
+            caughtUp = false;
+            rangeEnd = Math.min(rangeStart + rangeSize, maxTxnId + 1);
+            nextRangeStart.set(rangeEnd);
+            seq = nextSeq.getAndIncrement();
+        }
+        return new NodePage(seq, rangeEnd, loadChanges(rangeStart, rangeEnd));
+    }
+
+    @Override
+    public long getPollDelay()
+    {
+        return caughtUp ? pollInterval : 0L;
+    }
+
+    /**
+     * @param position
+     *            the first transaction ID not walked yet
+     */
+    @Override
+    public void restore(long position)
+    {
+        nextRangeStart.set(position);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TransactionChangeSource[" + storeRef + ", " + filter + ", next txn " + nextRangeStart.get() + " of "
+                + maxTxnId + "]";
+    }
+
+    /**
+     * Unless the source follows the transactions, the upper bound is read once and the transactions committed during
+     * the crawl are left to the next one.
+     */
+    private synchronized void initBounds()
+    {
+        if (maxTxnId >= 0)
+        {
+            return;
+        }
+        if (follow)
+        {
+            maxTxnId = getLastCommittedTxnId();
+            nextRangeStart.compareAndSet(-1L, fromTxnId != null ? fromTxnId : maxTxnId + 1);
+            return;
+        }
+        Long minId = fromTxnId != null ? fromTxnId : nodeDAO.getMinTxnId();
+        Long maxId = toTxnId != null ? toTxnId : nodeDAO.getMaxTxnId();
+        nextRangeStart.compareAndSet(-1L, minId == null ? 0L : minId);
+        maxTxnId = maxId == null ? 0L : maxId;
+    }
+
+    private long getLastCommittedTxnId()
+    {
+        Long txnId = nodeDAO.getMaxTxnIdByCommitTime(System.currentTimeMillis() - commitLag);
+        return txnId == null ? 0L : txnId;
+    }
+
+    /**
+     * @return the IDs of the matching live nodes last changed by the transactions with IDs in [<tt>fromId</tt>,
+     *         <tt>toId</tt>[
+     */
+    private long[] loadChanges(long fromId, long toId)
+    {
+        Set<Long> nodeIds = new LinkedHashSet<Long>();
+        long chunkStart = fromId;
+        while (chunkStart < toId)
+        {
+            List<Node> nodes = queryChanges(chunkStart, toId - 1);
+            if (nodes.size() < maxResults)
+            {
+                addNodeIds(nodes, nodeIds, toId);
+                break;
+            }
+            // the chunk may end in the middle of its last transaction, which is read again with the next one
+            long lastTxnId = nodes.get(nodes.size() - 1).getTransaction().getId();
+            if (lastTxnId == chunkStart)
+            {
+                // a single transaction larger than a chunk
+                for (NodeRef.Status status : nodeDAO.getTxnChangesForStore(storeRef, chunkStart))
+                {
+                    if (!status.isDeleted())
+                    {
+                        nodeIds.add(status.getDbId());
+                    }
+                }
+                chunkStart++;
+            }
+            else
+            {
+                addNodeIds(nodes, nodeIds, lastTxnId);
+                chunkStart = lastTxnId;
+            }
+        }
+        long[] page = new long[nodeIds.size()];
+        if (nodeIds.isEmpty())
+        {
+            return page;
+        }
+        nodeDAO.cacheNodesById(new ArrayList<Long>(nodeIds));
+        int count = 0;
+        for (Long nodeId : nodeIds)
+        {
+            Pair<Long, NodeRef> nodePair = nodeDAO.getNodePair(nodeId);
+            if (nodePair != null && filter.accept(nodeId))
+            {
+                page[count++] = nodeId;
+            }
+        }
+        return count == page.length ? page : Arrays.copyOf(page, count);
+    }
+
+    /**
+     * @return the nodes of the store last changed by the transactions with IDs in [<tt>fromId</tt>, <tt>toId</tt>],
+     *         deleted ones included, by transaction then node ID; at most <tt>maxResults</tt> of them
+     */
+    private List<Node> queryChanges(long fromId, long toId)
+    {
+        NodeParameters nodeParameters = new NodeParameters();
+        nodeParameters.setStoreProtocol(storeRef.getProtocol());
+        nodeParameters.setStoreIdentifier(storeRef.getIdentifier());
+        nodeParameters.setFromTxnId(fromId);
+        nodeParameters.setToTxnId(toId);
+        nodeParameters.setMaxResults(maxResults);
+        final List<Node> nodes = new ArrayList<Node>();
+        trackingComponent.getNodes(nodeParameters, new NodeQueryCallback()
+            {
+                public boolean handleNode(Node node)
+                {
+                    nodes.add(node);
+                    return true;
+                }
+            });
+        return nodes;
+    }
+
+    /**
+     * Add the IDs of the nodes changed by the transactions before <tt>toTxnId</tt>, the deleted ones are left for
+     * {@link NodeDAO#getNodePair(Long)} to drop.
+     */
+    private static void addNodeIds(List<Node> nodes, Set<Long> nodeIds, long toTxnId)
+    {
+        for (Node node : nodes)
+        {
+            if (node.getTransaction().getId() < toTxnId)
+            {
+                nodeIds.add(node.getId());
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package org.alfresco.crawler.demoamp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The worker threads shared by the crawls running at the same time in this server. The budget is divided between the
+ * running crawls in proportion to their weight: a crawl never gets more than it can use, what it leaves is shared
+ * between the others. When there are more crawls than threads the lightest ones get none and wait until a crawl
+ * finishes.
+ * 
+ * @author Philippe
+ */
+public class WorkerBudget
+{
+    private static Log logger = LogFactory.getLog(WorkerBudget.class);
+
+    private int maxThreads = 16;
+    private final List<Allocation> allocations = new ArrayList<Allocation>();
+
+    /**
+     * The share of the budget of a crawl.
+     */
+    public static class Allocation
+    {
+        private final String name;
+        private final int weight;
+        private final int demand;
+        private final Runnable listener;
+        private volatile int threads;
+
+        private Allocation(String name, int weight, int demand, Runnable listener)
+        {
+            this.name = name;
+            this.weight = weight;
+            this.demand = demand;
+            this.listener = listener;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return the number of threads the crawl may use at the moment
+         */
+        public int getThreads()
+        {
+            return threads;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + " (weight " + weight + "): " + threads + "/" + demand + " threads";
+        }
+    }
+
+    /**
+     * @param maxThreads
+     *            the number of workers processing batches at the same time over all the crawls
+     */
+    public void setMaxThreads(int maxThreads)
+    {
+        this.maxThreads = maxThreads;
+    }
+
+    public int getMaxThreads()
+    {
+        return maxThreads;
+    }
+
+    public void init()
+    {
+        if (maxThreads < 1)
+        {
+            throw new IllegalArgumentException("Invalid maxThreads " + maxThreads);
+        }
+    }
+
+    /**
+     * Take a share of the budget for a crawl.
+     * 
+     * @param weight
+     *            the priority of the crawl, a crawl of weight 2 gets twice the threads of one of weight 1
+     * @param demand
+     *            the most threads the crawl can use
+     * @param listener
+     *            called whenever the share of the crawl changes, <tt>null</tt> if the crawl polls
+     *            {@link Allocation#getThreads()}
+     */
+    public Allocation join(String name, int weight, int demand, Runnable listener)
+    {
+        if (weight < 1)
+        {
+            throw new IllegalArgumentException("Invalid weight " + weight + " for " + name);
+        }
+        Allocation allocation = new Allocation(name, weight, demand, listener);
+        synchronized (this)
+        {
+            allocations.add(allocation);
+        }
+        redistribute();
+        return allocation;
+    }
+
+    /**
+     * Give the share of a finished crawl back to the others.
+     */
+    public void leave(Allocation allocation)
+    {
+        synchronized (this)
+        {
+            allocations.remove(allocation);
+        }
+        redistribute();
+    }
+
+    private void redistribute()
+    {
+        List<Allocation> changed = new ArrayList<Allocation>();
+        synchronized (this)
+        {
+            int[] shares = share(maxThreads, allocations);
+            for (int i = 0; i < shares.length; i++)
+            {
+                Allocation allocation = allocations.get(i);
+                if (allocation.threads != shares[i])
+                {
+                    allocation.threads = shares[i];
+                    changed.add(allocation);
+                }
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Worker budget of " + maxThreads + " threads: " + allocations);
+            }
+        }
+        // outside of the lock, the listeners may call back
+        for (Allocation allocation : changed)
+        {
+            if (allocation.listener != null)
+            {
+                allocation.listener.run();
+            }
+        }
+    }
+
+    /**
+     * Weighted max-min fair share of the threads: the allocations that need less than their weighted share get what
+     * they need and the rest is shared again between the others, the threads left by the rounding going to the largest
+     * remainders.
+     */
+    static int[] share(int budget, List<Allocation> allocations)
+    {
+        int[] shares = new int[allocations.size()];
+        boolean[] settled = new boolean[shares.length];
+        int remaining = budget;
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            long totalWeight = 0;
+            for (int i = 0; i < shares.length; i++)
+            {
+                if (!settled[i])
+                {
+                    totalWeight += allocations.get(i).weight;
+                }
+            }
+            for (int i = 0; i < shares.length && totalWeight > 0; i++)
+            {
+                Allocation allocation = allocations.get(i);
+                if (!settled[i] && allocation.demand * totalWeight <= (long) remaining * allocation.weight)
+                {
+                    shares[i] = allocation.demand;
+                    settled[i] = true;
+                    remaining -= allocation.demand;
+                    changed = true;
+                }
+            }
+        }
+
+        long totalWeight = 0;
+        for (int i = 0; i < shares.length; i++)
+        {
+            if (!settled[i])
+            {
+                totalWeight += allocations.get(i).weight;
+            }
+        }
+        if (totalWeight == 0)
+        {
+            return shares;
+        }
+        long[] remainders = new long[shares.length];
+        int left = remaining;
+        for (int i = 0; i < shares.length; i++)
+        {
+            if (!settled[i])
+            {
+                long weighted = (long) remaining * allocations.get(i).weight;
+                shares[i] = (int) (weighted / totalWeight);
+                remainders[i] = weighted % totalWeight;
+                left -= shares[i];
+            }
+        }
+        for (; left > 0; left--)
+        {
+            int largest = -1;
+            for (int i = 0; i < shares.length; i++)
+            {
+                if (!settled[i] && shares[i] < allocations.get(i).demand
+                        && (largest < 0 || remainders[i] > remainders[largest]))
+                {
+                    largest = i;
+                }
+            }
+            if (largest < 0)
+            {
+                break;
+            }
+            shares[largest]++;
+            remainders[largest] = -1;
+        }
+        return shares;
+    }
+}
@@ -0,0 +1,80 @@
+package org.alfresco.crawler.demoamp;
+
+/**
+ * Bounds the number of workers of a crawl processing a batch at the same time. The <tt>BatchProcessor</tt> is started
+ * with as many threads as the crawl may ever use, the workers above the current limit wait in {@link #acquire()}. The
+ * limit may drop to <tt>0</tt> when a shared budget gives the crawl no slot, so the waiting workers are let go once the
+ * crawl is stopped.
+ * 
+ * @author Philippe
+ */
+public class WorkerGate
+{
+    private int limit;
+    private int active;
+    private boolean stopped = false;
+
+    public WorkerGate(int limit)
+    {
+        this.limit = limit;
+    }
+
+    public synchronized int getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Change the limit, the workers above a lowered limit finish their batch first.
+     */
+    public synchronized void setLimit(int limit)
+    {
+        this.limit = limit;
+        notifyAll();
+    }
+
+    public synchronized int getActive()
+    {
+        return active;
+    }
+
+    /**
+     * Wait for the worker to be allowed to take a batch.
+     * 
+     * @return <tt>false</tt> if the gate was stopped meanwhile, the worker must skip its batch and not call
+     *         {@link #release()}
+     */
+    public synchronized boolean acquire() throws InterruptedException
+    {
+        while (active >= limit && !stopped)
+        {
+            wait(1000L);
+        }
+        if (stopped)
+        {
+            return false;
+        }
+        active++;
+        return true;
+    }
+
+    public synchronized void release()
+    {
+        active--;
+        notifyAll();
+    }
+
+    /**
+     * Let the waiting workers go and turn the next ones away, the crawl is over.
+     */
+    public synchronized void stop()
+    {
+        stopped = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isStopped()
+    {
+        return stopped;
+    }
+}
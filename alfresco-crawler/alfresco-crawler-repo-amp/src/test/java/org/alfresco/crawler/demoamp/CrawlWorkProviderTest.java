@@ -0,0 +1,298 @@
+package org.alfresco.crawler.demoamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.util.VmShutdownListener;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the settling and the affinity deferral of the batches of a crawl, driven without a
+ * <tt>BatchProcessor</tt>. It lives in the package of the provider to commit and fail the batches as the transaction of
+ * a worker would.
+ */
+public class CrawlWorkProviderTest
+{
+    private static final VmShutdownListener vmShutdownListener = new VmShutdownListener("CrawlWorkProviderTest");
+
+    private final CheckpointTracker checkpointTracker = new CheckpointTracker(null);
+    private final List<DeadLetter> deadLetters = new ArrayList<DeadLetter>();
+    private CrawlWorkProvider workProvider;
+
+    @After
+    public void after()
+    {
+        if (workProvider != null)
+        {
+            workProvider.stop();
+        }
+    }
+
+    /**
+     * A source of the given pages, their position is their rank plus one.
+     */
+    private static NodeSource source(final long[]... pages)
+    {
+        return new NodeSource()
+            {
+                private int next = 0;
+
+                public synchronized NodePage nextPage()
+                {
+                    if (next == pages.length)
+                    {
+                        return null;
+                    }
+                    next++;
+                    return new NodePage(next - 1, next, pages[next - 1]);
+                }
+
+                public void restore(long position)
+                {
+                }
+            };
+    }
+
+    private CrawlWorkProvider start(NodeSource source, int batchSize)
+    {
+        RetryingTransactionHelper txnHelper = new RetryingTransactionHelper()
+            {
+                @Override
+                public <R> R doInTransaction(RetryingTransactionCallback<R> callback, boolean readOnly,
+                        boolean requiresNew)
+                {
+                    try
+                    {
+                        return callback.execute();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        throw e;
+                    }
+                    catch (Throwable e)
+                    {
+                        throw new AlfrescoRuntimeException("Callback failed", e);
+                    }
+                }
+            };
+        workProvider = new CrawlWorkProvider(source, checkpointTracker, txnHelper, batchSize, 20, 8, 1,
+                vmShutdownListener);
+        workProvider.setDeadLetters(new DeadLetterStore()
+            {
+                @Override
+                public void add(String jobName, DeadLetter deadLetter)
+                {
+                    deadLetters.add(deadLetter);
+                }
+            }, "test", false);
+        return workProvider;
+    }
+
+    /**
+     * Hand the work out as the <tt>BatchProcessor</tt> does, asking for the next batch before submitting the one it
+     * got, and run it again as long as failed batches were requeued meanwhile, as <tt>ParallelCrawler</tt> does. A
+     * batch holding a failing node fails, the others are committed.
+     * 
+     * @return the batches in the order they were processed
+     */
+    private List<CrawlBatch> crawl(Set<Long> failing)
+    {
+        List<CrawlBatch> processed = new ArrayList<CrawlBatch>();
+        do
+        {
+            CrawlBatch held = null;
+            Collection<CrawlBatch> work;
+            do
+            {
+                work = workProvider.getNextWork();
+                if (held != null)
+                {
+                    process(held, failing);
+                    processed.add(held);
+                }
+                held = work.isEmpty() ? null : work.iterator().next();
+            }
+            while (held != null);
+        }
+        while (workProvider.hasRequeuedWork());
+        return processed;
+    }
+
+    private void process(CrawlBatch batch, Set<Long> failing)
+    {
+        for (long nodeId : batch.getNodeIds())
+        {
+            if (failing.contains(nodeId))
+            {
+                batch.setError(new IllegalStateException("Node " + nodeId + " is locked"));
+                assertTrue(workProvider.settle(batch));
+                return;
+            }
+        }
+        batch.setCommitted();
+        assertTrue(workProvider.settle(batch));
+    }
+
+    private static String toString(List<CrawlBatch> batches)
+    {
+        StringBuilder string = new StringBuilder();
+        for (CrawlBatch batch : batches)
+        {
+            string.append(Arrays.toString(batch.getNodeIds())).append(batch.getRetries());
+        }
+        return string.toString();
+    }
+
+    @Test
+    public void testFailedBatchIsSplitThenRetriedThenDeadLettered()
+    {
+        start(source(new long[] { 1, 2, 3 }, new long[] { 4, 5 }), 3);
+        workProvider.setRetries(2, 10L, 10L);
+        workProvider.start();
+
+        List<CrawlBatch> processed = crawl(Collections.singleton(2L));
+        // split, then node 2 retried twice before it is given up on
+        assertEquals("[1, 2, 3]0[4, 5]0[1]0[2]0[3]0[2]1[2]2", toString(processed));
+        assertEquals(1, deadLetters.size());
+        assertEquals(2, deadLetters.get(0).getNodeId());
+        assertEquals(2, deadLetters.get(0).getRetries());
+        assertTrue(deadLetters.get(0).getError().contains("Node 2 is locked"));
+        // the node given up on does not hold the checkpoint back
+        assertEquals(Long.valueOf(2L), checkpointTracker.getCommittedPosition());
+        // settled once only
+        assertFalse(workProvider.settle(processed.get(0)));
+    }
+
+    @Test
+    public void testNoRetryOnceStopped()
+    {
+        start(source(new long[] { 1, 2 }), 2);
+        workProvider.setRetries(3, 10L, 10L);
+        workProvider.start();
+
+        CrawlBatch batch = workProvider.getNextWork().iterator().next();
+        workProvider.stop();
+        assertTrue(workProvider.getNextWork().isEmpty());
+        process(batch, Collections.singleton(1L));
+        assertFalse(workProvider.hasRequeuedWork());
+        assertTrue(deadLetters.isEmpty());
+        assertNull(checkpointTracker.getCommittedPosition());
+    }
+
+    /**
+     * Key the nodes by the given map, the others have no key.
+     */
+    private static NodeAffinity affinity(final Map<Long, String> keys)
+    {
+        return new NodeAffinity()
+            {
+                public Object[] getAffinityKeys(long[] nodeIds)
+                {
+                    Object[] nodeKeys = new Object[nodeIds.length];
+                    for (int i = 0; i < nodeIds.length; i++)
+                    {
+                        nodeKeys[i] = keys.get(nodeIds[i]);
+                    }
+                    return nodeKeys;
+                }
+            };
+    }
+
+    private CrawlBatch next()
+    {
+        Collection<CrawlBatch> work = workProvider.getNextWork();
+        assertEquals(1, work.size());
+        return work.iterator().next();
+    }
+
+    @Test
+    public void testBusyKeyDeferredUntilReleased() throws Exception
+    {
+        Map<Long, String> keys = new HashMap<Long, String>();
+        keys.put(1L, "a");
+        keys.put(2L, "a");
+        keys.put(3L, "b");
+        keys.put(5L, "a");
+        start(source(new long[] { 1, 2, 3, 4, 5 }), 1);
+        workProvider.setAffinity(affinity(keys));
+        CrawlMetrics metrics = new CrawlMetrics("test");
+        workProvider.setMetrics(metrics);
+        workProvider.start();
+
+        // the nodes of a key come next to each other: 1, 2, 5, 3 then the unkeyed 4
+        final CrawlBatch first = next();
+        assertEquals(1L, first.getNodeIds()[0]);
+        // the BatchProcessor only runs the batch it holds once it gets the next one, that one is not held back
+        final CrawlBatch second = next();
+        assertEquals(2L, second.getNodeIds()[0]);
+        // 5 waits for the batches of a in flight, 3 and 4 overtake it
+        CrawlBatch third = next();
+        assertEquals(3L, third.getNodeIds()[0]);
+        CrawlBatch fourth = next();
+        assertEquals(4L, fourth.getNodeIds()[0]);
+        assertEquals(1L, metrics.getBatchesDeferred());
+
+        // the source is exhausted meanwhile, the deferred batch is still handed out once a is free
+        Thread worker = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep(200L);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    process(first, Collections.<Long> emptySet());
+                    process(second, Collections.<Long> emptySet());
+                }
+            };
+        worker.start();
+        CrawlBatch deferred = next();
+        worker.join();
+        assertEquals(5L, deferred.getNodeIds()[0]);
+        assertTrue(first.isCommitted() && second.isCommitted());
+
+        process(third, Collections.<Long> emptySet());
+        process(fourth, Collections.<Long> emptySet());
+        assertTrue(workProvider.getNextWork().isEmpty());
+        process(deferred, Collections.<Long> emptySet());
+        assertEquals(Long.valueOf(1L), checkpointTracker.getCommittedPosition());
+        assertFalse(workProvider.hasRequeuedWork());
+    }
+
+    @Test
+    public void testFreeKeysNotDeferred()
+    {
+        Map<Long, String> keys = new HashMap<Long, String>();
+        keys.put(1L, "a");
+        keys.put(2L, "b");
+        keys.put(3L, "c");
+        start(source(new long[] { 1, 2, 3 }), 1);
+        workProvider.setAffinity(affinity(keys));
+        CrawlMetrics metrics = new CrawlMetrics("test");
+        workProvider.setMetrics(metrics);
+        workProvider.start();
+
+        List<CrawlBatch> processed = crawl(Collections.<Long> emptySet());
+        assertEquals("[1]0[2]0[3]0", toString(processed));
+        assertEquals(0L, metrics.getBatchesDeferred());
+    }
+}
@@ -0,0 +1,98 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.alfresco.crawler.demoamp.AdaptiveController;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the adjustments made by the adaptive controller.
+ */
+public class AdaptiveControllerTest
+{
+    private AdaptiveController controller;
+
+    @Before
+    public void before()
+    {
+        controller = new AdaptiveController();
+        controller.setMinThreads(2);
+        controller.setMaxThreads(10);
+        controller.setMinBatchSize(50);
+        controller.setMaxBatchSize(1000);
+        controller.setTargetBatchTime(2000);
+        controller.setMaxRetryRate(0.05);
+        controller.setMaxCommitLatency(500);
+        controller.init();
+        controller.start(6, 300);
+    }
+
+    @Test
+    public void testGrowsWhileThroughputHolds()
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            controller.batchCommitted(300, 1900, 100);
+            controller.adjust(1000);
+        }
+        assertEquals(9, controller.getThreads());
+        assertEquals(300, controller.getBatchSize());
+    }
+
+    @Test
+    public void testBacksOffOnRetries()
+    {
+        controller.batchCommitted(300, 1900, 100);
+        controller.batchRetried();
+        controller.adjust(1000);
+        assertTrue(controller.getThreads() < 6);
+        assertEquals(150, controller.getBatchSize());
+    }
+
+    @Test
+    public void testBacksOffOnSlowCommits()
+    {
+        controller.batchCommitted(300, 1000, 1000);
+        controller.adjust(1000);
+        assertTrue(controller.getThreads() < 6);
+    }
+
+    @Test
+    public void testReversesWhenThroughputDrops()
+    {
+        controller.batchCommitted(300, 1900, 100);
+        controller.adjust(1000);
+        assertEquals(7, controller.getThreads());
+        controller.batchCommitted(100, 1900, 100);
+        controller.adjust(1000);
+        assertEquals(6, controller.getThreads());
+    }
+
+    @Test
+    public void testBatchSizeTowardsTargetTime()
+    {
+        // 300 nodes in 500 ms, the target of 2 s is 1200 nodes
+        controller.batchCommitted(300, 400, 100);
+        controller.adjust(1000);
+        assertEquals(750, controller.getBatchSize());
+        // 750 nodes in 1250 ms, half way to the 1200 nodes of the target
+        controller.batchCommitted(750, 1200, 50);
+        controller.adjust(1000);
+        assertEquals(975, controller.getBatchSize());
+    }
+
+    @Test
+    public void testStaysWithinLimits()
+    {
+        for (int i = 0; i < 20; i++)
+        {
+            controller.batchCommitted(300, 1900, 100);
+            controller.batchRetried();
+            controller.adjust(1000);
+        }
+        assertEquals(2, controller.getThreads());
+        assertEquals(50, controller.getBatchSize());
+    }
+}
@@ -0,0 +1,465 @@
+package org.alfresco.crawler.demoamp.test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Creates large trees of test nodes for the crawl load tests: a folder tree with a configurable fan-out per level,
+ * whose leaf folders get the content nodes. The content nodes get their type, aspects and properties drawn from
+ * configurable distributions.
+ * <p>
+ * The nodes are created by several threads, at most <tt>batchSize</tt> nodes per transaction and with the policy
+ * behaviours disabled, which is what makes millions of nodes a matter of minutes. The draws are seeded by the position
+ * of the node in the tree, the same settings always give the same dataset.
+ *
+ * @author Philippe
+ */
+public class BulkFixtureGenerator
+{
+    private static Log logger = LogFactory.getLog(BulkFixtureGenerator.class);
+    private static final long LOGGING_INTERVAL = 100000;
+
+    private NodeService nodeService;
+    private TransactionService transactionService;
+    private BehaviourFilter behaviourFilter;
+    private int[] folderFanOut = new int[] { 10 };
+    private int contentPerFolder = 1000;
+    private QName folderType = ContentModel.TYPE_FOLDER;
+    private Map<QName, Double> contentTypes = Collections.singletonMap(ContentModel.TYPE_CONTENT, 1.0);
+    private Map<QName, Double> aspects = Collections.emptyMap();
+    private Map<QName, ValueGenerator> properties = Collections.emptyMap();
+    private int threads = 4;
+    private int batchSize = 500;
+    private long seed = 0;
+
+    /**
+     * Draws the value of a property of a content node.
+     */
+    public interface ValueGenerator
+    {
+        /**
+         * @param index
+         *            the rank of the content node in the tree
+         * @return the value, <tt>null</tt> to leave the property out
+         */
+        Serializable next(Random random, long index);
+    }
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    public void setBehaviourFilter(BehaviourFilter behaviourFilter)
+    {
+        this.behaviourFilter = behaviourFilter;
+    }
+
+    /**
+     * @param folderFanOut
+     *            the number of folders each folder of the previous level gets, from the top; no level puts the content
+     *            right under the root
+     */
+    public void setFolderFanOut(int... folderFanOut)
+    {
+        this.folderFanOut = folderFanOut;
+    }
+
+    /**
+     * @param contentPerFolder
+     *            the number of content nodes of each leaf folder
+     */
+    public void setContentPerFolder(int contentPerFolder)
+    {
+        this.contentPerFolder = contentPerFolder;
+    }
+
+    public void setFolderType(QName folderType)
+    {
+        this.folderType = folderType;
+    }
+
+    /**
+     * @param contentTypes
+     *            the types of the content nodes with their relative weights
+     */
+    public void setContentTypes(Map<QName, Double> contentTypes)
+    {
+        this.contentTypes = contentTypes;
+    }
+
+    /**
+     * @param aspects
+     *            the aspects to add to the content nodes with the probability of each, between <tt>0</tt> and
+     *            <tt>1</tt>
+     */
+    public void setAspects(Map<QName, Double> aspects)
+    {
+        this.aspects = aspects;
+    }
+
+    /**
+     * @param properties
+     *            the properties to set on the content nodes, on top of <tt>cm:name</tt>
+     */
+    public void setProperties(Map<QName, ValueGenerator> properties)
+    {
+        this.properties = properties;
+    }
+
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * @param batchSize
+     *            the number of nodes created in one transaction
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+
+    /**
+     * @return the number of content nodes the current settings create
+     */
+    public long getContentCount()
+    {
+        long count = contentPerFolder;
+        for (int fanOut : folderFanOut)
+        {
+            count *= fanOut;
+        }
+        return count;
+    }
+
+    /**
+     * Create a folder named <tt>name</tt> under <tt>parent</tt> and the tree of nodes below it, as system.
+     *
+     * @param createdContent
+     *            receives the content nodes created, <tt>null</tt> not to keep them
+     * @return the root folder of the tree
+     */
+    public NodeRef generate(final NodeRef parent, final String name, final List<NodeRef> createdContent)
+    {
+        return AuthenticationUtil.runAsSystem(new RunAsWork<NodeRef>()
+            {
+                public NodeRef doWork() throws Exception
+                {
+                    return generateTree(parent, name, createdContent);
+                }
+            });
+    }
+
+    private NodeRef generateTree(final NodeRef parent, final String name, List<NodeRef> createdContent)
+    {
+        long startTime = System.currentTimeMillis();
+        final NodeRef root = transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<NodeRef>()
+                    {
+                        public NodeRef execute() throws Throwable
+                        {
+                            return createNode(parent, folderType, name, 0);
+                        }
+                    }, false, true);
+        List<NodeRef> parents = Collections.singletonList(root);
+        final AtomicLong created = new AtomicLong(1);
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+            {
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "BulkFixtureGenerator-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        try
+        {
+            for (int level = 0; level < folderFanOut.length; level++)
+            {
+                parents = createLevel(executor, parents, folderType, "folder-" + level + "-", folderFanOut[level],
+                        true, created);
+            }
+            List<NodeRef> content = createLevel(executor, parents, null, "content-", contentPerFolder,
+                    createdContent != null, created);
+            if (createdContent != null)
+            {
+                createdContent.addAll(content);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        if (logger.isInfoEnabled())
+        {
+            logger.info("Created " + created.get() + " nodes under " + name + " in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+        }
+        return root;
+    }
+
+    /**
+     * Create <tt>count</tt> children under each parent, in transactions of at most <tt>batchSize</tt> nodes run on the
+     * executor, and wait for all of them.
+     *
+     * @param type
+     *            the type of the children, <tt>null</tt> for content nodes
+     * @param keep
+     *            <tt>true</tt> to return the children created
+     * @return the children, in the order of their parents, if they were kept
+     */
+    private List<NodeRef> createLevel(ExecutorService executor, List<NodeRef> parents, final QName type,
+            final String namePrefix, final int count, final boolean keep, final AtomicLong created)
+    {
+        List<Future<List<NodeRef>>> batches = new ArrayList<Future<List<NodeRef>>>();
+        long firstIndex = 0;
+        for (final NodeRef parent : parents)
+        {
+            for (int from = 0; from < count; from += batchSize)
+            {
+                final long batchIndex = firstIndex + from;
+                final int batchCount = Math.min(batchSize, count - from);
+                batches.add(executor.submit(new Callable<List<NodeRef>>()
+                    {
+                        public List<NodeRef> call() throws Exception
+                        {
+                            return AuthenticationUtil.runAsSystem(new RunAsWork<List<NodeRef>>()
+                                {
+                                    public List<NodeRef> doWork() throws Exception
+                                    {
+                                        List<NodeRef> children = createNodes(parent, type, namePrefix, batchIndex,
+                                                batchCount, created);
+                                        return keep ? children : null;
+                                    }
+                                });
+                        }
+                    }));
+            }
+            firstIndex += count;
+        }
+
+        List<NodeRef> children = new ArrayList<NodeRef>(keep ? (int) Math.min(Integer.MAX_VALUE, firstIndex) : 0);
+        try
+        {
+            for (Future<List<NodeRef>> batch : batches)
+            {
+                List<NodeRef> batchChildren = batch.get();
+                if (keep)
+                {
+                    children.addAll(batchChildren);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while creating " + namePrefix + "* nodes", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new AlfrescoRuntimeException("Unable to create " + namePrefix + "* nodes", e.getCause());
+        }
+        return children;
+    }
+
+    /**
+     * Create <tt>count</tt> children under <tt>parent</tt> in one transaction, with the behaviours disabled.
+     *
+     * @param type
+     *            the type of the children, <tt>null</tt> for content nodes
+     * @param firstIndex
+     *            the rank of the first child in its level, which names it and seeds its draws
+     */
+    private List<NodeRef> createNodes(final NodeRef parent, final QName type, final String namePrefix,
+            final long firstIndex, final int count, final AtomicLong created)
+    {
+        List<NodeRef> children = transactionService.getRetryingTransactionHelper().doInTransaction(
+                new RetryingTransactionCallback<List<NodeRef>>()
+                    {
+                        public List<NodeRef> execute() throws Throwable
+                        {
+                            behaviourFilter.disableBehaviour();
+                            try
+                            {
+                                List<NodeRef> children = new ArrayList<NodeRef>(count);
+                                for (long index = firstIndex; index < firstIndex + count; index++)
+                                {
+                                    children.add(createNode(parent, type, namePrefix + index, index));
+                                }
+                                return children;
+                            }
+                            finally
+                            {
+                                behaviourFilter.enableBehaviour();
+                            }
+                        }
+                    }, false, true);
+        if (created != null)
+        {
+            long total = created.addAndGet(count);
+            if (logger.isDebugEnabled() && total / LOGGING_INTERVAL != (total - count) / LOGGING_INTERVAL)
+            {
+                logger.debug("Created " + total + " nodes");
+            }
+        }
+        return children;
+    }
+
+    /**
+     * @param type
+     *            the type of the node, <tt>null</tt> for a content node
+     */
+    private NodeRef createNode(NodeRef parent, QName type, String name, long index)
+    {
+        QName nodeType = type;
+        Map<QName, Serializable> nodeProperties = new HashMap<QName, Serializable>();
+        nodeProperties.put(ContentModel.PROP_NAME, name);
+        List<QName> nodeAspects = new ArrayList<QName>();
+        if (type == null)
+        {
+            Random random = new Random(seed * 31 + index);
+            nodeType = draw(contentTypes, random);
+            for (Map.Entry<QName, Double> aspect : aspects.entrySet())
+            {
+                if (random.nextDouble() < aspect.getValue())
+                {
+                    nodeAspects.add(aspect.getKey());
+                }
+            }
+            for (Map.Entry<QName, ValueGenerator> property : properties.entrySet())
+            {
+                Serializable value = property.getValue().next(random, index);
+                if (value != null)
+                {
+                    nodeProperties.put(property.getKey(), value);
+                }
+            }
+        }
+        NodeRef nodeRef = nodeService.createNode(parent, ContentModel.ASSOC_CONTAINS,
+                QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, name), nodeType, nodeProperties).getChildRef();
+        for (QName aspect : nodeAspects)
+        {
+            nodeService.addAspect(nodeRef, aspect, null);
+        }
+        return nodeRef;
+    }
+
+    private static QName draw(Map<QName, Double> weights, Random random)
+    {
+        double total = 0;
+        for (double weight : weights.values())
+        {
+            total += weight;
+        }
+        double draw = random.nextDouble() * total;
+        QName last = null;
+        for (Map.Entry<QName, Double> weight : weights.entrySet())
+        {
+            last = weight.getKey();
+            draw -= weight.getValue();
+            if (draw < 0)
+            {
+                break;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return one of the values, each as likely as the others
+     */
+    public static ValueGenerator oneOf(final Serializable... values)
+    {
+        return new ValueGenerator()
+            {
+                public Serializable next(Random random, long index)
+                {
+                    return values[random.nextInt(values.length)];
+                }
+            };
+    }
+
+    /**
+     * @return a <tt>Long</tt> uniformly drawn in [<tt>min</tt>, <tt>max</tt>[
+     */
+    public static ValueGenerator uniform(final long min, final long max)
+    {
+        return new ValueGenerator()
+            {
+                public Serializable next(Random random, long index)
+                {
+                    return min + (long) (random.nextDouble() * (max - min));
+                }
+            };
+    }
+
+    /**
+     * @return a date uniformly drawn in [<tt>from</tt>, <tt>to</tt>[
+     */
+    public static ValueGenerator dateBetween(final Date from, final Date to)
+    {
+        final ValueGenerator time = uniform(from.getTime(), to.getTime());
+        return new ValueGenerator()
+            {
+                public Serializable next(Random random, long index)
+                {
+                    return new Date((Long) time.next(random, index));
+                }
+            };
+    }
+
+    /**
+     * @return the value with the given probability, <tt>null</tt> otherwise
+     */
+    public static ValueGenerator sometimes(final double probability, final ValueGenerator value)
+    {
+        return new ValueGenerator()
+            {
+                public Serializable next(Random random, long index)
+                {
+                    return random.nextDouble() < probability ? value.next(random, index) : null;
+                }
+            };
+    }
+}
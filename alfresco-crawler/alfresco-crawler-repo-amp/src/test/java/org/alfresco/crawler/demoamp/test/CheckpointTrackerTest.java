@@ -0,0 +1,52 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.alfresco.crawler.demoamp.CheckpointTracker;
+import org.alfresco.crawler.demoamp.NodePage;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the committed position of a crawl.
+ */
+public class CheckpointTrackerTest
+{
+    private static long[] nodes(int count)
+    {
+        long[] nodeIds = new long[count];
+        for (int i = 0; i < count; i++)
+        {
+            nodeIds[i] = i + 1;
+        }
+        return nodeIds;
+    }
+
+    @Test
+    public void testPagesCompletedOutOfOrder()
+    {
+        CheckpointTracker tracker = new CheckpointTracker(null);
+        NodePage first = new NodePage(0, 100L, nodes(2));
+        NodePage second = new NodePage(1, 200L, nodes(1));
+        tracker.pageFetched(first);
+        tracker.pageFetched(second);
+
+        tracker.nodesDone(second, 1);
+        assertNull(tracker.getCommittedPosition());
+        tracker.nodesDone(first, 1);
+        assertNull(tracker.getCommittedPosition());
+        tracker.nodesDone(first, 1);
+        assertEquals(Long.valueOf(200L), tracker.getCommittedPosition());
+    }
+
+    @Test
+    public void testGapInSequence()
+    {
+        CheckpointTracker tracker = new CheckpointTracker(50L);
+        // page 0 is still being fetched, an empty page 1 must not move the position
+        tracker.pageFetched(new NodePage(1, 200L, nodes(0)));
+        assertEquals(Long.valueOf(50L), tracker.getCommittedPosition());
+        tracker.pageFetched(new NodePage(0, 100L, nodes(0)));
+        assertEquals(Long.valueOf(200L), tracker.getCommittedPosition());
+    }
+}
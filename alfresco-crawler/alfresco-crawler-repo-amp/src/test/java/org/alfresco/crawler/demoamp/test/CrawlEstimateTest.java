@@ -0,0 +1,29 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertEquals;
+
+import org.alfresco.crawler.demoamp.CrawlEstimate;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the runtime projection of a dry run.
+ */
+public class CrawlEstimateTest
+{
+    @Test
+    public void testProcessingBoundProjection()
+    {
+        // 1M nodes at 2 ms each, pages of 5000 read in 500 ms
+        CrawlEstimate estimate = new CrawlEstimate(1000000, true, 100, 0, 2000000L, 500000000L, 5000, 1, 4);
+        assertEquals(500000, estimate.getProjectedMs());
+        assertEquals(250000, estimate.getProjectedMs(8));
+    }
+
+    @Test
+    public void testFetchBoundProjection()
+    {
+        // with enough threads reading the 200 pages takes longer than processing the nodes
+        CrawlEstimate estimate = new CrawlEstimate(1000000, true, 100, 0, 2000000L, 500000000L, 5000, 1, 4);
+        assertEquals(100000, estimate.getProjectedMs(64));
+    }
+}
@@ -0,0 +1,136 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.alfresco.crawler.demoamp.CrawlThrottle;
+import org.alfresco.crawler.demoamp.HealthCheck;
+import org.alfresco.crawler.demoamp.ThrottleWindow;
+import org.alfresco.crawler.demoamp.TokenBucket;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the rate limits and the pauses of a crawl.
+ */
+public class CrawlThrottleTest
+{
+    private static final int NOON = 12 * 60;
+    private static final int NIGHT = 2 * 60;
+
+    private static ThrottleWindow window(String start, String end, double nodesPerSecond)
+    {
+        ThrottleWindow window = new ThrottleWindow();
+        window.setStart(start);
+        window.setEnd(end);
+        window.setNodesPerSecond(nodesPerSecond);
+        return window;
+    }
+
+    @Test
+    public void testTokenBucket()
+    {
+        TokenBucket bucket = new TokenBucket(100);
+        // one second worth of burst
+        assertEquals(0, bucket.reserve(100, 0));
+        // a batch larger than what is left waits for its tokens
+        assertEquals(3000, bucket.reserve(300, 0));
+        // and delays the next one
+        assertEquals(2000, bucket.reserve(100, 2000));
+    }
+
+    @Test
+    public void testUnlimited()
+    {
+        TokenBucket bucket = new TokenBucket(-1);
+        assertEquals(0, bucket.reserve(1000000, 0));
+    }
+
+    @Test
+    public void testWindowOverMidnight()
+    {
+        ThrottleWindow window = window("22:00", "06:00", 10);
+        assertTrue(window.contains(23 * 60));
+        assertTrue(window.contains(NIGHT));
+        assertFalse(window.contains(NOON));
+        assertFalse(window.contains(6 * 60));
+    }
+
+    @Test
+    public void testBusinessHours()
+    {
+        CrawlThrottle throttle = new CrawlThrottle();
+        throttle.setWindows(Collections.singletonList(window("08:00", "19:00", 10)));
+        // unlimited at night
+        assertEquals(0, throttle.reserve(1000, 0, NIGHT));
+        // 10 nodes per second during the day
+        assertEquals(0, throttle.reserve(10, 0, NOON));
+        assertEquals(1000, throttle.reserve(10, 0, NOON));
+    }
+
+    @Test
+    public void testPausingWindow()
+    {
+        CrawlThrottle throttle = new CrawlThrottle();
+        throttle.setWindows(Arrays.asList(window("08:00", "19:00", 0)));
+        assertEquals(-1, throttle.reserve(10, 0, NOON));
+        assertEquals(0, throttle.reserve(10, 0, NIGHT));
+    }
+
+    private static HealthCheck healthCheck(final boolean[] busy, final boolean searchCheck)
+    {
+        return new HealthCheck()
+            {
+                public String check()
+                {
+                    return busy[0] ? "busy" : null;
+                }
+
+                public boolean isSearchCheck()
+                {
+                    return searchCheck;
+                }
+            };
+    }
+
+    @Test
+    public void testPausedWhileUnhealthy()
+    {
+        final boolean[] busy = new boolean[] { true };
+        CrawlThrottle throttle = new CrawlThrottle();
+        throttle.setHealthCheckInterval(1000);
+        throttle.setHealthChecks(Collections.singletonList(healthCheck(busy, false)));
+        assertEquals(-1, throttle.reserve(10, 0, NOON));
+        busy[0] = false;
+        // the outcome of the check is kept for the interval
+        assertEquals(-1, throttle.reserve(10, 500, NOON));
+        assertEquals(0, throttle.reserve(10, 1000, NOON));
+    }
+
+    @Test
+    public void testSearchCheckOnlyPausesTheSearches()
+    {
+        boolean[] slowIndex = new boolean[] { true };
+        CrawlThrottle throttle = new CrawlThrottle();
+        throttle.setHealthChecks(Collections.singletonList(healthCheck(slowIndex, true)));
+        assertEquals(-1, throttle.forCrawl(true).reserve(10, 0, NOON));
+        // a crawl of the database does not wait for the index
+        assertEquals(0, throttle.forCrawl(false).reserve(10, 0, NOON));
+    }
+
+    @Test
+    public void testEachCrawlHasItsOwnRate()
+    {
+        CrawlThrottle throttle = new CrawlThrottle();
+        throttle.setNodesPerSecond(10);
+        CrawlThrottle first = throttle.forCrawl(true);
+        CrawlThrottle second = throttle.forCrawl(false);
+        assertEquals(0, first.reserve(10, 0, NOON));
+        assertEquals(1000, first.reserve(10, 0, NOON));
+        // the tokens taken by the first crawl are not taken from the second
+        assertEquals(0, second.reserve(10, 0, NOON));
+    }
+}
@@ -0,0 +1,60 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.crawler.demoamp.DeadLetter;
+import org.alfresco.crawler.demoamp.DeadLetterSource;
+import org.alfresco.crawler.demoamp.DeadLetterStore;
+import org.alfresco.crawler.demoamp.NodePage;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the paging of the dead letters.
+ */
+public class DeadLetterSourceTest
+{
+    private static DeadLetterStore store(final long... nodeIds)
+    {
+        return new DeadLetterStore()
+            {
+                @Override
+                public List<DeadLetter> list(String jobName, int maxItems)
+                {
+                    List<DeadLetter> deadLetters = new ArrayList<DeadLetter>();
+                    for (long nodeId : nodeIds)
+                    {
+                        deadLetters.add(new DeadLetter(nodeId, "failed", 0L, 3));
+                    }
+                    return deadLetters;
+                }
+            };
+    }
+
+    @Test
+    public void testPages()
+    {
+        DeadLetterSource source = new DeadLetterSource(store(3, 7, 12, 40, 41), "fix", 2);
+        NodePage page = source.nextPage();
+        assertArrayEquals(new long[] { 3, 7 }, page.getNodeIds());
+        assertEquals(7, page.getPosition());
+        assertArrayEquals(new long[] { 12, 40 }, source.nextPage().getNodeIds());
+        assertArrayEquals(new long[] { 41 }, source.nextPage().getNodeIds());
+        assertNull(source.nextPage());
+    }
+
+    @Test
+    public void testResumesAfterPosition()
+    {
+        DeadLetterSource source = new DeadLetterSource(store(3, 7, 12, 40, 41), "fix", 10);
+        source.restore(7);
+        NodePage page = source.nextPage();
+        assertEquals(0, page.getSeq());
+        assertArrayEquals(new long[] { 12, 40, 41 }, page.getNodeIds());
+        assertNull(source.nextPage());
+    }
+}
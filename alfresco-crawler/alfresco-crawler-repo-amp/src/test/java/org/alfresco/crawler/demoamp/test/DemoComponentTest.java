@@ -1,18 +1,20 @@
 package org.alfresco.crawler.demoamp.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import org.alfresco.crawler.demoamp.AddAspectNodeProcessor;
 import org.alfresco.crawler.demoamp.DemoComponent;
 import org.alfresco.crawler.demoamp.ParallelCrawler;
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.policy.BehaviourFilter;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
-import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.ServiceRegistry;
 import org.alfresco.service.cmr.model.FileFolderService;
-import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.ContentService;
 import org.alfresco.service.cmr.repository.ContentWriter;
@@ -22,7 +24,6 @@ import org.alfresco.service.cmr.search.SearchService;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.service.namespace.RegexQNamePattern;
-import org.alfresco.service.transaction.TransactionService;
 import org.apache.log4j.Logger;
 import org.junit.Before;
 import org.junit.Test;
@@ -86,6 +87,10 @@ public class DemoComponentTest
     @Qualifier("parallelCrawler")
     private ParallelCrawler parallelCrawler;
 
+    @Autowired
+    @Qualifier("policyBehaviourFilter")
+    private BehaviourFilter behaviourFilter;
+
     private String testFolderName;
 
     private NodeRef testFolderNodeRef;
@@ -145,29 +150,14 @@ public class DemoComponentTest
 
     private void createFirstGeneration(NodeRef testFolderNodeRef, List<NodeRef> listOfNodeRef)
     {
-        final NodeRef finalTestFolderNodeRef = testFolderNodeRef;
-        final NodeService finalNodeService = nodeService;
-        final List<NodeRef> finalListOfNodeRef = listOfNodeRef;
-        // use TransactionWork to wrap service calls in a user transaction
-        TransactionService transactionService = serviceRegistry.getTransactionService();
-        RetryingTransactionCallback<Object> firstGenWork = new RetryingTransactionCallback<Object>()
-            {
-                public Object execute() throws Exception
-                {
-                    ContentService contentService = serviceRegistry.getContentService();
-                    for (int i = 0; i < NUMBER_OF_TESTING_NODES; i++)
-                    {
-                        FileInfo fi = ffs.create(finalTestFolderNodeRef, "TESTNODE" + System.currentTimeMillis() + i,
-                                ContentModel.TYPE_CONTENT);
-                        // adding versionable aspect
-
-                        finalListOfNodeRef.add(fi.getNodeRef());
-
-                    }
-                    return null;
-                }
-            };
-        transactionService.getRetryingTransactionHelper().doInTransaction(firstGenWork);
+        // 30 folders of 1000 documents, created in parallel in transactions of 500 nodes
+        BulkFixtureGenerator generator = new BulkFixtureGenerator();
+        generator.setNodeService(nodeService);
+        generator.setTransactionService(serviceRegistry.getTransactionService());
+        generator.setBehaviourFilter(behaviourFilter);
+        generator.setFolderFanOut(30);
+        generator.setContentPerFolder(NUMBER_OF_TESTING_NODES / 30);
+        generator.generate(testFolderNodeRef, "fixture", listOfNodeRef);
     }
 
     @Test
@@ -185,6 +175,127 @@ public class DemoComponentTest
         }
     }
 
+    @Test
+    public void testKeysetPaging()
+    {
+        parallelCrawler.setBigPageLen(5000);
+        boolean keysetPaging = parallelCrawler.isKeysetPaging();
+        parallelCrawler.setKeysetPaging(true);
+        try
+        {
+            parallelCrawler.execute();
+        }
+        finally
+        {
+            parallelCrawler.setKeysetPaging(keysetPaging);
+        }
+        assertTrue(parallelCrawler.getNumOfProcessedNodes().get() >= listOfNodeRef.size());
+        log.debug("Exec time: " + parallelCrawler.getExecTimeMs());
+
+        for (NodeRef nodeRef : listOfNodeRef)
+        {
+            boolean test = nodeService.hasAspect(nodeRef, QName.createQName("crawler.test.model", "test"));
+            assertEquals(test, true);
+        }
+    }
+
+    @Test
+    public void testSkipCountPaging()
+    {
+        parallelCrawler.setBigPageLen(5000);
+        boolean keysetPaging = parallelCrawler.isKeysetPaging();
+        parallelCrawler.setKeysetPaging(false);
+        try
+        {
+            parallelCrawler.execute();
+        }
+        finally
+        {
+            parallelCrawler.setKeysetPaging(keysetPaging);
+        }
+        assertTrue(parallelCrawler.getNumOfProcessedNodes().get() >= listOfNodeRef.size());
+        log.debug("Exec time: " + parallelCrawler.getExecTimeMs());
+
+        for (NodeRef nodeRef : listOfNodeRef)
+        {
+            boolean test = nodeService.hasAspect(nodeRef, QName.createQName("crawler.test.model", "test"));
+            assertEquals(test, true);
+        }
+    }
+
+    @Test
+    public void testDatabaseSource()
+    {
+        parallelCrawler.setSourceType(ParallelCrawler.SourceType.DATABASE);
+        try
+        {
+            parallelCrawler.execute();
+        }
+        finally
+        {
+            parallelCrawler.setSourceType(ParallelCrawler.SourceType.SEARCH);
+        }
+        assertTrue(parallelCrawler.getNumOfProcessedNodes().get() >= listOfNodeRef.size());
+        log.debug("Exec time: " + parallelCrawler.getExecTimeMs());
+
+        for (NodeRef nodeRef : listOfNodeRef)
+        {
+            boolean test = nodeService.hasAspect(nodeRef, QName.createQName("crawler.test.model", "test"));
+            assertEquals(test, true);
+        }
+    }
+
+    @Test
+    public void testCachedScript()
+    {
+        boolean cacheScript = parallelCrawler.isCacheScript();
+        parallelCrawler.setCacheScript(true);
+        try
+        {
+            parallelCrawler.execute();
+        }
+        finally
+        {
+            parallelCrawler.setCacheScript(cacheScript);
+        }
+        assertTrue(parallelCrawler.getNumOfProcessedNodes().get() >= listOfNodeRef.size());
+        log.debug("Exec time: " + parallelCrawler.getExecTimeMs());
+
+        for (NodeRef nodeRef : listOfNodeRef)
+        {
+            boolean test = nodeService.hasAspect(nodeRef, QName.createQName("crawler.test.model", "test"));
+            assertEquals(test, true);
+        }
+    }
+
+    @Test
+    public void testJavaProcessor()
+    {
+        AddAspectNodeProcessor processor = new AddAspectNodeProcessor();
+        processor.setNodeService(nodeService);
+        processor.setNamespaceService(serviceRegistry.getNamespaceService());
+        processor.setAspect("crawler:test");
+        processor.setProperties(Collections.singletonMap("crawler:prop", "test"));
+        processor.init();
+        parallelCrawler.setProcessor(processor);
+        try
+        {
+            parallelCrawler.execute();
+        }
+        finally
+        {
+            parallelCrawler.setProcessor(null);
+        }
+        assertTrue(parallelCrawler.getNumOfProcessedNodes().get() >= listOfNodeRef.size());
+        log.debug("Exec time: " + parallelCrawler.getExecTimeMs());
+
+        for (NodeRef nodeRef : listOfNodeRef)
+        {
+            boolean test = nodeService.hasAspect(nodeRef, QName.createQName("crawler.test.model", "test"));
+            assertEquals(test, true);
+        }
+    }
+
     @Test
     public void testSmallerBigPage()
     {
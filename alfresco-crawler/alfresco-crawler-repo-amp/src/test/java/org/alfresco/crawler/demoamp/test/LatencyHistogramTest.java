@@ -0,0 +1,42 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.alfresco.crawler.demoamp.LatencyHistogram;
+import org.alfresco.crawler.demoamp.LatencySnapshot;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the latency histogram of the crawl metrics.
+ */
+public class LatencyHistogramTest
+{
+    private static final long MS = 1000000L;
+
+    @Test
+    public void testEmpty()
+    {
+        LatencySnapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0.0, snapshot.getP99(), 0.0);
+    }
+
+    @Test
+    public void testPercentilesWithinAFactorOfTwo()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++)
+        {
+            histogram.record(10 * MS);
+        }
+        histogram.record(1000 * MS);
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(19.9, snapshot.getMean(), 0.01);
+        assertTrue(snapshot.getP50() >= 10 && snapshot.getP50() < 20);
+        assertTrue(snapshot.getP95() >= 10 && snapshot.getP95() < 20);
+        assertTrue(snapshot.getP99() >= 10 && snapshot.getP99() < 20);
+        assertEquals(1000.0, snapshot.getMax(), 0.0);
+    }
+}
@@ -0,0 +1,222 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.crawler.demoamp.NodeMetadataPredicate;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.ISO8601DateFormat;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the metadata conditions a node must match to reach the processor.
+ */
+public class NodeMetadataPredicateTest
+{
+    private static final String CM = "http://www.alfresco.org/model/content/1.0";
+    private static final String CRAWLER = "http://www.alfresco.org/model/crawler/1.0";
+    private static final QName CONTENT = QName.createQName(CM, "content");
+    private static final QName DICTIONARY_MODEL = QName.createQName(CM, "dictionaryModel");
+    private static final QName FOLDER = QName.createQName(CM, "folder");
+    private static final QName TITLED = QName.createQName(CM, "titled");
+    private static final QName TESTED = QName.createQName(CRAWLER, "test");
+    private static final QName PROP_TITLE = QName.createQName(CM, "title");
+    private static final QName PROP_MODIFIED = QName.createQName(CM, "modified");
+    private static final QName PROP_CONTENT = QName.createQName(CM, "content");
+    private static final NodeRef NODE_REF = new NodeRef("workspace://SpacesStore/node");
+
+    private final Map<Long, QName> types = new HashMap<Long, QName>();
+    private final Map<Long, Set<QName>> aspects = new HashMap<Long, Set<QName>>();
+    private final Map<Long, Map<QName, Serializable>> properties = new HashMap<Long, Map<QName, Serializable>>();
+    private long lastId = 0;
+
+    private long addNode(QName type, QName... nodeAspects)
+    {
+        long nodeId = ++lastId;
+        types.put(nodeId, type);
+        aspects.put(nodeId, new HashSet<QName>(Arrays.asList(nodeAspects)));
+        properties.put(nodeId, new HashMap<QName, Serializable>());
+        return nodeId;
+    }
+
+    private NodeMetadataPredicate predicate()
+    {
+        NodeMetadataPredicate predicate = new NodeMetadataPredicate();
+        predicate.setNodeDAO((NodeDAO) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { NodeDAO.class }, new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            String name = method.getName();
+                            if (name.equals("getNodeType"))
+                            {
+                                return types.get(args[0]);
+                            }
+                            if (name.equals("getNodeAspects"))
+                            {
+                                return aspects.get(args[0]);
+                            }
+                            if (name.equals("getNodeProperty"))
+                            {
+                                return properties.get(args[0]).get(args[1]);
+                            }
+                            return null;
+                        }
+                    }));
+        predicate.setNamespaceService((NamespaceService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { NamespaceService.class }, new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            return "crawler".equals(args[0]) ? CRAWLER : CM;
+                        }
+                    }));
+        predicate.setDictionaryService((DictionaryService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { DictionaryService.class }, new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            return DICTIONARY_MODEL.equals(args[0]) && CONTENT.equals(args[1]);
+                        }
+                    }));
+        return predicate;
+    }
+
+    private static boolean accept(NodeMetadataPredicate predicate, long nodeId)
+    {
+        return predicate.accept(nodeId, NODE_REF);
+    }
+
+    @Test
+    public void testNoConditionMatchesAll()
+    {
+        long nodeId = addNode(FOLDER);
+        NodeMetadataPredicate predicate = predicate();
+        predicate.init();
+        assertTrue(accept(predicate, nodeId));
+    }
+
+    @Test
+    public void testTypeMatchesSubtypes()
+    {
+        long content = addNode(CONTENT);
+        long model = addNode(DICTIONARY_MODEL);
+        long folder = addNode(FOLDER);
+        NodeMetadataPredicate predicate = predicate();
+        predicate.setTypes(Collections.singletonList("cm:content"));
+        predicate.init();
+        assertTrue(accept(predicate, content));
+        assertTrue(accept(predicate, model));
+        assertFalse(accept(predicate, folder));
+    }
+
+    @Test
+    public void testAspects()
+    {
+        long titled = addNode(CONTENT, TITLED);
+        long tested = addNode(CONTENT, TITLED, TESTED);
+        long plain = addNode(CONTENT);
+        NodeMetadataPredicate predicate = predicate();
+        predicate.setAspects(Collections.singletonList("cm:titled"));
+        predicate.setExcludedAspects(Collections.singletonList("crawler:test"));
+        predicate.init();
+        assertTrue(accept(predicate, titled));
+        // already done by the processor
+        assertFalse(accept(predicate, tested));
+        assertFalse(accept(predicate, plain));
+    }
+
+    @Test
+    public void testPropertyValue()
+    {
+        long report = addNode(CONTENT);
+        properties.get(report).put(PROP_TITLE, "Report");
+        long other = addNode(CONTENT);
+        properties.get(other).put(PROP_TITLE, "Other");
+        long untitled = addNode(CONTENT);
+        NodeMetadataPredicate predicate = predicate();
+        predicate.setProperties(Collections.singletonMap("cm:title", "Report"));
+        predicate.init();
+        assertTrue(accept(predicate, report));
+        assertFalse(accept(predicate, other));
+        assertFalse(accept(predicate, untitled));
+    }
+
+    @Test
+    public void testDateRange()
+    {
+        long before = addNode(CONTENT);
+        properties.get(before).put(PROP_MODIFIED, ISO8601DateFormat.parse("2015-12-31T23:59:59.000Z"));
+        long first = addNode(CONTENT);
+        properties.get(first).put(PROP_MODIFIED, ISO8601DateFormat.parse("2016-01-01T00:00:00.000Z"));
+        long within = addNode(CONTENT);
+        properties.get(within).put(PROP_MODIFIED, ISO8601DateFormat.parse("2016-06-15T12:00:00.000Z"));
+        long after = addNode(CONTENT);
+        properties.get(after).put(PROP_MODIFIED, new Date());
+        long undated = addNode(CONTENT);
+        NodeMetadataPredicate predicate = predicate();
+        predicate.setMinDate("2016-01-01T00:00:00.000Z");
+        predicate.setMaxDate("2016-12-31T23:59:59.999Z");
+        predicate.init();
+        assertFalse(accept(predicate, before));
+        // the limits are included
+        assertTrue(accept(predicate, first));
+        assertTrue(accept(predicate, within));
+        assertFalse(accept(predicate, after));
+        assertFalse(accept(predicate, undated));
+    }
+
+    @Test
+    public void testMimetypeAndSize()
+    {
+        long pdf = addNode(CONTENT);
+        properties.get(pdf).put(PROP_CONTENT, new ContentData("store://pdf", "application/pdf", 1000L, "UTF-8"));
+        long large = addNode(CONTENT);
+        properties.get(large).put(PROP_CONTENT, new ContentData("store://large", "application/pdf", 5000L, "UTF-8"));
+        long text = addNode(CONTENT);
+        properties.get(text).put(PROP_CONTENT, new ContentData("store://text", "text/plain", 1000L, "UTF-8"));
+        long empty = addNode(CONTENT);
+        NodeMetadataPredicate predicate = predicate();
+        predicate.setMimetypes(Collections.singletonList("application/pdf"));
+        predicate.setMaxSize(4096L);
+        predicate.init();
+        assertTrue(accept(predicate, pdf));
+        assertFalse(accept(predicate, large));
+        assertFalse(accept(predicate, text));
+        assertFalse(accept(predicate, empty));
+    }
+
+    @Test
+    public void testAllConditionsMustMatch()
+    {
+        long nodeId = addNode(CONTENT, TITLED);
+        properties.get(nodeId).put(PROP_TITLE, "Report");
+        NodeMetadataPredicate predicate = predicate();
+        predicate.setTypes(Collections.singletonList("cm:content"));
+        predicate.setAspects(Collections.singletonList("cm:titled"));
+        predicate.setProperties(Collections.singletonMap("cm:title", "Report"));
+        predicate.setMinDate("2016-01-01T00:00:00.000Z");
+        predicate.init();
+        // not modified since
+        assertFalse(accept(predicate, nodeId));
+        properties.get(nodeId).put(PROP_MODIFIED, new Date());
+        assertTrue(accept(predicate, nodeId));
+    }
+}
@@ -0,0 +1,47 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.alfresco.crawler.demoamp.ProcessedNodeSet;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the bitmap of the processed nodes.
+ */
+public class ProcessedNodeSetTest
+{
+    @Test
+    public void testFilterDropsProcessedNodes()
+    {
+        ProcessedNodeSet set = new ProcessedNodeSet();
+        set.addAll(new long[] { 3, 64, 5000000000L });
+        assertTrue(set.contains(64));
+        assertFalse(set.contains(65));
+        assertEquals(3, set.size());
+
+        long[] kept = set.filter(new long[] { 1, 3, 64, 65, 5000000000L, 5000000001L });
+        assertArrayEquals(new long[] { 1, 65, 5000000001L }, kept);
+        assertEquals(3, set.getSkipped());
+    }
+
+    @Test
+    public void testOnlyChangedSegmentsAreDirty()
+    {
+        ProcessedNodeSet set = new ProcessedNodeSet();
+        set.add(1);
+        set.add(ProcessedNodeSet.SEGMENT_SIZE + 1);
+        assertEquals(2, set.takeDirtySegments().size());
+        assertTrue(set.takeDirtySegments().isEmpty());
+
+        set.add(2);
+        Map<Integer, long[]> dirty = set.takeDirtySegments();
+        assertEquals(1, dirty.size());
+        assertEquals(0x6L, dirty.get(0)[0]);
+        assertEquals(2, set.getSegmentNumbers().size());
+    }
+}
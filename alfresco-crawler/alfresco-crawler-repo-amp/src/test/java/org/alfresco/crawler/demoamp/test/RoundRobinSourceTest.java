@@ -0,0 +1,208 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.alfresco.crawler.demoamp.NodePage;
+import org.alfresco.crawler.demoamp.NodeSource;
+import org.alfresco.crawler.demoamp.RoundRobinSource;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the weighted interleaving of several sources.
+ */
+public class RoundRobinSourceTest
+{
+    /**
+     * <tt>pageCount</tt> pages of <tt>pageLen</tt> nodes, the IDs starting at <tt>firstId</tt>.
+     */
+    private static NodeSource source(final long firstId, final int pageLen, final int pageCount)
+    {
+        return new NodeSource()
+            {
+                private int pages = 0;
+
+                public NodePage nextPage()
+                {
+                    if (pages == pageCount)
+                    {
+                        return null;
+                    }
+                    long[] nodeIds = new long[pageLen];
+                    for (int i = 0; i < pageLen; i++)
+                    {
+                        nodeIds[i] = firstId + pages * pageLen + i;
+                    }
+                    pages++;
+                    return new NodePage(pages - 1, pages, nodeIds);
+                }
+
+                public void restore(long position)
+                {
+                }
+            };
+    }
+
+    /**
+     * @return the first node of each page, which tells the source it came from
+     */
+    private static String drain(NodeSource source)
+    {
+        StringBuilder order = new StringBuilder();
+        long seq = 0;
+        NodePage page;
+        while ((page = source.nextPage()) != null)
+        {
+            assertEquals(seq++, page.getSeq());
+            order.append(page.getNodeIds()[0] < 1000 ? 'a' : 'b');
+        }
+        assertNull(source.nextPage());
+        return order.toString();
+    }
+
+    private static String repeat(char c, int count)
+    {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void testInterleavesByWeight()
+    {
+        List<NodeSource> sources = Arrays.asList(source(0, 10, 6), source(1000, 10, 4));
+        RoundRobinSource source = new RoundRobinSource(sources, Arrays.asList(3, 1));
+        // three pages of a for one of b, then the rest of b once a is exhausted
+        assertEquals("abaaabaabb", drain(source));
+    }
+
+    @Test
+    public void testChargesTheNodesNotThePages()
+    {
+        // b has pages ten times smaller, it is read ten times as often for the same weight
+        List<NodeSource> sources = Arrays.asList(source(0, 100, 2), source(1000, 10, 25));
+        RoundRobinSource source = new RoundRobinSource(sources, Arrays.asList(1, 1));
+        assertEquals("a" + repeat('b', 10) + "a" + repeat('b', 15), drain(source));
+    }
+
+    /**
+     * Read the only source from a second fetcher while the first one is stuck in it.
+     */
+    private static Thread waitingFetcher(final RoundRobinSource source, final CountDownLatch reading,
+            final AtomicReference<Object> result)
+    {
+        Thread fetcher = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        reading.await();
+                        result.set(String.valueOf(source.nextPage()));
+                    }
+                    catch (Throwable e)
+                    {
+                        result.set(e);
+                    }
+                }
+            };
+        fetcher.start();
+        return fetcher;
+    }
+
+    private static RoundRobinSource blockingSource(final CountDownLatch reading, final CountDownLatch release)
+    {
+        NodeSource slow = new NodeSource()
+            {
+                public NodePage nextPage()
+                {
+                    reading.countDown();
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                }
+
+                public void restore(long position)
+                {
+                }
+            };
+        return new RoundRobinSource(Collections.singletonList(slow), Collections.singletonList(1));
+    }
+
+    @Test
+    public void testClosedSourceLetsTheWaitingFetchersGo() throws Exception
+    {
+        final CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        final RoundRobinSource source = blockingSource(reading, release);
+        AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread fetcher = waitingFetcher(source, reading, result);
+        Thread reader = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    source.nextPage();
+                }
+            };
+        reader.start();
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        fetcher.join(200);
+        assertTrue(fetcher.isAlive());
+
+        source.close();
+        fetcher.join(5000);
+        assertFalse(fetcher.isAlive());
+        assertEquals("null", result.get());
+        release.countDown();
+        reader.join(5000);
+    }
+
+    @Test
+    public void testInterruptedOnceClosedIsTheEnd() throws Exception
+    {
+        final CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        final RoundRobinSource source = blockingSource(reading, release);
+        AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread fetcher = waitingFetcher(source, reading, result);
+        Thread reader = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    source.nextPage();
+                }
+            };
+        reader.start();
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        fetcher.join(200);
+
+        // the crawl stops: the fetcher is interrupted and the source closed before the fetcher wakes up
+        synchronized (source)
+        {
+            fetcher.interrupt();
+            source.close();
+        }
+        fetcher.join(5000);
+        assertEquals("null", result.get());
+        release.countDown();
+        reader.join(5000);
+    }
+}
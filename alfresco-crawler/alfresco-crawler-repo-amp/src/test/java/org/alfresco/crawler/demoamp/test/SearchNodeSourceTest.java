@@ -0,0 +1,174 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.alfresco.crawler.demoamp.NodePage;
+import org.alfresco.crawler.demoamp.SearchNodeSource;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.ResultSetRow;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.util.Pair;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the paging of a query result holding hits of deleted nodes.
+ */
+public class SearchNodeSourceTest
+{
+    private static final Pattern DBID_RANGE = Pattern.compile("sys:node-dbid:\\[(\\d+) TO");
+
+    // the index holds the nodes 1 to 10, the nodes 4 to 6 were deleted since
+    private final List<Long> indexed = new ArrayList<Long>();
+    private final Set<Long> deleted = new HashSet<Long>();
+    private final Map<NodeRef, Long> nodes = new HashMap<NodeRef, Long>();
+    private final Map<Long, NodeRef> nodeRefs = new HashMap<Long, NodeRef>();
+
+    public SearchNodeSourceTest()
+    {
+        for (long dbid = 1; dbid <= 10; dbid++)
+        {
+            NodeRef nodeRef = new NodeRef("workspace://SpacesStore/node-" + dbid);
+            indexed.add(dbid);
+            nodes.put(nodeRef, dbid);
+            nodeRefs.put(dbid, nodeRef);
+        }
+        deleted.add(4L);
+        deleted.add(5L);
+        deleted.add(6L);
+    }
+
+    private SearchNodeSource source(boolean keysetPaging)
+    {
+        NodeDAO nodeDAO = (NodeDAO) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { NodeDAO.class }, new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            Long dbid = nodes.get(args[0]);
+                            return dbid == null || deleted.contains(dbid) ? null : new Pair<Long, NodeRef>(dbid,
+                                    (NodeRef) args[0]);
+                        }
+                    });
+        SearchService searchService = (SearchService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { SearchService.class }, new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            return query((SearchParameters) args[0]);
+                        }
+                    });
+        return new SearchNodeSource(searchService, nodeDAO, new StoreRef("workspace://SpacesStore"),
+                "TYPE:\"cm:content\"", 3, keysetPaging);
+    }
+
+    /**
+     * The hits by ascending DBID, from the skip count or after the DBID of the keyset range.
+     */
+    private ResultSet query(SearchParameters sp)
+    {
+        final List<Long> hits = new ArrayList<Long>();
+        Matcher range = DBID_RANGE.matcher(sp.getQuery());
+        long fromDbid = range.find() ? Long.parseLong(range.group(1)) : 0;
+        for (Long dbid : indexed)
+        {
+            if (dbid >= fromDbid)
+            {
+                hits.add(dbid);
+            }
+        }
+        int from = Math.min(sp.getSkipCount(), hits.size());
+        int to = sp.getMaxItems() < 0 ? hits.size() : Math.min(hits.size(), from + sp.getMaxItems());
+        final List<Long> page = hits.subList(from, to);
+        return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class },
+                new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            String name = method.getName();
+                            if (name.equals("length"))
+                            {
+                                return page.size();
+                            }
+                            if (name.equals("getNodeRef"))
+                            {
+                                return nodeRefs.get(page.get((Integer) args[0]));
+                            }
+                            if (name.equals("getRow"))
+                            {
+                                return row(page.get((Integer) args[0]));
+                            }
+                            return null;
+                        }
+                    });
+    }
+
+    /**
+     * A row whose <tt>sys:node-dbid</tt> is read from the index.
+     */
+    private ResultSetRow row(final Long dbid)
+    {
+        return (ResultSetRow) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ResultSetRow.class }, new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            return method.getName().equals("getValue") ? dbid : nodeRefs.get(dbid);
+                        }
+                    });
+    }
+
+    private static void assertPages(SearchNodeSource source)
+    {
+        assertArrayEquals(new long[] { 1, 2, 3 }, source.nextPage().getNodeIds());
+        // a page of stale hits does not end the crawl
+        NodePage stale = source.nextPage();
+        assertEquals(1, stale.getSeq());
+        assertArrayEquals(new long[0], stale.getNodeIds());
+        assertArrayEquals(new long[] { 7, 8, 9 }, source.nextPage().getNodeIds());
+        assertArrayEquals(new long[] { 10 }, source.nextPage().getNodeIds());
+        assertNull(source.nextPage());
+    }
+
+    @Test
+    public void testSkipCountPagingOverStaleHits()
+    {
+        SearchNodeSource source = source(false);
+        assertPages(source);
+    }
+
+    @Test
+    public void testKeysetPagingOverStaleHits()
+    {
+        SearchNodeSource source = source(true);
+        assertPages(source);
+    }
+
+    @Test
+    public void testSkipCountFollowsTheRawHits()
+    {
+        deleted.add(2L);
+        SearchNodeSource source = source(false);
+        NodePage first = source.nextPage();
+        assertArrayEquals(new long[] { 1, 3 }, first.getNodeIds());
+        // the offset moved by the three hits read, not by the two nodes left
+        assertEquals(3, first.getPosition());
+    }
+}
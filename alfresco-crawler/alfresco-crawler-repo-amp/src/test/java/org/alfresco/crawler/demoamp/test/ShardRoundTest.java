@@ -0,0 +1,39 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.alfresco.crawler.demoamp.ShardRound;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the shard bounds of a round.
+ */
+public class ShardRoundTest
+{
+    @Test
+    public void testShardsCoverTheRange()
+    {
+        ShardRound round = new ShardRound("round", 7, 13L, 1000L);
+        assertEquals(13L, round.getShardStart(0));
+        assertEquals(1000L, round.getShardEnd(6));
+        for (int i = 1; i < 7; i++)
+        {
+            assertEquals(round.getShardEnd(i - 1) + 1, round.getShardStart(i));
+        }
+    }
+
+    @Test
+    public void testMoreShardsThanIds()
+    {
+        ShardRound round = new ShardRound("round", 4, 1L, 2L);
+        int ids = 0;
+        for (int i = 0; i < 4; i++)
+        {
+            long width = round.getShardEnd(i) - round.getShardStart(i) + 1;
+            assertTrue(width >= 0);
+            ids += width;
+        }
+        assertEquals(2, ids);
+    }
+}
@@ -0,0 +1,236 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.crawler.demoamp.NodePage;
+import org.alfresco.crawler.demoamp.NodeTypeFilter;
+import org.alfresco.crawler.demoamp.SubtreeSource;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.node.NodeDAO.ChildAssocRefQueryCallback;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the parallel walk of a folder tree held in memory.
+ */
+public class SubtreeSourceTest
+{
+    private static final QName FOLDER = QName.createQName("test", "folder");
+    private static final QName CONTENT = QName.createQName("test", "content");
+    private static final NodeRef ROOT = new NodeRef("workspace://SpacesStore/root");
+
+    private final Map<Long, List<Long>> children = new HashMap<Long, List<Long>>();
+    private final Map<Long, QName> types = new HashMap<Long, QName>();
+    private final Set<Long> contentIds = new HashSet<Long>();
+    private long lastId = 0;
+    private Long failingFolderId;
+
+    private long addNode(Long parentId, QName type)
+    {
+        long nodeId = ++lastId;
+        types.put(nodeId, type);
+        if (parentId != null)
+        {
+            children.get(parentId).add(nodeId);
+        }
+        if (type.equals(FOLDER))
+        {
+            children.put(nodeId, new ArrayList<Long>());
+        }
+        else
+        {
+            contentIds.add(nodeId);
+        }
+        return nodeId;
+    }
+
+    /**
+     * A folder of <tt>contentCount</tt> documents and <tt>width</tt> sub-folders, <tt>depth</tt> levels deep.
+     */
+    private long addTree(Long parentId, int depth, int width, int contentCount)
+    {
+        long folderId = addNode(parentId, FOLDER);
+        for (int i = 0; i < contentCount; i++)
+        {
+            addNode(folderId, CONTENT);
+        }
+        for (int i = 0; depth > 1 && i < width; i++)
+        {
+            addTree(folderId, depth - 1, width, contentCount);
+        }
+        return folderId;
+    }
+
+    private SubtreeSource source(int pageLen, int parallelism)
+    {
+        NodeDAO nodeDAO = (NodeDAO) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { NodeDAO.class },
+                new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            String name = method.getName();
+                            if (name.equals("getNodePair"))
+                            {
+                                return new Pair<Long, NodeRef>(1L, (NodeRef) args[0]);
+                            }
+                            if (name.equals("getNodeType"))
+                            {
+                                return types.get(args[0]);
+                            }
+                            if (name.equals("getNodeAspects"))
+                            {
+                                return Collections.<QName> emptySet();
+                            }
+                            if (name.equals("getChildAssocs"))
+                            {
+                                if (args[0].equals(failingFolderId))
+                                {
+                                    throw new IllegalStateException("Connection reset");
+                                }
+                                ChildAssocRefQueryCallback callback = (ChildAssocRefQueryCallback) args[6];
+                                for (Long childId : children.get(args[0]))
+                                {
+                                    callback.handle(null, null, new Pair<Long, NodeRef>(childId, null));
+                                }
+                                callback.done();
+                            }
+                            return null;
+                        }
+                    });
+        DictionaryService dictionaryService = (DictionaryService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { DictionaryService.class }, new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            return FOLDER.equals(args[0]) && args[1] == ContentModel.TYPE_FOLDER;
+                        }
+                    });
+        RetryingTransactionHelper txnHelper = new RetryingTransactionHelper()
+            {
+                @Override
+                public <R> R doInTransaction(RetryingTransactionCallback<R> callback, boolean readOnly,
+                        boolean requiresNew)
+                {
+                    try
+                    {
+                        return callback.execute();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        throw e;
+                    }
+                    catch (Throwable e)
+                    {
+                        throw new AlfrescoRuntimeException("Callback failed", e);
+                    }
+                }
+            };
+        return new SubtreeSource(nodeDAO, dictionaryService, txnHelper, new NodeTypeFilter(nodeDAO,
+                dictionaryService, CONTENT, null), Collections.singletonList(ROOT), pageLen, parallelism);
+    }
+
+    /**
+     * Drain the source from several fetcher threads at once.
+     */
+    private List<NodePage> drain(final SubtreeSource source, int fetchers) throws InterruptedException
+    {
+        final List<NodePage> pages = Collections.synchronizedList(new ArrayList<NodePage>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < fetchers; i++)
+        {
+            Thread thread = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            NodePage page;
+                            while ((page = source.nextPage()) != null)
+                            {
+                                pages.add(page);
+                            }
+                        }
+                        catch (Throwable e)
+                        {
+                            errors.add(e);
+                        }
+                    }
+                };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join(30000);
+        }
+        source.close();
+        if (!errors.isEmpty())
+        {
+            throw new AlfrescoRuntimeException("Walk failed", errors.get(0));
+        }
+        return pages;
+    }
+
+    @Test
+    public void testWalksEveryDocumentOnce() throws Exception
+    {
+        long rootId = addTree(null, 4, 3, 20);
+        // a folder much larger than a page
+        addTree(rootId, 1, 0, 1050);
+
+        List<NodePage> pages = drain(source(100, 4), 2);
+        List<Long> found = new ArrayList<Long>();
+        Set<Long> seqs = new HashSet<Long>();
+        for (NodePage page : pages)
+        {
+            assertTrue(page.size() <= 100);
+            seqs.add(page.getSeq());
+            for (long nodeId : page.getNodeIds())
+            {
+                found.add(nodeId);
+            }
+        }
+        assertEquals(contentIds.size(), found.size());
+        assertEquals(contentIds, new HashSet<Long>(found));
+        // every page has its own rank, without gaps
+        assertEquals(pages.size(), seqs.size());
+        assertTrue(seqs.contains((long) pages.size() - 1));
+    }
+
+    @Test
+    public void testFailedFolderStopsTheWalk() throws Exception
+    {
+        long rootId = addTree(null, 3, 4, 10);
+        failingFolderId = children.get(rootId).get(children.get(rootId).size() - 1);
+        try
+        {
+            drain(source(50, 2), 1);
+            fail("The walk should have failed");
+        }
+        catch (AlfrescoRuntimeException e)
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.alfresco.crawler.demoamp.HighWaterMark;
+import org.alfresco.crawler.demoamp.NodePage;
+import org.alfresco.crawler.demoamp.NodeTypeFilter;
+import org.alfresco.crawler.demoamp.TransactionChangeSource;
+import org.alfresco.repo.domain.node.Node;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.domain.node.TransactionEntity;
+import org.alfresco.repo.solr.NodeParameters;
+import org.alfresco.repo.solr.SOLRTrackingComponent;
+import org.alfresco.repo.solr.SOLRTrackingComponent.NodeQueryCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.util.Pair;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the walk of the transactions, from the high water mark of the last run or from a checkpoint.
+ */
+public class TransactionChangeSourceTest
+{
+    private static final StoreRef STORE_REF = new StoreRef("workspace://SpacesStore");
+
+    // the transaction of the last change of each node, as in the node table
+    private final Map<Long, Long> nodeTxns = new TreeMap<Long, Long>();
+    private final Set<Long> deleted = new HashSet<Long>();
+    private final List<NodeParameters> queries = new ArrayList<NodeParameters>();
+    private long maxTxnId = 0;
+
+    private void change(long txnId, long... nodeIds)
+    {
+        for (long nodeId : nodeIds)
+        {
+            nodeTxns.put(nodeId, txnId);
+        }
+        maxTxnId = Math.max(maxTxnId, txnId);
+    }
+
+    /**
+     * The nodes of the transactions in [<tt>fromTxnId</tt>, <tt>toTxnId</tt>], by transaction then node ID.
+     */
+    private List<Node> getNodes(long fromTxnId, long toTxnId)
+    {
+        List<Node> nodes = new ArrayList<Node>();
+        for (long txnId = fromTxnId; txnId <= toTxnId; txnId++)
+        {
+            for (Map.Entry<Long, Long> nodeTxn : nodeTxns.entrySet())
+            {
+                if (nodeTxn.getValue() == txnId)
+                {
+                    nodes.add(node(nodeTxn.getKey(), txnId));
+                }
+            }
+        }
+        return nodes;
+    }
+
+    private Node node(final Long nodeId, long txnId)
+    {
+        final TransactionEntity txn = new TransactionEntity();
+        txn.setId(txnId);
+        return (Node) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Node.class },
+                new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            return method.getName().equals("getId") ? nodeId : txn;
+                        }
+                    });
+    }
+
+    private NodeDAO nodeDAO()
+    {
+        return (NodeDAO) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { NodeDAO.class },
+                new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            String name = method.getName();
+                            if (name.equals("getMinTxnId"))
+                            {
+                                return 1L;
+                            }
+                            if (name.equals("getMaxTxnId") || name.equals("getMaxTxnIdByCommitTime"))
+                            {
+                                return maxTxnId;
+                            }
+                            if (name.equals("getTxnChangesForStore"))
+                            {
+                                List<NodeRef.Status> changes = new ArrayList<NodeRef.Status>();
+                                for (Node node : getNodes((Long) args[1], (Long) args[1]))
+                                {
+                                    changes.add(new NodeRef.Status(node.getId(), null, null, (Long) args[1],
+                                            deleted.contains(node.getId())));
+                                }
+                                return changes;
+                            }
+                            if (name.equals("getNodePair"))
+                            {
+                                return deleted.contains(args[0]) ? null : new Pair<Long, NodeRef>((Long) args[0],
+                                        null);
+                            }
+                            return null;
+                        }
+                    });
+    }
+
+    private SOLRTrackingComponent trackingComponent()
+    {
+        return (SOLRTrackingComponent) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { SOLRTrackingComponent.class }, new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                        {
+                            NodeParameters parameters = (NodeParameters) args[0];
+                            queries.add(parameters);
+                            List<Node> nodes = getNodes(parameters.getFromTxnId(), parameters.getToTxnId());
+                            NodeQueryCallback callback = (NodeQueryCallback) args[1];
+                            for (Node node : nodes.subList(0, Math.min(nodes.size(), parameters.getMaxResults())))
+                            {
+                                callback.handleNode(node);
+                            }
+                            return null;
+                        }
+                    });
+    }
+
+    private TransactionChangeSource source(int rangeSize, int maxResults, Long fromTxnId, Long toTxnId)
+    {
+        NodeDAO nodeDAO = nodeDAO();
+        return new TransactionChangeSource(nodeDAO, trackingComponent(), STORE_REF, new NodeTypeFilter(nodeDAO,
+                null, null, null), rangeSize, maxResults, fromTxnId, toTxnId);
+    }
+
+    private static void assertPage(long[] nodeIds, long position, NodePage page)
+    {
+        assertArrayEquals(nodeIds, page.getNodeIds());
+        assertEquals(position, page.getPosition());
+    }
+
+    @Test
+    public void testWalksTheTransactionsAfterTheMark()
+    {
+        change(2, 1);
+        change(3, 2);
+        change(5, 3, 4);
+        change(7, 5);
+        // changed again after the mark, it belongs to its last transaction only
+        change(9, 2, 6);
+        change(10, 7);
+        deleted.add(4L);
+        HighWaterMark mark = new HighWaterMark(0L, 4L);
+
+        TransactionChangeSource source = source(3, 100, mark.getTxnId() + 1, null);
+        assertPage(new long[] { 3, 5 }, 8, source.nextPage());
+        assertPage(new long[] { 2, 6, 7 }, 11, source.nextPage());
+        assertNull(source.nextPage());
+        // one query per range, none per transaction
+        assertEquals(2, queries.size());
+        assertEquals(Long.valueOf(5L), queries.get(0).getFromTxnId());
+        assertEquals(Long.valueOf(7L), queries.get(0).getToTxnId());
+        assertEquals("SpacesStore", queries.get(0).getStoreIdentifier());
+    }
+
+    @Test
+    public void testStopsAtTheLastTransaction()
+    {
+        change(1, 1);
+        change(2, 2);
+        change(3, 3);
+        TransactionChangeSource source = source(10, 100, null, 2L);
+        assertPage(new long[] { 1, 2 }, 3, source.nextPage());
+        assertNull(source.nextPage());
+    }
+
+    @Test
+    public void testResumesFromTheCheckpoint()
+    {
+        for (long txnId = 1; txnId <= 6; txnId++)
+        {
+            change(txnId, txnId * 10);
+        }
+        TransactionChangeSource source = source(2, 100, null, null);
+        source.restore(4L);
+        assertPage(new long[] { 40, 50 }, 6, source.nextPage());
+        assertPage(new long[] { 60 }, 7, source.nextPage());
+        assertNull(source.nextPage());
+    }
+
+    @Test
+    public void testChunksCutInTheMiddleOfATransaction()
+    {
+        change(1, 1);
+        // larger than a chunk on its own
+        change(2, 2, 3, 4);
+        change(3, 5);
+        change(4, 6);
+        TransactionChangeSource source = source(10, 2, null, null);
+        assertPage(new long[] { 1, 2, 3, 4, 5, 6 }, 5, source.nextPage());
+        assertEquals(4, queries.size());
+        // the chunks start again at the transaction they cut
+        assertEquals(Long.valueOf(2L), queries.get(1).getFromTxnId());
+        assertEquals(Long.valueOf(3L), queries.get(2).getFromTxnId());
+        assertEquals(Long.valueOf(4L), queries.get(3).getFromTxnId());
+    }
+
+    @Test
+    public void testFollowingSourceWaitsForNewTransactions()
+    {
+        change(1, 1);
+        change(2, 2);
+        NodeDAO nodeDAO = nodeDAO();
+        TransactionChangeSource source = new TransactionChangeSource(nodeDAO, trackingComponent(), STORE_REF,
+                new NodeTypeFilter(nodeDAO, null, null, null), 10, 100, null, 0L, 1000L);
+        // from the next commit on
+        assertPage(new long[0], 3, source.nextPage());
+        assertEquals(1000L, source.getPollDelay());
+
+        change(3, 3);
+        change(4, 1);
+        assertPage(new long[] { 3, 1 }, 5, source.nextPage());
+        assertEquals(0L, source.getPollDelay());
+        assertPage(new long[0], 5, source.nextPage());
+    }
+}
@@ -0,0 +1,130 @@
+package org.alfresco.crawler.demoamp.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.crawler.demoamp.WorkerBudget;
+import org.alfresco.crawler.demoamp.WorkerGate;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Plain unit test of the division of the worker budget between the running crawls.
+ */
+public class WorkerBudgetTest
+{
+    private WorkerBudget budget;
+
+    @Before
+    public void before()
+    {
+        budget = new WorkerBudget();
+        budget.setMaxThreads(12);
+        budget.init();
+    }
+
+    @Test
+    public void testAloneGetsWhatItNeeds()
+    {
+        WorkerBudget.Allocation fix = budget.join("fix", 1, 6, null);
+        assertEquals(6, fix.getThreads());
+        WorkerBudget.Allocation big = budget.join("big", 1, 20, null);
+        assertEquals(12, 6 + big.getThreads());
+    }
+
+    @Test
+    public void testSharedByWeight()
+    {
+        WorkerBudget.Allocation fix = budget.join("fix", 2, 20, null);
+        WorkerBudget.Allocation report = budget.join("report", 1, 20, null);
+        assertEquals(8, fix.getThreads());
+        assertEquals(4, report.getThreads());
+    }
+
+    @Test
+    public void testLeftoverGoesToTheOthers()
+    {
+        WorkerBudget.Allocation small = budget.join("small", 1, 2, null);
+        WorkerBudget.Allocation a = budget.join("a", 1, 20, null);
+        WorkerBudget.Allocation b = budget.join("b", 1, 20, null);
+        assertEquals(2, small.getThreads());
+        assertEquals(5, a.getThreads());
+        assertEquals(5, b.getThreads());
+
+        budget.leave(small);
+        assertEquals(6, a.getThreads());
+        assertEquals(6, b.getThreads());
+    }
+
+    @Test
+    public void testNeverOversubscribed()
+    {
+        WorkerBudget.Allocation[] allocations = new WorkerBudget.Allocation[5];
+        for (int i = 0; i < allocations.length; i++)
+        {
+            allocations[i] = budget.join("job" + i, i + 1, 10, null);
+        }
+        int total = 0;
+        for (WorkerBudget.Allocation allocation : allocations)
+        {
+            total += allocation.getThreads();
+        }
+        assertEquals(12, total);
+    }
+
+    @Test
+    public void testListenerToldOfChanges()
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        budget.join("fix", 1, 20, new Runnable()
+            {
+                public void run()
+                {
+                    calls.incrementAndGet();
+                }
+            });
+        assertEquals(1, calls.get());
+        WorkerBudget.Allocation report = budget.join("report", 1, 20, null);
+        assertEquals(2, calls.get());
+        budget.leave(report);
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testStoppedGateLetsTheWaitingWorkersGo() throws Exception
+    {
+        // the budget gave the crawl no slot
+        final WorkerGate gate = new WorkerGate(0);
+        final AtomicBoolean admitted = new AtomicBoolean(true);
+        Thread worker = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        admitted.set(gate.acquire());
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // left admitted, fails the test
+                    }
+                }
+            };
+        worker.start();
+        worker.join(200);
+        assertTrue(worker.isAlive());
+
+        gate.stop();
+        worker.join(5000);
+        assertFalse(worker.isAlive());
+        assertFalse(admitted.get());
+        assertEquals(0, gate.getActive());
+        // the next workers are turned away at once
+        assertFalse(gate.acquire());
+    }
+}